@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android;
+
+/**
+ * Thrown when the API server asks us to slow down (such as HTTP 429). Unlike other API
+ * exceptions the calls were not rejected, so should stay queued and be sent again once
+ * the given delay has passed.
+ */
+public class ApiRateLimitedException extends ApiException {
+
+	private final long retryAfterMs;
+
+	/**
+	 * @param detailMessage		Description of the response.
+	 * @param retryAfterMs		How long the server asked us to wait before sending again (in MS).
+	 */
+	public ApiRateLimitedException(String detailMessage, long retryAfterMs) {
+		super(detailMessage);
+		this.retryAfterMs = retryAfterMs;
+	}
+
+	/**
+	 * Gets how long the server asked us to wait before sending again (in MS).
+	 */
+	public long getRetryAfterMs() {
+		return retryAfterMs;
+	}
+
+	private static final long serialVersionUID = 1L;
+
+}
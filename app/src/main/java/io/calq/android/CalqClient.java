@@ -17,15 +17,27 @@ package io.calq.android;
 
 import io.calq.android.analytics.AbstractAnalyticsApiCall;
 import io.calq.android.analytics.ActionApiCall;
+import io.calq.android.analytics.AdaptiveBatchSizer;
+import io.calq.android.analytics.ApiEngine;
 import io.calq.android.analytics.ApiHandler;
+import io.calq.android.analytics.DeadLetter;
+import io.calq.android.analytics.EvictionStats;
+import io.calq.android.analytics.GlobalProperties;
 import io.calq.android.analytics.ProfileApiCall;
 import io.calq.android.analytics.ReservedActionProperties;
+import io.calq.android.analytics.RetryScheduler;
 import io.calq.android.analytics.TransferApiCall;
+import io.calq.android.analytics.UploadStats;
 
 import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 
 import android.Manifest;
 import android.content.Context;
@@ -43,6 +55,9 @@ import android.view.WindowManager;
  * 
  * <p>Call {@link #getOrCreateClient(Context, String)} to initialize a new CalqClient for the
  * current session. This will automatically load previous user properties if any exist.
+ * Alternatively {@link #getOrCreateClientAsync(Context, String)} returns a client straight away
+ * and loads in the background, keeping this off your app's startup path. Calls made on the
+ * client before it has loaded are buffered and made once it has, in the order they were made.
  * 
  * <p>Once you have a client you can send actions to Calq using the {@link #track(String, Map)}
  * and {@link #trackSale(String, Map, String, BigDecimal)} methods.
@@ -86,20 +101,48 @@ public class CalqClient {
 	Boolean hasTracked;
 	
 	/**
-	 * Map of global properties for this session.
+	 * Snapshot of global properties for this session. Replaced (never modified) when a
+	 * property changes, so track(...) can read it without locking or copying.
 	 */
-	Map<String, Object> globalProperties;
+	volatile GlobalProperties globalProperties;
 	
 	/**
 	 * The ApiHandler we use to process API calls.
 	 */
-	protected ApiHandler apiHandler;
+	protected volatile ApiHandler apiHandler;
+	
+	/**
+	 * Calls made before this client finished initializing in the background (see
+	 * {@link #getOrCreateClientAsync(Context, String, LocalConfig)}), replayed in order once
+	 * it has. Null once initialized.
+	 */
+	private volatile List<Runnable> pendingCalls;
+	
+	/**
+	 * Lock used when adding to or replaying pending calls.
+	 */
+	private final Object pendingLock = new Object();
+	
+	/**
+	 * Released once this client has initialized and replayed any pending calls.
+	 */
+	private final CountDownLatch initialized;
+	
+	/**
+	 * Why this client failed to initialize in the background (null unless it did).
+	 */
+	private volatile RuntimeException initializationError;
 		
 	/**
 	 * The write key in use by this client.
 	 */
 	protected String writeKey;
 	
+	/**
+	 * Properties used when an action is tracked without any.
+	 */
+	private static final Map<String, Object> EMPTY_PROPERTIES = Collections.emptyMap();
+	
 	/**
 	 * Lock used for synchronization.
 	 */
@@ -127,27 +170,56 @@ public class CalqClient {
 		if(actor == null || actor.length() == 0) {
 			throw(new IllegalArgumentException("The 'actor' parameter can not be null or empty"));
 		}
-		if(writeKey == null || writeKey.length() == 0) {
-			throw(new IllegalArgumentException("The 'writeKey' parameter can not be null or empty"));
-		}
-
-		if(applicationContext.checkCallingOrSelfPermission(Manifest.permission.INTERNET) != PackageManager.PERMISSION_GRANTED) {
-			throw(new IllegalStateException("CalqClient requires INTERNET permission"));
-		}
+		checkCanCreate(applicationContext, writeKey);
 		
 		this.actor = actor;
 		this.writeKey = writeKey;
 		
 		stateStore = new ClientStateStore(applicationContext);
-		globalProperties = new Hashtable<String, Object>();
+		globalProperties = GlobalProperties.EMPTY;
 		isAnon = true;
 		hasTracked = false;
+		initialized = new CountDownLatch(0);
 		
 		if(config == null) {
 			config = LocalConfig.getInstance(applicationContext);
 		}
 		apiHandler = ApiHandler.getHandlerForKey(applicationContext, writeKey, config);
 	}
+	
+	/**
+	 * Creates a new CalqClient which buffers any calls made on it until
+	 * {@link #initialize(Context, LocalConfig)} has been called. Used by
+	 * {@link #getOrCreateClientAsync(Context, String, LocalConfig)}.
+	 * 
+	 * @param applicationContext	An application context to use with this client.
+	 * @param writeKey		The write key to use when communicating with the API.
+	 */
+	CalqClient(Context applicationContext, String writeKey) {
+		checkCanCreate(applicationContext, writeKey);
+		
+		this.actor = CalqClient.generateAnonymousId();	// Id will get overwritten if we have previous state
+		this.writeKey = writeKey;
+		
+		globalProperties = GlobalProperties.EMPTY;
+		isAnon = true;
+		hasTracked = false;
+		pendingCalls = new LinkedList<Runnable>();
+		initialized = new CountDownLatch(1);
+	}
+	
+	/**
+	 * Checks the arguments and permissions needed to create a client.
+	 */
+	private static void checkCanCreate(Context applicationContext, String writeKey) {
+		if(writeKey == null || writeKey.length() == 0) {
+			throw(new IllegalArgumentException("The 'writeKey' parameter can not be null or empty"));
+		}
+
+		if(applicationContext.checkCallingOrSelfPermission(Manifest.permission.INTERNET) != PackageManager.PERMISSION_GRANTED) {
+			throw(new IllegalStateException("CalqClient requires INTERNET permission"));
+		}
+	}
 		
 	/**
 	 * Attempts to create a CalqClient from previously saved data (includes identity and
@@ -157,6 +229,9 @@ public class CalqClient {
 	 * around the app without re-creating them. Alternatively you can pass your CalqClient
 	 * instance around.
 	 * 
+	 * <p>If a client for this write key was created by {@link #getOrCreateClientAsync(Context, String, LocalConfig)}
+	 * it is returned as is, even if still initializing (calls made on it are buffered).
+	 * 
 	 * @param applicationContext	The application context to use.
 	 * @param writeKey		The write key to use when communicating with the API.
 	 * @param config		The configuration to use for this client (can be null).
@@ -211,6 +286,213 @@ public class CalqClient {
 		}
 		return CalqClient.getOrCreateClient(applicationContext, writeKey, config);
 	}
+	
+	/**
+	 * Gets or creates a CalqClient in the same way as {@link #getOrCreateClient(Context, String, LocalConfig)},
+	 * but without blocking. A new client is returned straight away and loads its previous
+	 * session data (and starts its background worker) on another thread.
+	 * 
+	 * <p>The client can be used straight away. Calls such as {@link #track(String, Map)} and
+	 * {@link #identify(String)} made before it has loaded are held in memory and made once it
+	 * has, in the order they were made. Tracked actions keep the time they were tracked.
+	 * Methods which return stats (such as {@link #getUploadStats()}) block the calling thread
+	 * until it has finished loading, so avoid calling them from the UI thread straight away.
+	 * 
+	 * <p>If loading fails the buffered calls are dropped (and logged), and calls made on the
+	 * client afterwards throw an IllegalStateException. The client is also forgotten, so the
+	 * next call to get a client for the write key tries again.
+	 * 
+	 * @param applicationContext	The application context to use.
+	 * @param writeKey		The write key to use when communicating with the API.
+	 * @param config		The configuration to use for this client (can be null).
+	 * @return a CalqClient instance, which may still be loading the previous session data.
+	 */
+	public static CalqClient getOrCreateClientAsync(final Context applicationContext, String writeKey, final LocalConfig config) {
+		synchronized (lock) {
+			if(clients == null) {
+				clients = new Hashtable<String, CalqClient>();
+			}
+			CalqClient client = clients.get(writeKey);
+			if(client == null) {
+				final CalqClient created = new CalqClient(applicationContext, writeKey);
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						created.initialize(applicationContext, config);
+					}
+				}, TAG + "Init").start();
+				
+				client = created;
+				clients.put(writeKey, client);
+			}
+			return client;
+		}
+	}
+	
+	/**
+	 * Gets or creates a CalqClient with the given write key without blocking.
+	 * @see CalqClient#getOrCreateClientAsync(Context, String, LocalConfig)
+	 * 
+	 * @param applicationContext	The application context to use.
+	 * @param writeKey		The write key to use when communicating with the API.
+	 */
+	public static CalqClient getOrCreateClientAsync(Context applicationContext, String writeKey) {
+		return CalqClient.getOrCreateClientAsync(applicationContext, writeKey, null);
+	}
+	
+	/**
+	 * Gets or creates a CalqClient without blocking. Will read write_key from manifest.
+	 * @see #getOrCreateClientAsync(Context, String)
+	 * 
+	 * @param applicationContext	The application context to use.
+	 */
+	public static CalqClient getOrCreateClientAsync(Context applicationContext) {
+		LocalConfig config = LocalConfig.getInstance(applicationContext);
+		String writeKey = config.getWriteKey();
+		if(writeKey == null || writeKey.length() == 0) {
+			throw(new RuntimeException("Unable to find Calq write_key in manifest (io.calq.android.config.writeKey)"));
+		}
+		return CalqClient.getOrCreateClientAsync(applicationContext, writeKey, config);
+	}
+	
+	/**
+	 * Stops the background thread shared by all clients and closes the queue database (such
+	 * as when your app has finished with Calq). Calls not yet sent stay queued and are sent the
+	 * next time a client is created. This waits for any send in progress to finish, so is
+	 * best not called from the UI thread.
+	 * 
+	 * <p>Clients got before calling this can still be used afterwards. The next call made on
+	 * one starts the background thread again.
+	 */
+	public static void shutdown() {
+		synchronized (lock) {
+			if(clients != null) {
+				clients.clear();
+			}
+		}
+		ApiEngine.shutdownShared();
+	}
+	
+	/**
+	 * Loads this client's state and starts its ApiHandler, then makes any calls which were
+	 * buffered meanwhile (in the order they were made). Called on a background thread for
+	 * clients created by {@link #getOrCreateClientAsync(Context, String, LocalConfig)}.
+	 * 
+	 * @param applicationContext	The application context to use.
+	 * @param config		The configuration to use for this client (will fetch from context if null)
+	 */
+	void initialize(Context applicationContext, LocalConfig config) {
+		try {
+			if(config == null) {
+				config = LocalConfig.getInstance(applicationContext);
+			}
+			ApiHandler handler = ApiHandler.getHandlerForKey(applicationContext, writeKey, config);
+			
+			// Read from disk into a scratch client without holding the lock, so other clients
+			//	(and getting more clients) aren't held up while we load
+			ClientStateStore store = new ClientStateStore(applicationContext);
+			CalqClient loaded = new CalqClient(applicationContext, writeKey);
+			boolean hadState = store.loadState(loaded);
+			Map<String, Object> deviceProperties = getDeviceProperties(applicationContext);
+			
+			synchronized(lock) {
+				stateStore = store;
+				apiHandler = handler;
+				if(hadState) {
+					actor = loaded.actor;
+					isAnon = loaded.isAnon;
+					hasTracked = loaded.hasTracked;
+					globalProperties = loaded.globalProperties;
+				}
+				globalProperties = globalProperties.withAll(deviceProperties); // Overwrite device data every session (could have updated)
+				persistState();
+			}
+		} catch(RuntimeException e) {
+			Log.e(TAG, "Unable to initialize CalqClient", e);
+			initializationError = e;
+			synchronized(lock) {
+				if(clients != null && clients.get(writeKey) == this) {
+					clients.remove(writeKey);
+				}
+			}
+			
+			int dropped;
+			synchronized(pendingLock) {
+				dropped = pendingCalls.size();
+				pendingCalls = null;
+			}
+			if(dropped > 0) {
+				Log.w(TAG, "Dropped " + dropped + " calls made before CalqClient failed to initialize");
+			}
+			initialized.countDown();
+			return;
+		}
+		
+		// Calls made while we replay join the end of the list, so keep going until it's empty.
+		//	Only then do calls stop being buffered, so nothing overtakes an earlier call
+		while(true) {
+			Runnable call;
+			synchronized(pendingLock) {
+				if(pendingCalls.isEmpty()) {
+					pendingCalls = null;
+					break;
+				}
+				call = pendingCalls.remove(0);
+			}
+			try {
+				call.run();
+			} catch(RuntimeException e) {
+				Log.w(TAG, "Call made before CalqClient initialized has failed", e);
+			}
+		}
+		initialized.countDown();
+	}
+	
+	/**
+	 * Buffers the given call to be made once this client has initialized.
+	 * 
+	 * @param call			The call to make.
+	 * @return true if buffered, or false if this client has since initialized (so the
+	 * 		caller should make the call itself).
+	 */
+	private boolean deferUntilInitialized(Runnable call) {
+		synchronized(pendingLock) {
+			if(pendingCalls == null) {
+				return false;
+			}
+			pendingCalls.add(call);
+			return true;
+		}
+	}
+	
+	/**
+	 * Throws if this client failed to initialize, as it has no state or ApiHandler to use.
+	 */
+	private void checkInitialized() {
+		RuntimeException error = initializationError;
+		if(error != null) {
+			throw(new IllegalStateException("CalqClient failed to initialize: " + error.getMessage(), error));
+		}
+	}
+	
+	/**
+	 * Waits for this client to finish initializing (including making any buffered calls).
+	 * Returns straight away for clients which weren't created asynchronously.
+	 */
+	void awaitInitialization() {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				initialized.await();
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
 		
 	// Client state persistence
 	
@@ -255,14 +537,35 @@ public class CalqClient {
 			throw(new IllegalArgumentException("The 'action' parameter can not be null or empty"));
 		}
 		if(properties == null) {
-			properties = new Hashtable<String, Object>();
+			properties = EMPTY_PROPERTIES;
 		}
 		
-		Map<String, Object> mergedProperties = new Hashtable<String, Object>();
-		mergedProperties.putAll(globalProperties);
-		mergedProperties.putAll(properties);
-		
-		callAnalyticsApi(new ActionApiCall(actor, action, mergedProperties, writeKey));
+		if(pendingCalls != null) {
+			// Not initialized yet. Capture the properties and time now, but the actor and
+			//	globals aren't known until our state has loaded
+			final String deferredAction = action;
+			final Map<String, Object> deferredProperties = new HashMap<String, Object>(properties);
+			final long createdAt = System.currentTimeMillis();
+			if(deferUntilInitialized(new Runnable() {
+				@Override
+				public void run() {
+					doTrack(deferredAction, deferredProperties, createdAt);
+				}
+			})) {
+				return;
+			}
+		}
+		doTrack(action, properties, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Tracks the given action as having happened at the given time.
+	 */
+	private void doTrack(String action, Map<String, Object> properties, long createdAt) {
+		checkInitialized();
+		// The call captures what it needs from properties here, and serializes later on the
+		//	background thread. Globals are shared by snapshot and merged when serializing
+		callAnalyticsApi(new ActionApiCall(actor, action, globalProperties, properties, writeKey, createdAt));
 		
 		if(!hasTracked) {
 			hasTracked = true;
@@ -279,12 +582,12 @@ public class CalqClient {
 	 * @param amount		The amount this sale is worth (can be negative for refunds).
 	 */
 	public void trackSale(String action, Map<String, Object> properties, String currency, BigDecimal amount) {
-		if(properties == null) {
-			properties = new Hashtable<String, Object>();
-		}
-		properties.put(ReservedActionProperties.SALE_CURRENCY, currency);
-		properties.put(ReservedActionProperties.SALE_VALUE, amount);
-		track(action, properties);
+		// Don't write the sale into the caller's map
+		Map<String, Object> saleProperties = properties != null ?
+				new Hashtable<String, Object>(properties) : new Hashtable<String, Object>();
+		saleProperties.put(ReservedActionProperties.SALE_CURRENCY, currency);
+		saleProperties.put(ReservedActionProperties.SALE_VALUE, amount);
+		track(action, saleProperties);
 	}
 	
 	/**
@@ -295,7 +598,7 @@ public class CalqClient {
 	 * @param property		The name of the property to set.
 	 * @param value			The value of the new global property.
 	 */
-	public void setGlobalProperty(String property, Object value) {
+	public void setGlobalProperty(final String property, final Object value) {
 		if(property == null || property.length() == 0) {
 			throw(new IllegalArgumentException("The 'property' parameter can not be null or empty"));
 		}
@@ -303,8 +606,23 @@ public class CalqClient {
 			throw(new IllegalArgumentException("The 'value' parameter can not be null"));
 		}
 		
-		globalProperties.put(property, value);
-		persistState();
+		if(pendingCalls != null && deferUntilInitialized(new Runnable() {
+			@Override
+			public void run() {
+				doSetGlobalProperty(property, value);
+			}
+		})) {
+			return;
+		}
+		doSetGlobalProperty(property, value);
+	}
+	
+	private void doSetGlobalProperty(String property, Object value) {
+		checkInitialized();
+		synchronized(lock) {
+			globalProperties = globalProperties.with(property, value);
+			persistState();
+		}
 	}
 	
 	/**
@@ -316,7 +634,20 @@ public class CalqClient {
 	 * 
 	 * @param actor			The new unique actor Id. 
 	 */
-	public void identify(String actor) {
+	public void identify(final String actor) {
+		if(pendingCalls != null && deferUntilInitialized(new Runnable() {
+			@Override
+			public void run() {
+				doIdentify(actor);
+			}
+		})) {
+			return;
+		}
+		doIdentify(actor);
+	}
+	
+	private void doIdentify(String actor) {
+		checkInitialized();
 		synchronized(lock) {
 			if(!this.actor.equals(actor)) {
                 if (isAnon) {
@@ -340,6 +671,9 @@ public class CalqClient {
 	/**
 	 * Sets profile properties for the current user. These are not the same as global properties.
      * A user MUST be identified before calling profile else an IllegalStateException will be thrown.
+     * 
+     * <p>If this client is still initializing the call is buffered, and if the user turns out
+     * not to be identified it is dropped (and logged) rather than thrown.
      * 
 	 * @param properties	The custom properties to set for this user. If a property with the
 	 * 		same name already exists then it will be overwritten.
@@ -349,6 +683,23 @@ public class CalqClient {
 		if (properties == null || properties.isEmpty()) {
             throw (new IllegalArgumentException("You must pass some information to Profile(...) (or else there isn't much point)"));
         }
+		
+		if(pendingCalls != null) {
+			final Map<String, Object> deferredProperties = new HashMap<String, Object>(properties);
+			if(deferUntilInitialized(new Runnable() {
+				@Override
+				public void run() {
+					doProfile(deferredProperties);
+				}
+			})) {
+				return;
+			}
+		}
+		doProfile(properties);
+	}
+	
+	private void doProfile(Map<String, Object> properties) {
+		checkInitialized();
         if(isAnon) {
             throw (new IllegalStateException("A client must be identified (call identify(...)) before calling profile(...)"));
         }
@@ -361,11 +712,24 @@ public class CalqClient {
 	 * You should generally call this if a user logs out of your application.
 	 */
 	public void clear() {
+		if(pendingCalls != null && deferUntilInitialized(new Runnable() {
+			@Override
+			public void run() {
+				doClear();
+			}
+		})) {
+			return;
+		}
+		doClear();
+	}
+	
+	private void doClear() {
+		checkInitialized();
 		synchronized (lock) {
 			hasTracked = false;
 			isAnon = true;
 			actor = CalqClient.generateAnonymousId();
-			globalProperties = new Hashtable<String, Object>();
+			globalProperties = GlobalProperties.EMPTY;
 			
 			persistState();
 		}
@@ -376,7 +740,18 @@ public class CalqClient {
 	 * @param call			The API call to process.
 	 */
 	protected void callAnalyticsApi(AbstractAnalyticsApiCall call) {
-		apiHandler.apiCall(call);
+		getApiHandler().apiCall(call);
+	}
+	
+	/**
+	 * Gets the ApiHandler to use. This moves us on to a new handler if ours has been shut
+	 * down (see {@link #shutdown()}).
+	 */
+	protected ApiHandler getApiHandler() {
+		checkInitialized();
+		ApiHandler handler = apiHandler.getActiveHandler();
+		apiHandler = handler;
+		return handler;
 	}
 	
 	// Util methods
@@ -388,9 +763,101 @@ public class CalqClient {
 	 * <p>It is recommended you call this manually in your applications onDestroy handler.
 	 * This will ensure that outstanding calls are sent before the app closes. If there is
 	 * no network signal, they will be skipped and saved until the app is re-opened.
+	 * 
+	 * <p>If this client is still initializing then the flush is made once it has (and this
+	 * returns false straight away).
 	 */
 	public boolean flushQueue() {
-		return apiHandler.forceFlush();
+		if(pendingCalls != null && deferUntilInitialized(new Runnable() {
+			@Override
+			public void run() {
+				getApiHandler().forceFlush();
+			}
+		})) {
+			return false;
+		}
+		return getApiHandler().forceFlush();
+	}
+	
+	/**
+	 * Gets stats about the data this client's write key has sent to the Calq API server, such
+	 * as how much bandwidth is being saved by compression (see <tt>io.calq.android.config.gzipUploads</tt>).
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 */
+	public UploadStats getUploadStats() {
+		awaitInitialization();
+		return getApiHandler().getUploadStats();
+	}
+	
+	/**
+	 * Gets stats about how big the batches this client sends are, including the current target
+	 * batch size and the round trip times and failure rate it was chosen from.
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 */
+	public AdaptiveBatchSizer getBatchSizer() {
+		awaitInitialization();
+		return getApiHandler().getBatchSizer();
+	}
+	
+	/**
+	 * Gets the scheduler deciding when failed sends to the Calq API server are retried, including
+	 * the state of its circuit breaker (which stops us trying while the server can't be reached).
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 */
+	public RetryScheduler getRetryScheduler() {
+		awaitInitialization();
+		return getApiHandler().getRetryScheduler();
+	}
+	
+	/**
+	 * Gets counts of calls that were dropped without being sent because the queue on disk was
+	 * full (see <tt>io.calq.android.config.maxQueueCount</tt> and <tt>maxQueueBytes</tt>), or
+	 * because they were queued for too long (see <tt>io.calq.android.config.queueTtlHours</tt>).
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 */
+	public EvictionStats getEvictionStats() {
+		awaitInitialization();
+		return getApiHandler().getEvictionStats();
+	}
+	
+	/**
+	 * Gets the number of calls the Calq API server rejected that are being kept aside (see
+	 * <tt>io.calq.android.config.deadLetterMaxCount</tt> and <tt>deadLetterMaxAgeDays</tt>).
+	 * This doesn't wait for any flush in progress.
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 */
+	public long getDeadLetterCount() {
+		awaitInitialization();
+		return getApiHandler().getDeadLetterCount();
+	}
+	
+	/**
+	 * Exports the calls the Calq API server rejected that are being kept aside, oldest first,
+	 * along with the error given. This doesn't wait for any flush in progress.
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 */
+	public List<DeadLetter> exportDeadLetters() {
+		awaitInitialization();
+		return getApiHandler().getDeadLetters();
+	}
+	
+	/**
+	 * Puts the calls the Calq API server rejected back on the queue to be sent again (such as
+	 * after a server side fix). This doesn't wait for any flush in progress.
+	 * 
+	 * <p>Blocks until this client has finished loading.
+	 * 
+	 * @return the number of calls requeued.
+	 */
+	public int requeueDeadLetters() {
+		awaitInitialization();
+		return getApiHandler().requeueDeadLetters();
 	}
 	
 	/**
@@ -400,6 +867,18 @@ public class CalqClient {
 	 * @param context		Context used to get device info from.
 	 */
 	public void populateDeviceInfo(Context context) {
+		Map<String, Object> deviceProperties = getDeviceProperties(context);
+		synchronized(lock) {
+			globalProperties = globalProperties.withAll(deviceProperties);
+		}
+	}
+	
+	/**
+	 * Reads the default device information for the global properties.
+	 * 
+	 * @param context		Context used to get device info from.
+	 */
+	private static Map<String, Object> getDeviceProperties(Context context) {
 		// Resolution values
 		WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
 		Display display = wm.getDefaultDisplay();
@@ -429,12 +908,14 @@ public class CalqClient {
 			agent.append(osArch);
 		}
 		
+		Map<String, Object> deviceProperties = new Hashtable<String, Object>();
 		if(agent.length() > 0) {
-			globalProperties.put(ReservedActionProperties.DEVICE_AGENT, agent.toString());
+			deviceProperties.put(ReservedActionProperties.DEVICE_AGENT, agent.toString());
 		}
-		globalProperties.put(ReservedActionProperties.DEVICE_OS, "Android");
-		globalProperties.put(ReservedActionProperties.DEVICE_RESOLUTION, Integer.toString(width) + "x" + Integer.toString(height));
-		globalProperties.put(ReservedActionProperties.DEVICE_MOBILE, true);
+		deviceProperties.put(ReservedActionProperties.DEVICE_OS, "Android");
+		deviceProperties.put(ReservedActionProperties.DEVICE_RESOLUTION, Integer.toString(width) + "x" + Integer.toString(height));
+		deviceProperties.put(ReservedActionProperties.DEVICE_MOBILE, true);
+		return deviceProperties;
 	}
 	
 	/**
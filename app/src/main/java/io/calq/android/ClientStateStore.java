@@ -15,19 +15,81 @@
 
 package io.calq.android;
 
+import io.calq.android.analytics.GlobalProperties;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 /**
  * Class handling the persistence of client state to the local device. This
  * is used to store CalqClient properties between sessions (such as the user
  * id and any global properties).
+ * 
+ * <p>State is written behind: {@link #persistState(CalqClient)} only takes a snapshot of
+ * the state and a background thread writes it to storage. If the state changes several
+ * times before the write happens, only the latest snapshot is written. Snapshots are
+ * always written in the order they were taken, so storage never goes back to an older
+ * state. Call {@link #flush()} to write anything pending straight away.
+ * 
+ * <p>Only global properties that changed since the last write are written (or removed).
+ * Values keep their type: booleans and whole numbers use the matching SharedPreferences
+ * type, and numbers SharedPreferences can't hold exactly (such as BigDecimal) are stored as
+ * strings alongside a note of their type.
  */
 public class ClientStateStore {
 	
+	private static final String TAG = "ClientStateStore";
+	
+	/**
+	 * Latest state waiting to be written (null if none). Every store writes the same
+	 * preferences, so this is shared by all of them.
+	 */
+	private static final AtomicReference<PendingState> pendingState = new AtomicReference<PendingState>();
+	
+	/**
+	 * Lock held while writing state. Pending state is only taken while holding this, so
+	 * an older snapshot can never be written after a newer one.
+	 */
+	private static final Object writeLock = new Object();
+	
+	/**
+	 * The state last written (null if not known, such as after a failed write). Used to
+	 * work out what changed. Guarded by writeLock.
+	 */
+	private static PendingState lastWrittenState;
+	
+	/**
+	 * Thread shared by all stores to write state on.
+	 */
+	private static ExecutorService sharedWriteExecutor;
+	
+	/**
+	 * Executor this store writes state on.
+	 */
+	private final Executor writeExecutor;
+	
+	/**
+	 * Task that writes whatever state is pending.
+	 */
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	
 	/**
 	 * The shared properties representing client state (actor, isAnon etc).
 	 */
@@ -38,6 +100,11 @@ public class ClientStateStore {
 	 */
 	private SharedPreferences globalPropertyPreferences;
 	
+	/**
+	 * The types of global properties stored as strings that aren't really strings.
+	 */
+	private SharedPreferences globalPropertyTypePreferences;
+	
 	/**
 	 * Creates a new ClientStateStore from the given Context.
 	 * 
@@ -49,8 +116,20 @@ public class ClientStateStore {
 	 * 		This should always be application context and not an activity context.
 	 */
 	public ClientStateStore(Context appContext) {
+		this(appContext, getSharedWriteExecutor());
+	}
+	
+	/**
+	 * Creates a new ClientStateStore which writes state on the given executor.
+	 * 
+	 * @param appContext		The application context used to access app storage.
+	 * @param writeExecutor		The executor to write state on.
+	 */
+	ClientStateStore(Context appContext, Executor writeExecutor) {
+		this.writeExecutor = writeExecutor;
 		statePreferences = appContext.getSharedPreferences(ClientStateStore.SHAREDPREFERENCES_STATE, Context.MODE_PRIVATE);
 		globalPropertyPreferences = appContext.getSharedPreferences(ClientStateStore.SHAREDPREFERENCES_GLOBALPROPERTIES, Context.MODE_PRIVATE);
+		globalPropertyTypePreferences = appContext.getSharedPreferences(ClientStateStore.SHAREDPREFERENCES_GLOBALPROPERTY_TYPES, Context.MODE_PRIVATE);
 	}
 	
 	/**
@@ -58,8 +137,9 @@ public class ClientStateStore {
 	 * 
 	 * @param client	The instance to load local state into.
 	 */
-	@SuppressWarnings("unchecked")
 	public boolean loadState(CalqClient client) {
+		flush();	// Make sure we read the latest state
+		
 		if(!statePreferences.contains(ClientStateStore.STATEKEY_ACTOR)) {
 			return false;	// No previous state
 		}
@@ -68,29 +148,247 @@ public class ClientStateStore {
 		client.isAnon = statePreferences.getBoolean(ClientStateStore.STATEKEY_IS_ANON, client.isAnon);
 		client.hasTracked = statePreferences.getBoolean(ClientStateStore.STATEKEY_HAS_TRACKED, client.hasTracked);
 		
-		client.globalProperties = (Map<String, Object>) globalPropertyPreferences.getAll();
+		client.globalProperties = readGlobalProperties();
 		
 		return true;
 	}
 	
 	/**
-	 * Persists the given client state to local storage.
+	 * Reads the stored global properties, as the types they were stored as.
+	 */
+	private GlobalProperties readGlobalProperties() {
+		Map<String, ?> stored = globalPropertyPreferences.getAll();
+		Map<String, ?> types = globalPropertyTypePreferences.getAll();
+		Map<String, Object> properties = new HashMap<String, Object>(stored.size());
+		for(Entry<String, ?> entry : stored.entrySet()) {
+			Object value = entry.getValue();
+			Object type = types.get(entry.getKey());
+			if(type != null && value instanceof String) {
+				value = decodeValue((String) value, type.toString());
+			}
+			if(value != null) {
+				properties.put(entry.getKey(), value);
+			}
+		}
+		return GlobalProperties.EMPTY.withAll(properties);
+	}
+	
+	/**
+	 * Persists the given client state to local storage. The state is captured now, but
+	 * written in the background.
 	 * 
 	 * @param client	The client to save state from.
 	 */
 	public void persistState(CalqClient client) {
-		SharedPreferences.Editor editor = statePreferences.edit();
-		editor.putString(ClientStateStore.STATEKEY_ACTOR, client.actor);
-		editor.putBoolean(ClientStateStore.STATEKEY_IS_ANON, client.isAnon);
-		editor.putBoolean(ClientStateStore.STATEKEY_HAS_TRACKED, client.hasTracked);
-		editor.commit();
+		PendingState state = new PendingState(this, client.actor, client.isAnon, client.hasTracked, client.globalProperties);
+		if(pendingState.getAndSet(state) == null) {
+			// Nothing was waiting, so nothing was scheduled either
+			writeExecutor.execute(writeTask);
+		}
+		// Else a write is already scheduled, and will pick up this state instead
+	}
+	
+	/**
+	 * Writes any pending state to storage now, on the calling thread. Returns once all
+	 * state persisted so far has been written.
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			PendingState state = pendingState.getAndSet(null);
+			if(state != null) {
+				state.store.write(state);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the given state to storage. Global properties are written first, then the
+	 * state that says there is a previous session to load, so a crash part way through
+	 * never leaves a session pointing at properties that weren't saved. Only what changed
+	 * since the last write is written. Callers must hold writeLock.
+	 */
+	private void write(PendingState state) {
+		PendingState previous = lastWrittenState;
+		if(previous != null && previous.store.globalPropertyPreferences != globalPropertyPreferences) {
+			previous = null;	// Written somewhere else, so tells us nothing
+		}
+		lastWrittenState = null;	// Until we know this write worked
 		
-		// Store all global properties
-		editor = globalPropertyPreferences.edit();
-		for(Entry<String, Object> entry : client.globalProperties.entrySet()) {
-		    editor.putString(entry.getKey(), entry.getValue().toString());
+		boolean written = writeGlobalProperties(previous != null ? previous.globalProperties : readGlobalProperties(),
+				state.globalProperties);
+		
+		if(previous == null || !state.actor.equals(previous.actor) || state.isAnon != previous.isAnon ||
+				state.hasTracked != previous.hasTracked) {
+			SharedPreferences.Editor editor = statePreferences.edit();
+			editor.putString(ClientStateStore.STATEKEY_ACTOR, state.actor);
+			editor.putBoolean(ClientStateStore.STATEKEY_IS_ANON, state.isAnon);
+			editor.putBoolean(ClientStateStore.STATEKEY_HAS_TRACKED, state.hasTracked);
+			if(!editor.commit()) {
+				Log.w(TAG, "Failed to write client state");
+				written = false;
+			}
+		}
+		
+		if(written) {
+			lastWrittenState = state;
+		}
+	}
+	
+	/**
+	 * Writes the global properties that differ between what was stored and what should be
+	 * stored now. Nothing is written if nothing changed.
+	 * 
+	 * @return true if written (or nothing needed writing), false if a write failed.
+	 */
+	private boolean writeGlobalProperties(GlobalProperties stored, GlobalProperties properties) {
+		if(stored == properties) {
+			return true;	// Same snapshot, so can't have changed
+		}
+		
+		SharedPreferences.Editor editor = null;
+		SharedPreferences.Editor typeEditor = null;
+		for(Entry<String, Object> entry : properties.asMap().entrySet()) {
+			Object previous = stored.get(entry.getKey());
+			Object value = entry.getValue();
+			if(value.equals(previous)) {
+				continue;
+			}
+			
+			if(editor == null) {
+				editor = globalPropertyPreferences.edit();
+			}
+			String type = putValue(editor, entry.getKey(), value);
+			String previousType = previous != null ? getStoredType(previous) : null;
+			if(type != null ? !type.equals(previousType) : previousType != null) {
+				if(typeEditor == null) {
+					typeEditor = globalPropertyTypePreferences.edit();
+				}
+				if(type != null) {
+					typeEditor.putString(entry.getKey(), type);
+				} else {
+					typeEditor.remove(entry.getKey());
+				}
+			}
+		}
+		for(String property : stored.asMap().keySet()) {
+			if(!properties.containsKey(property)) {
+				if(editor == null) {
+					editor = globalPropertyPreferences.edit();
+				}
+				editor.remove(property);
+				if(getStoredType(stored.get(property)) != null) {
+					if(typeEditor == null) {
+						typeEditor = globalPropertyTypePreferences.edit();
+					}
+					typeEditor.remove(property);
+				}
+			}
+		}
+		
+		// Types first. If only they make it, values that don't parse as their type are
+		//	read back as the strings they were stored as
+		boolean written = true;
+		if(typeEditor != null && !typeEditor.commit()) {
+			written = false;
+		}
+		if(editor != null && !editor.commit()) {
+			written = false;
+		}
+		if(!written) {
+			Log.w(TAG, "Failed to write global properties");
+		}
+		return written;
+	}
+	
+	/**
+	 * Puts a global property value in the given editor, using the SharedPreferences type that
+	 * matches it where there is one.
+	 * 
+	 * @return the type the value needs noting as (null if it is stored as its own type).
+	 */
+	private static String putValue(SharedPreferences.Editor editor, String property, Object value) {
+		if(value instanceof Boolean) {
+			editor.putBoolean(property, (Boolean) value);
+		} else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			editor.putInt(property, ((Number) value).intValue());
+		} else if(value instanceof Long) {
+			editor.putLong(property, (Long) value);
+		} else if(value instanceof Float) {
+			editor.putFloat(property, (Float) value);
+		} else {
+			editor.putString(property, value.toString());
+		}
+		return getStoredType(value);
+	}
+	
+	/**
+	 * Gets the type noted for a value stored as a string that isn't really a string (null if
+	 * the value is stored as its own type, or really is a string).
+	 */
+	private static String getStoredType(Object value) {
+		if(value instanceof BigDecimal) {
+			return TYPE_BIG_DECIMAL;
+		} else if(value instanceof BigInteger) {
+			return TYPE_BIG_INTEGER;
+		} else if(value instanceof Double) {
+			return TYPE_DOUBLE;
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads a value stored as a string back as the type noted for it. Values that don't
+	 * parse are returned as the string.
+	 */
+	private static Object decodeValue(String value, String type) {
+		try {
+			if(TYPE_BIG_DECIMAL.equals(type)) {
+				return new BigDecimal(value);
+			} else if(TYPE_BIG_INTEGER.equals(type)) {
+				return new BigInteger(value);
+			} else if(TYPE_DOUBLE.equals(type)) {
+				return Double.valueOf(value);
+			}
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Stored global property '" + value + "' is not a valid " + type);
+		}
+		return value;
+	}
+	
+	/**
+	 * Gets (or creates) the thread shared by all stores to write state on.
+	 */
+	private static synchronized ExecutorService getSharedWriteExecutor() {
+		if(sharedWriteExecutor == null) {
+			sharedWriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedWriteExecutor;
+	}
+	
+	/**
+	 * Snapshot of client state waiting to be written.
+	 */
+	private static class PendingState {
+		final ClientStateStore store;
+		final String actor;
+		final boolean isAnon;
+		final boolean hasTracked;
+		final GlobalProperties globalProperties;
+		
+		PendingState(ClientStateStore store, String actor, boolean isAnon, boolean hasTracked, GlobalProperties globalProperties) {
+			this.store = store;
+			this.actor = actor;
+			this.isAnon = isAnon;
+			this.hasTracked = hasTracked;
+			this.globalProperties = globalProperties;
 		}
-		editor.commit();
 	}
 	
 	/**
@@ -103,6 +401,15 @@ public class ClientStateStore {
 	 */
 	private static final String SHAREDPREFERENCES_GLOBALPROPERTIES = "calq_global_props";
 	
+	/**
+	 * Name of shared preferences holding the types of global properties stored as strings.
+	 */
+	private static final String SHAREDPREFERENCES_GLOBALPROPERTY_TYPES = "calq_global_prop_types";
+	
+	private static final String TYPE_BIG_DECIMAL = "BigDecimal";
+	private static final String TYPE_BIG_INTEGER = "BigInteger";
+	private static final String TYPE_DOUBLE = "Double";
+	
 	private static final String STATEKEY_ACTOR = "actor";
 	private static final String STATEKEY_IS_ANON = "isAnon";
 	private static final String STATEKEY_HAS_TRACKED = "hasTracked";
@@ -15,6 +15,8 @@
 
 package io.calq.android;
 
+import io.calq.android.analytics.EvictionPolicy;
+
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -89,6 +91,31 @@ public class LocalConfig {
 		remoteApiServerUrl = getStringWithDefault(configBundle, "io.calq.android.config.remoteApiServerUrl", remoteApiServerUrl);
 		
 		remoteFlushDelaySeconds = getRangeRestrictedInt(configBundle, "io.calq.android.config.remoteFlushDelaySeconds", remoteFlushDelaySeconds, 5, 120);
+		remoteConnectTimeoutSeconds = getRangeRestrictedInt(configBundle, "io.calq.android.config.remoteConnectTimeoutSeconds", remoteConnectTimeoutSeconds, 1, 120);
+		remoteReadTimeoutSeconds = getRangeRestrictedInt(configBundle, "io.calq.android.config.remoteReadTimeoutSeconds", remoteReadTimeoutSeconds, 1, 300);
+		
+		gzipUploads = configBundle.getBoolean("io.calq.android.config.gzipUploads", gzipUploads);
+		gzipThresholdBytes = getRangeRestrictedInt(configBundle, "io.calq.android.config.gzipThresholdBytes", gzipThresholdBytes, 1, 1024 * 1024);
+		
+		multiplexBatches = configBundle.getBoolean("io.calq.android.config.multiplexBatches", multiplexBatches);
+		maxInFlightBatches = getRangeRestrictedInt(configBundle, "io.calq.android.config.maxInFlightBatches", maxInFlightBatches, 1, 16);
+		
+		retryMaxDelaySeconds = getRangeRestrictedInt(configBundle, "io.calq.android.config.retryMaxDelaySeconds", retryMaxDelaySeconds, 30, 3600);
+		circuitBreakerThreshold = getRangeRestrictedInt(configBundle, "io.calq.android.config.circuitBreakerThreshold", circuitBreakerThreshold, 1, 50);
+		
+		deadLetterMaxCount = getRangeRestrictedInt(configBundle, "io.calq.android.config.deadLetterMaxCount", deadLetterMaxCount, 1, 10000);
+		deadLetterMaxAgeDays = getRangeRestrictedInt(configBundle, "io.calq.android.config.deadLetterMaxAgeDays", deadLetterMaxAgeDays, 1, 90);
+		
+		maxQueueCount = getRangeRestrictedInt(configBundle, "io.calq.android.config.maxQueueCount", maxQueueCount, 100, 1000000);
+		maxQueueBytes = getRangeRestrictedInt(configBundle, "io.calq.android.config.maxQueueBytes", maxQueueBytes, 64 * 1024, 512 * 1024 * 1024);
+		queueTtlHours = getRangeRestrictedInt(configBundle, "io.calq.android.config.queueTtlHours", queueTtlHours, 1, 90 * 24);
+		String policy = getStringWithDefault(configBundle, "io.calq.android.config.queueEvictionPolicy", queueEvictionPolicy.getConfigValue());
+		if(EvictionPolicy.fromConfigValue(policy) != null) {
+			queueEvictionPolicy = EvictionPolicy.fromConfigValue(policy);
+		} else {
+			Log.w(TAG, "Invalid setting of '" + policy + "' given for config key 'io.calq.android.config.queueEvictionPolicy'. " +
+					"Value should be drop_oldest, drop_newest or priority");
+		}
 	}
 	
 	/**
@@ -150,6 +177,140 @@ public class LocalConfig {
 	 */
 	public String getRemoteApiServerUrl() { return remoteApiServerUrl; }
 	protected String remoteApiServerUrl = "https://api.calq.io/";
+
+	/**
+	 * Gets the timeout used when opening a connection to the remote API server (in seconds).
+	 * Should be between 1 and 120s.
+	 * 
+	 * <p>Set by key: io.calq.android.config.remoteConnectTimeoutSeconds
+	 */
+	public int getRemoteConnectTimeoutSeconds() { return remoteConnectTimeoutSeconds; }
+	protected int remoteConnectTimeoutSeconds = 15;
+
+	/**
+	 * Gets the timeout used when waiting for a response from the remote API server (in seconds).
+	 * Should be between 1 and 300s.
+	 * 
+	 * <p>Set by key: io.calq.android.config.remoteReadTimeoutSeconds
+	 */
+	public int getRemoteReadTimeoutSeconds() { return remoteReadTimeoutSeconds; }
+	protected int remoteReadTimeoutSeconds = 30;
+
+	/**
+	 * Gets whether batches sent to the remote API server should be gzip compressed
+	 * (sent with <tt>Content-Encoding: gzip</tt>).
+	 * 
+	 * <p>Set by key: io.calq.android.config.gzipUploads
+	 */
+	public boolean isGzipUploads() { return gzipUploads; }
+	protected boolean gzipUploads = false;
+
+	/**
+	 * Gets the size (in bytes) a request body must reach before it is gzip compressed.
+	 * Smaller bodies are sent as is. Only used if {@link #isGzipUploads()} is enabled.
+	 * 
+	 * <p>Set by key: io.calq.android.config.gzipThresholdBytes
+	 */
+	public int getGzipThresholdBytes() { return gzipThresholdBytes; }
+	protected int gzipThresholdBytes = 1024;
+
+	/**
+	 * Gets whether calls to different endpoints (Track, Profile, Transfer) can be sent together
+	 * in a single multiplexed batch to the Batch endpoint. When disabled a batch is only ever
+	 * a run of Track calls, and other calls are sent one per request.
+	 * 
+	 * <p>Set by key: io.calq.android.config.multiplexBatches
+	 */
+	public boolean isMultiplexBatches() { return multiplexBatches; }
+	protected boolean multiplexBatches = false;
+	
+	/**
+	 * Gets the max number of batches that can be in flight to the API server at once. Calls
+	 * for the same actor are never in flight at the same time, so are never reordered.
+	 * Should be between 1 (send one batch at a time) and 16.
+	 * 
+	 * <p>Set by key: io.calq.android.config.maxInFlightBatches
+	 */
+	public int getMaxInFlightBatches() { return maxInFlightBatches; }
+	protected int maxInFlightBatches = 4;
+	
+	/**
+	 * Gets the max delay between retries after flushes to the API server fail (in seconds).
+	 * Retries back off exponentially (with random jitter) up to this. Should be between 30
+	 * and 3600s.
+	 * 
+	 * <p>Set by key: io.calq.android.config.retryMaxDelaySeconds
+	 */
+	public int getRetryMaxDelaySeconds() { return retryMaxDelaySeconds; }
+	protected int retryMaxDelaySeconds = 900;
+	
+	/**
+	 * Gets the number of flushes that must fail in a row before we stop trying to reach the
+	 * API server (other than a single probe batch after each retry delay). Should be between
+	 * 1 and 50.
+	 * 
+	 * <p>Set by key: io.calq.android.config.circuitBreakerThreshold
+	 */
+	public int getCircuitBreakerThreshold() { return circuitBreakerThreshold; }
+	protected int circuitBreakerThreshold = 5;
+	
+	/**
+	 * Gets the max number of calls rejected by the API server that are kept (in the dead
+	 * letter table) for inspection or requeueing. Oldest are removed first. Should be
+	 * between 1 and 10000.
+	 * 
+	 * <p>Set by key: io.calq.android.config.deadLetterMaxCount
+	 */
+	public int getDeadLetterMaxCount() { return deadLetterMaxCount; }
+	protected int deadLetterMaxCount = 500;
+	
+	/**
+	 * Gets how long calls rejected by the API server are kept (in days). Should be between
+	 * 1 and 90 days.
+	 * 
+	 * <p>Set by key: io.calq.android.config.deadLetterMaxAgeDays
+	 */
+	public int getDeadLetterMaxAgeDays() { return deadLetterMaxAgeDays; }
+	protected int deadLetterMaxAgeDays = 7;
+	
+	/**
+	 * Gets the max number of calls kept queued on disk (for all write keys). Beyond this calls
+	 * are evicted according to {@link #getQueueEvictionPolicy()}. Should be between 100 and
+	 * 1000000.
+	 * 
+	 * <p>Set by key: io.calq.android.config.maxQueueCount
+	 */
+	public int getMaxQueueCount() { return maxQueueCount; }
+	protected int maxQueueCount = 20000;
+	
+	/**
+	 * Gets the max total size of calls kept queued on disk (in bytes, for all write keys).
+	 * Beyond this calls are evicted according to {@link #getQueueEvictionPolicy()}. Should
+	 * be between 64KB and 512MB.
+	 * 
+	 * <p>Set by key: io.calq.android.config.maxQueueBytes
+	 */
+	public int getMaxQueueBytes() { return maxQueueBytes; }
+	protected int maxQueueBytes = 20 * 1024 * 1024;
+	
+	/**
+	 * Gets how long a call can stay queued on disk before it expires and is dropped without
+	 * being sent (in hours). Should be between 1 hour and 90 days.
+	 * 
+	 * <p>Set by key: io.calq.android.config.queueTtlHours
+	 */
+	public int getQueueTtlHours() { return queueTtlHours; }
+	protected int queueTtlHours = 14 * 24;
+	
+	/**
+	 * Gets how calls are chosen for eviction when the queue on disk is full. One of
+	 * drop_oldest, drop_newest or priority (sheds plain tracks before sales, profiles and
+	 * transfers).
+	 * 
+	 * <p>Set by key: io.calq.android.config.queueEvictionPolicy
+	 */
+	public EvictionPolicy getQueueEvictionPolicy() { return queueEvictionPolicy; }
+	protected EvictionPolicy queueEvictionPolicy = EvictionPolicy.DROP_OLDEST;
 	
 	
 	
@@ -14,18 +14,31 @@
  */
 package io.calq.android.analytics;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.util.Log;
-
 /**
  * Base class of all API calls.
  *
  */
 public abstract class AbstractAnalyticsApiCall {
 	
-	private static final String TAG = "AbstractAnalyticsApiCal";    // Truncate for 23 letters
+	/**
+	 * Writer used to build payloads, one per thread so its buffer is reused between calls.
+	 */
+	private static final ThreadLocal<JsonPayloadWriter> payloadWriter = new ThreadLocal<JsonPayloadWriter>() {
+		@Override
+		protected JsonPayloadWriter initialValue() {
+			return new JsonPayloadWriter();
+		}
+	};
+	
+	/**
+	 * Priority of calls that are shed first when the queue is full (such as plain tracks).
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+	
+	/**
+	 * Priority of calls that are kept over others when the queue is full (such as sales).
+	 */
+	public static final int PRIORITY_HIGH = 1;
 	
 	/**
 	 * The write key to use for this API call.
@@ -53,28 +66,45 @@ public abstract class AbstractAnalyticsApiCall {
 	public abstract String getApiEndpoint();
 	
 	/**
-	 * Builds a JSON payload describing this API call. This is what will ultimately be passed
-	 * to the API server for this call.
+	 * Writes the properties of the JSON payload describing this API call. This is what will
+	 * ultimately be passed to the API server for this call. The enclosing object has already
+	 * been started (and will be ended) by the caller.
 	 * 
-	 * @return a JSON payload to pass to the API server.
+	 * @param writer		The writer to write the payload's properties to.
 	 */
-	protected JSONObject buildJSONPayload() {
-		JSONObject jsonObject = new JSONObject();
-		try {
-			jsonObject.put(ReservedApiProperties.ACTOR, actor);
-			jsonObject.put(ReservedApiProperties.WRITE_KEY, writeKey);
-		} catch (JSONException e) {
-			// This shouldn't be happening! Should be sanitized already
-			Log.e(TAG, "Error setting JSON values", e);
-		}
-		return jsonObject;
+	protected void writePayload(JsonPayloadWriter writer) {
+		writer.name(ReservedApiProperties.ACTOR).value(actor);
+		writer.name(ReservedApiProperties.WRITE_KEY).value(writeKey);
 	}
 	
 	/**
 	 * Returns a JSON payload in string form to be sent to the API server for this call.
 	 */
 	public String getPayload() {
-		return buildJSONPayload().toString();
+		JsonPayloadWriter writer = payloadWriter.get().reset();
+		writer.beginObject();
+		writePayload(writer);
+		writer.endObject();
+		return writer.toString();
+	}
+	
+	/**
+	 * Gets the actor this call must be kept in order with when calls are sent in parallel.
+	 * Calls for different actors can be reordered relative to each other.
+	 * 
+	 * @return the actor, or null if this call must be kept in order with every other call.
+	 */
+	public String getOrderingActor() {
+		return actor;
+	}
+	
+	/**
+	 * Gets the priority of this call, used to decide what to keep when the queue is full.
+	 * 
+	 * @return {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+	 */
+	public int getPriority() {
+		return PRIORITY_NORMAL;
 	}
 	
 	/**
@@ -15,39 +15,44 @@
 
 package io.calq.android.analytics;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TimeZone;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.util.Log;
 
 
+/**
+ * API call describing an action. Everything about the action is captured when this is
+ * created, so the caller is free to reuse or change its properties map afterwards. Nothing
+ * is serialized until the payload is needed (on the background thread).
+ */
 public class ActionApiCall extends AbstractAnalyticsApiCall {
-	
-	private static final String TAG = "ActionApiCall";
 
     public static final String ENDPOINT = "Track";
 	
 	/**
-	 * The date time of when this call was created (wrapped as UTC unix epoch offset).
+	 * The time this call was created (as a unix epoch offset in MS).
 	 */
-	protected Date createdAt;
+	protected final long createdAt;
 	
 	/**
 	 * The action being performed.
 	 */
-	protected String action;
+	protected final String action;
+	
+	/**
+	 * The global properties in effect when this action was tracked.
+	 */
+	protected final GlobalProperties globalProperties;
+	
+	/**
+	 * Names of the custom properties sent with this action. These take precedence over any
+	 * global properties with the same name.
+	 */
+	protected final String[] propertyNames;
 	
 	/**
-	 * The custom properties sent with this action.
+	 * Values of the custom properties sent with this action (same order as the names).
 	 */
-	protected  Map<String, Object> properties;
+	protected final Object[] propertyValues;
 
 	/**
 	 * Creates a new ActionApiCall describing an action. This will be passed to the
@@ -59,15 +64,71 @@ public class ActionApiCall extends AbstractAnalyticsApiCall {
 	 * @param writeKey			The write key to use for this API call.
 	 */
 	public ActionApiCall(String actor, String action, Map<String, Object> properties, String writeKey) {
+		this(actor, action, GlobalProperties.EMPTY, properties, writeKey);
+	}
+	
+	/**
+	 * Creates a new ActionApiCall describing an action along with the global properties
+	 * in effect. The two are only merged when the payload is built.
+	 * 
+	 * @param actor				The actor performing this action.
+	 * @param action			The action being performed.
+	 * @param globalProperties	Snapshot of the global properties to send with this action.
+	 * @param properties		Any custom properties related to this action. Can be empty, but not null.
+	 * @param writeKey			The write key to use for this API call.
+	 */
+	public ActionApiCall(String actor, String action, GlobalProperties globalProperties, Map<String, Object> properties, String writeKey) {
+		this(actor, action, globalProperties, properties, writeKey, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Creates a new ActionApiCall describing an action that happened at the given time (such
+	 * as one tracked before the client had finished initializing).
+	 * 
+	 * @param actor				The actor performing this action.
+	 * @param action			The action being performed.
+	 * @param globalProperties	Snapshot of the global properties to send with this action.
+	 * @param properties		Any custom properties related to this action. Can be empty, but not null.
+	 * @param writeKey			The write key to use for this API call.
+	 * @param createdAt			When the action happened (as a unix epoch offset in MS).
+	 */
+	public ActionApiCall(String actor, String action, GlobalProperties globalProperties, Map<String, Object> properties, String writeKey, long createdAt) {
 		super(actor, writeKey);
 		
 		if(properties == null) {
 			throw(new IllegalArgumentException("A properties value must be passed to the ActionApiCall ctor. Can be empty."));
 		}
-		this.properties = properties;
+		if(globalProperties == null) {
+			throw(new IllegalArgumentException("A globalProperties value must be passed to the ActionApiCall ctor. Can be empty."));
+		}
+		this.globalProperties = globalProperties;
 		this.action = action;
 		
-		createdAt = new Date();
+		// Capture the properties as they are now. Cheaper than copying to another map
+		String[] names = new String[properties.size()];
+		Object[] values = new Object[names.length];
+		int count = 0;
+		for(Entry<String, Object> entry : properties.entrySet()) {
+			if(count == names.length) {
+				break;	// Arrays are sized from a snapshot of size(), so never read past it
+			}
+			names[count] = entry.getKey();
+			values[count] = entry.getValue();
+			count++;
+		}
+		if(count < names.length) {
+			// Map had fewer entries than its size() said, so don't keep empty slots
+			String[] trimmedNames = new String[count];
+			Object[] trimmedValues = new Object[count];
+			System.arraycopy(names, 0, trimmedNames, 0, count);
+			System.arraycopy(values, 0, trimmedValues, 0, count);
+			names = trimmedNames;
+			values = trimmedValues;
+		}
+		this.propertyNames = names;
+		this.propertyValues = values;
+		
+		this.createdAt = createdAt;
 	}
 	
 	/**
@@ -77,32 +138,52 @@ public class ActionApiCall extends AbstractAnalyticsApiCall {
 		return ENDPOINT;
 	}
 	
+	/**
+	 * Sales are kept over plain tracks when the queue is full.
+	 */
+	@Override
+	public int getPriority() {
+		if(hasProperty(ReservedActionProperties.SALE_VALUE)) {
+			return PRIORITY_HIGH;
+		}
+		return globalProperties.containsKey(ReservedActionProperties.SALE_VALUE) ? PRIORITY_HIGH : PRIORITY_NORMAL;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected JSONObject buildJSONPayload() {
-		JSONObject jsonObject = super.buildJSONPayload();
-		try {
-			// Get date formatted as UTC
-			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US);
-			df.setTimeZone(TimeZone.getTimeZone("UTC"));
-			String utcTime = df.format(createdAt);
-			
-			// Build properties into object
-			JSONObject jsonPropeties = new JSONObject();
-			for(Entry<String, Object> entry : properties.entrySet()) {
-				jsonPropeties.put(entry.getKey(), entry.getValue());
+	protected void writePayload(JsonPayloadWriter writer) {
+		super.writePayload(writer);
+		writer.name(ReservedApiProperties.TIMESTAMP).value(UtcTimestampFormatter.format(createdAt));
+		writer.name(ReservedApiProperties.ACTION_NAME).value(action);
+		
+		// Globals first, skipping any we have our own value for (there are only ever a few
+		//	of our own, so a scan is cheaper than building a set)
+		writer.name(ReservedApiProperties.USER_PROPERTIES).beginObject();
+		for(Entry<String, Object> entry : globalProperties.asMap().entrySet()) {
+			if(entry.getKey() != null && !hasProperty(entry.getKey())) {
+				writer.name(entry.getKey()).value(entry.getValue());
+			}
+		}
+		for(int n = 0; n < propertyNames.length; n++) {
+			if(propertyNames[n] != null) {
+				writer.name(propertyNames[n]).value(propertyValues[n]);
+			}
+		}
+		writer.endObject();
+	}
+	
+	/**
+	 * Gets whether this action has its own value for the given property.
+	 */
+	private boolean hasProperty(String name) {
+		for(String propertyName : propertyNames) {
+			if(name.equals(propertyName)) {
+				return true;
 			}
-			
-			jsonObject.put(ReservedApiProperties.TIMESTAMP, utcTime);
-			jsonObject.put(ReservedApiProperties.ACTION_NAME, action);
-			jsonObject.put(ReservedApiProperties.USER_PROPERTIES, jsonPropeties);
-		} catch (JSONException e) {
-			// This shouldn't be happening! Should be sanitized already
-			Log.e(TAG, "Error setting JSON values", e);
 		}
-		return jsonObject;
+		return false;
 	}
 
 	
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+/**
+ * Chooses how many bytes of queued calls to send per batch. Payload sizes vary a lot, so a
+ * fixed count of calls can mean a few KB or several MB per request.
+ * 
+ * <p>The target size adapts to how requests are going. Failures (timeouts, network errors and
+ * 5xx responses) halve it and slow responses shrink it, while fast successes grow it again.
+ * While the recent failure rate is high, successes don't grow it (a flaky connection that
+ * lets the odd request through shouldn't undo the shrinking). The current choice and the
+ * measurements behind it can be read for stats.
+ * 
+ * <p>This class is thread safe.
+ */
+public class AdaptiveBatchSizer {
+
+	/**
+	 * Smallest target we will shrink to (in bytes). A batch always holds at least one call
+	 * however big it is.
+	 */
+	public static final int MIN_TARGET_BYTES = 4 * 1024;
+
+	/**
+	 * Largest target we will grow to (in bytes).
+	 */
+	public static final int MAX_TARGET_BYTES = 512 * 1024;
+
+	/**
+	 * Target used until we have measured anything (in bytes).
+	 */
+	public static final int INITIAL_TARGET_BYTES = 64 * 1024;
+
+	/**
+	 * Round trips at or under this are fast enough to try bigger batches (in MS).
+	 */
+	public static final long FAST_ROUND_TRIP_MS = 1500;
+
+	/**
+	 * Round trips at or over this are slow enough to try smaller batches (in MS).
+	 */
+	public static final long SLOW_ROUND_TRIP_MS = 5000;
+
+	/**
+	 * Failure rate above which successes no longer grow the target.
+	 */
+	public static final double HIGH_FAILURE_RATE = 0.25;
+
+	/**
+	 * Weight given to the newest sample in the moving averages.
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	private int targetBytes = INITIAL_TARGET_BYTES;
+	private double averageRoundTripMs = 0;
+	private double failureRate = 0;
+	private long successes;
+	private long failures;
+
+	/**
+	 * Records a batch that was delivered.
+	 * 
+	 * @param roundTripMs		How long the request took (in MS).
+	 * @param batchBytes		The size of the batch that was sent (in bytes).
+	 */
+	public synchronized void onSuccess(long roundTripMs, long batchBytes) {
+		successes++;
+		averageRoundTripMs = successes == 1 ? roundTripMs : average(averageRoundTripMs, roundTripMs);
+		failureRate = average(failureRate, 0);
+
+		if(roundTripMs >= SLOW_ROUND_TRIP_MS) {
+			targetBytes = Math.max(MIN_TARGET_BYTES, targetBytes * 3 / 4);
+		} else if(roundTripMs <= FAST_ROUND_TRIP_MS && batchBytes * 2 >= targetBytes && failureRate <= HIGH_FAILURE_RATE) {
+			// Only grow if the target was actually what limited this batch, and recent
+			//	batches have mostly been getting through
+			targetBytes = Math.min(MAX_TARGET_BYTES, targetBytes + targetBytes / 2);
+		}
+	}
+
+	/**
+	 * Records a batch that failed to send (timeout, network error or server error).
+	 */
+	public synchronized void onFailure() {
+		failures++;
+		failureRate = average(failureRate, 1);
+		targetBytes = Math.max(MIN_TARGET_BYTES, targetBytes / 2);
+	}
+
+	/**
+	 * Gets the current target batch size (in bytes).
+	 */
+	public synchronized int getTargetBytes() { return targetBytes; }
+
+	/**
+	 * Gets the moving average round trip time of delivered batches (in MS).
+	 */
+	public synchronized long getAverageRoundTripMs() { return Math.round(averageRoundTripMs); }
+
+	/**
+	 * Gets the moving average failure rate (0 when recent batches succeeded, tending to 1
+	 * when they failed).
+	 */
+	public synchronized double getFailureRate() { return failureRate; }
+
+	/**
+	 * Gets the number of batches delivered.
+	 */
+	public synchronized long getSuccesses() { return successes; }
+
+	/**
+	 * Gets the number of batches that failed to send.
+	 */
+	public synchronized long getFailures() { return failures; }
+
+	private static double average(double average, double sample) {
+		return average + SMOOTHING * (sample - average);
+	}
+
+}
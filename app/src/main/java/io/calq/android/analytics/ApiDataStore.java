@@ -21,7 +21,11 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -31,21 +35,33 @@ import java.util.Vector;
  */
 public class ApiDataStore extends SQLiteOpenHelper {
 	
+	private static final String TAG = "ApiDataStore";
+	
     /**
      * Database version for current code base.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 8;
  
     /**
      * Name of the DB.
      */
-    private static final String DATABASE_NAME = "api_queue";
+    static final String DATABASE_NAME = "api_queue";
  
     /**
      * Table name for actual queue.
      */
     private static final String TABLE_QUEUE = "api_queue";
 
+    /**
+     * Index used to read a write key's queue in order.
+     */
+    static final String INDEX_QUEUE_WRITE_KEY = "api_queue_write_key_id";
+
+    /**
+     * Table name for calls rejected by the API server.
+     */
+    static final String TABLE_DEAD_LETTER = "api_dead_letter";
+
     /**
      * Reference to DB once opened.
      */
@@ -56,6 +72,54 @@ public class ApiDataStore extends SQLiteOpenHelper {
      */
     protected SQLiteStatement insert;
 
+    /**
+     * Compiled statement deleting a range of ids for a write key.
+     */
+    protected SQLiteStatement deleteRange;
+
+    /**
+     * Max number of calls queued (across all write keys) before calls are evicted.
+     */
+    protected int maxQueueCount = Integer.MAX_VALUE;
+
+    /**
+     * Max total size of queued payloads (across all write keys) before calls are evicted.
+     */
+    protected long maxQueueBytes = Long.MAX_VALUE;
+
+    /**
+     * How calls are chosen for eviction.
+     */
+    protected EvictionPolicy evictionPolicy = EvictionPolicy.DROP_OLDEST;
+
+    /**
+     * Counts of calls evicted.
+     */
+    protected final EvictionStats evictionStats = new EvictionStats();
+
+    /**
+     * Batches currently being sent (guarded by this store's lock). Eviction and purging leave
+     * these calls alone, so they are only ever removed when the batch is acknowledged.
+     */
+    private final List<InFlightRange> inFlight = new ArrayList<InFlightRange>();
+
+    /**
+     * Max number of calls sent in a single batch.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Default max size of a single batch (in bytes of stored payload).
+     */
+    public static final int MAX_BATCH_BYTES = 512 * 1024;
+
+    /**
+     * Query used to read the next batch (only the columns we need, in a fixed order).
+     */
+    private static final String QUERY_NEXT_BATCH =
+            "SELECT id, endpoint, payload, byte_size, actor FROM " + TABLE_QUEUE +
+            " WHERE write_key = ? AND id > ? ORDER BY id ASC LIMIT " + MAX_BATCH_SIZE;
+
     /**
      * Creates a new instance of the handler. This handler is thread safe.
      * 
@@ -70,6 +134,7 @@ public class ApiDataStore extends SQLiteOpenHelper {
         if(db == null || !db.isOpen()) {
             db = super.getWritableDatabase();
             insert = null;
+            deleteRange = null;
         }
         return db;
     }
@@ -81,21 +146,146 @@ public class ApiDataStore extends SQLiteOpenHelper {
 	 */
 	@Override
 	public void onCreate(SQLiteDatabase db) {
-		String create = 
-			 "CREATE TABLE " + TABLE_QUEUE + "(" +
-				 "id INTEGER PRIMARY KEY," +
-				 "write_key VARCHAR(32)," +
-				 "endpoint VARCHAR(64)," +
-				 "payload TEXT" +
-			 ")";
-		db.execSQL(create);
+		db.execSQL(getCreateQueueTable(TABLE_QUEUE));
+		db.execSQL(CREATE_INDEX_QUEUE_WRITE_KEY);
+		db.execSQL(CREATE_INDEX_QUEUE_PRIORITY);
+		db.execSQL(CREATE_INDEX_QUEUE_CREATED_AT);
+		db.execSQL(getCreateDeadLetterTable(true));
+		db.execSQL(CREATE_INDEX_DEAD_LETTER_WRITE_KEY);
 	}
 
+	/**
+	 * Handles upgrading from a previous version of the schema. Each step falls through to
+	 * the next so any older version is brought fully up to date.
+	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// No upgrades at present
+		switch(oldVersion) {
+			case 1:
+				// v2: Size and enqueue time per call, and an index for reading a key's queue in order
+				db.execSQL("ALTER TABLE " + TABLE_QUEUE + " ADD COLUMN byte_size INTEGER NOT NULL DEFAULT 0");
+				db.execSQL("ALTER TABLE " + TABLE_QUEUE + " ADD COLUMN created_at INTEGER NOT NULL DEFAULT 0");
+				// Char length is close enough for existing rows (payloads are mostly ASCII). Real
+				//	enqueue time isn't known, so treat them as queued now
+				db.execSQL("UPDATE " + TABLE_QUEUE + " SET byte_size = length(payload), created_at = ?",
+						new Object[]{ System.currentTimeMillis() });
+				db.execSQL(CREATE_INDEX_QUEUE_WRITE_KEY);
+			case 2:
+				// v3: Actor each call must be kept in order with. Left NULL for existing rows,
+				//	which keeps them in order with everything
+				db.execSQL("ALTER TABLE " + TABLE_QUEUE + " ADD COLUMN actor TEXT");
+			case 3:
+				// v4: Dead letter table for rejected calls, and attempts carried over when requeued
+				db.execSQL("ALTER TABLE " + TABLE_QUEUE + " ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0");
+				db.execSQL(getCreateDeadLetterTable(false));	// Priority is added in v8
+				db.execSQL(CREATE_INDEX_DEAD_LETTER_WRITE_KEY);
+			case 4:
+				// v5: Priority used when evicting from a full queue. Existing rows get the
+				//	priority they would have been given (sales are only known from the payload)
+				db.execSQL("ALTER TABLE " + TABLE_QUEUE + " ADD COLUMN priority INTEGER NOT NULL DEFAULT 0");
+				db.execSQL("UPDATE " + TABLE_QUEUE + " SET priority = ? WHERE endpoint <> ? OR payload LIKE ?",
+						new Object[]{ AbstractAnalyticsApiCall.PRIORITY_HIGH, ActionApiCall.ENDPOINT,
+							"%\"" + ReservedActionProperties.SALE_VALUE + "\"%" });
+				db.execSQL(CREATE_INDEX_QUEUE_PRIORITY);
+			case 5:
+				// v6: Index on enqueue time so expired calls can be purged as a range
+				db.execSQL(CREATE_INDEX_QUEUE_CREATED_AT);
+			case 6:
+				// v7: AUTOINCREMENT ids, so an id removed from the end of the queue is never
+				//	given to a new call (which a batch's range delete could then remove unsent).
+				//	SQLite can't alter the key, so copy into a new table
+				db.execSQL(getCreateQueueTable(TABLE_QUEUE + "_v7"));
+				db.execSQL("INSERT INTO " + TABLE_QUEUE + "_v7 (" + QUEUE_COLUMNS + ") SELECT " + QUEUE_COLUMNS +
+						" FROM " + TABLE_QUEUE);
+				db.execSQL("DROP TABLE " + TABLE_QUEUE);
+				db.execSQL("ALTER TABLE " + TABLE_QUEUE + "_v7 RENAME TO " + TABLE_QUEUE);
+				db.execSQL(CREATE_INDEX_QUEUE_WRITE_KEY);
+				db.execSQL(CREATE_INDEX_QUEUE_PRIORITY);
+				db.execSQL(CREATE_INDEX_QUEUE_CREATED_AT);
+			case 7:
+				// v8: Priority kept with dead letters so it is restored when they are requeued
+				db.execSQL(ADD_DEAD_LETTER_PRIORITY);
+				db.execSQL("UPDATE " + TABLE_DEAD_LETTER + " SET priority = ? WHERE endpoint <> ? OR payload LIKE ?",
+						new Object[]{ AbstractAnalyticsApiCall.PRIORITY_HIGH, ActionApiCall.ENDPOINT,
+							"%\"" + ReservedActionProperties.SALE_VALUE + "\"%" });
+		}
+	}
+	
+	/**
+	 * Every column of the queue table.
+	 */
+	private static final String QUEUE_COLUMNS =
+			"id, write_key, endpoint, payload, byte_size, created_at, actor, attempts, priority";
+	
+	/**
+	 * Gets the statement creating the queue table with the given name.
+	 */
+	private static String getCreateQueueTable(String name) {
+		return "CREATE TABLE " + name + "(" +
+				"id INTEGER PRIMARY KEY AUTOINCREMENT," +
+				"write_key VARCHAR(32)," +
+				"endpoint VARCHAR(64)," +
+				"payload TEXT," +
+				"byte_size INTEGER NOT NULL DEFAULT 0," +
+				"created_at INTEGER NOT NULL DEFAULT 0," +
+				"actor TEXT," +
+				"attempts INTEGER NOT NULL DEFAULT 0," +
+				"priority INTEGER NOT NULL DEFAULT 0" +
+			")";
 	}
 	
+	/**
+	 * Creates the index used to read a write key's queue in order.
+	 */
+	private static final String CREATE_INDEX_QUEUE_WRITE_KEY =
+			"CREATE INDEX IF NOT EXISTS " + INDEX_QUEUE_WRITE_KEY + " ON " + TABLE_QUEUE + " (write_key, id)";
+	
+	/**
+	 * Creates the index used to pick calls to evict by priority.
+	 */
+	private static final String CREATE_INDEX_QUEUE_PRIORITY =
+			"CREATE INDEX IF NOT EXISTS api_queue_priority_id ON " + TABLE_QUEUE + " (priority, id)";
+	
+	/**
+	 * Creates the index used to purge expired calls.
+	 */
+	private static final String CREATE_INDEX_QUEUE_CREATED_AT =
+			"CREATE INDEX IF NOT EXISTS api_queue_created_at ON " + TABLE_QUEUE + " (created_at)";
+	
+	/**
+	 * Gets the statement creating the dead letter table.
+	 * 
+	 * @param withPriority	Whether to include the priority column (false for the v4 table,
+	 * 		which has it added by the v8 upgrade).
+	 */
+	private static String getCreateDeadLetterTable(boolean withPriority) {
+		return "CREATE TABLE " + TABLE_DEAD_LETTER + "(" +
+				"id INTEGER PRIMARY KEY," +
+				"write_key VARCHAR(32)," +
+				"endpoint VARCHAR(64)," +
+				"payload TEXT," +
+				"byte_size INTEGER NOT NULL DEFAULT 0," +
+				"actor TEXT," +
+				"error TEXT," +
+				"attempts INTEGER NOT NULL DEFAULT 1," +
+				"created_at INTEGER NOT NULL DEFAULT 0," +
+				"failed_at INTEGER NOT NULL DEFAULT 0" +
+				(withPriority ? ",priority INTEGER NOT NULL DEFAULT 0" : "") +
+			")";
+	}
+	
+	/**
+	 * Adds the priority column to an existing dead letter table (added in v8).
+	 */
+	private static final String ADD_DEAD_LETTER_PRIORITY =
+			"ALTER TABLE " + TABLE_DEAD_LETTER + " ADD COLUMN priority INTEGER NOT NULL DEFAULT 0";
+	
+	/**
+	 * Creates the index used to read (and trim) a write key's dead letters in order.
+	 */
+	private static final String CREATE_INDEX_DEAD_LETTER_WRITE_KEY =
+			"CREATE INDEX IF NOT EXISTS api_dead_letter_write_key_id ON " + TABLE_DEAD_LETTER + " (write_key, id)";
+	
 	// CRUD operations
 	
 	/**
@@ -103,20 +293,306 @@ public class ApiDataStore extends SQLiteOpenHelper {
 	 * 
 	 * @param apiCall		The call to add to the queue.
 	 */
-	public boolean addToQueue(AbstractAnalyticsApiCall apiCall) {
+	public synchronized boolean addToQueue(AbstractAnalyticsApiCall apiCall) {
+	    boolean added = insert(apiCall);
+	    evictOverLimits();
+	    return added;
+	}
+	
+	/**
+	 * Adds all the given API calls to the queue (in iteration order). This is done in a
+	 * single transaction, which is much cheaper than adding calls one at a time as each
+	 * transaction costs a journal sync.
+	 * 
+	 * @param apiCalls		The calls to add to the queue.
+	 * @return the number of calls added.
+	 */
+	public synchronized int addAllToQueue(Collection<? extends AbstractAnalyticsApiCall> apiCalls) {
+		SQLiteDatabase db = getWritableDatabase();
+		int added = 0;
+		db.beginTransaction();
+		try {
+			for(AbstractAnalyticsApiCall apiCall : apiCalls) {
+				if(insert(apiCall)) {
+					added++;
+				}
+			}
+			evictOverLimits();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return added;
+	}
+	
+	/**
+	 * Inserts a call using the compiled insert statement. Callers must hold the lock on
+	 * this store as the statement is shared.
+	 */
+	private boolean insert(AbstractAnalyticsApiCall apiCall) {
         SQLiteDatabase db = getWritableDatabase();
         if(insert == null) {
-            insert = db.compileStatement("INSERT INTO " + TABLE_QUEUE + " (write_key, endpoint, payload) VALUES (?, ?, ?)");
+            insert = db.compileStatement("INSERT INTO " + TABLE_QUEUE +
+            		" (write_key, endpoint, payload, byte_size, created_at, actor, priority) VALUES (?, ?, ?, ?, ?, ?, ?)");
         }
 
+        String payload = apiCall.getPayload();
+
         // Params are 1 indexed, not 0
         insert.bindString(1, apiCall.getWriteKey());
         insert.bindString(2, apiCall.getApiEndpoint());
-        insert.bindString(3, apiCall.getPayload());
+        insert.bindString(3, payload);
+        insert.bindLong(4, getUtf8Length(payload));
+        insert.bindLong(5, System.currentTimeMillis());
+        String actor = apiCall.getOrderingActor();
+        if(actor != null) {
+            insert.bindString(6, actor);
+        } else {
+            insert.bindNull(6);
+        }
+        insert.bindLong(7, apiCall.getPriority());
 
-	    boolean success = insert.executeInsert() == 1;
-	    
-	    return success;
+	    return insert.executeInsert() != -1;	// Returns row id, or -1 on error
+	}
+	
+	/**
+	 * Sets the limits on the queue (across all write keys). When a limit is exceeded calls
+	 * are evicted, using the given policy, when new calls are added.
+	 * 
+	 * @param maxCount		The max number of queued calls.
+	 * @param maxBytes		The max total size of queued payloads (in bytes).
+	 * @param policy		How calls are chosen for eviction.
+	 */
+	public synchronized void setQueueLimits(int maxCount, long maxBytes, EvictionPolicy policy) {
+		this.maxQueueCount = maxCount;
+		this.maxQueueBytes = maxBytes;
+		this.evictionPolicy = policy;
+	}
+	
+	/**
+	 * Gets counts of the calls that have been evicted from the queue (and why).
+	 */
+	public EvictionStats getEvictionStats() {
+		return evictionStats;
+	}
+	
+	/**
+	 * Evicts calls until the queue is within its limits. Rows are walked in eviction order
+	 * to find the last one that has to go, then everything up to it is removed in a single
+	 * range delete. Calls in batches being sent are skipped. Callers must hold the lock on
+	 * this store.
+	 */
+	private void evictOverLimits() {
+		if(maxQueueCount == Integer.MAX_VALUE && maxQueueBytes == Long.MAX_VALUE) {
+			return;	// Unbounded
+		}
+		
+		SQLiteDatabase db = getWritableDatabase();
+		Cursor cursor = db.rawQuery("SELECT COUNT(*), COALESCE(SUM(byte_size), 0) FROM " + TABLE_QUEUE, null);
+		long count = 0;
+		long bytes = 0;
+		if(cursor != null && cursor.moveToFirst()) {
+			count = cursor.getLong(0);
+			bytes = cursor.getLong(1);
+		}
+		cursor.close();
+		if(count <= maxQueueCount && bytes <= maxQueueBytes) {
+			return;
+		}
+		
+		String order;
+		switch(evictionPolicy) {
+			case DROP_NEWEST:
+				order = "id DESC";
+				break;
+			case PRIORITY:
+				order = "priority ASC, id ASC";
+				break;
+			default:
+				order = "id ASC";
+				break;
+		}
+		
+		long overCount = 0;
+		long overBytes = 0;
+		long lastId = 0;
+		int lastPriority = 0;
+		cursor = db.rawQuery("SELECT id, byte_size, priority, write_key FROM " + TABLE_QUEUE + " ORDER BY " + order, null);
+		while((count > maxQueueCount || bytes > maxQueueBytes) && cursor.moveToNext()) {
+			if(isInFlight(cursor.getString(3), cursor.getLong(0))) {
+				continue;	// Being sent. Left for the acknowledgement
+			}
+			if(count > maxQueueCount) {
+				overCount++;
+			} else {
+				overBytes++;
+			}
+			count--;
+			bytes -= cursor.getLong(1);
+			lastId = cursor.getLong(0);
+			lastPriority = cursor.getInt(2);
+		}
+		cursor.close();
+		if(overCount + overBytes == 0) {
+			return;	// Everything is being sent
+		}
+		
+		List<String> args = new ArrayList<String>();
+		String where;
+		switch(evictionPolicy) {
+			case DROP_NEWEST:
+				where = "id >= ?";
+				args.add(String.valueOf(lastId));
+				break;
+			case PRIORITY:
+				where = "(priority < ? OR (priority = ? AND id <= ?))";
+				args.add(String.valueOf(lastPriority));
+				args.add(String.valueOf(lastPriority));
+				args.add(String.valueOf(lastId));
+				break;
+			default:
+				where = "id <= ?";
+				args.add(String.valueOf(lastId));
+				break;
+		}
+		where = excludeInFlight(where, args);
+		db.delete(TABLE_QUEUE, where, args.toArray(new String[args.size()]));
+		
+		evictionStats.recordEvicted(EvictionStats.Reason.MAX_COUNT, overCount);
+		evictionStats.recordEvicted(EvictionStats.Reason.MAX_BYTES, overBytes);
+		Log.w(TAG, "Queue full. Evicted " + (overCount + overBytes) + " calls (" + evictionPolicy.getConfigValue() + ")");
+	}
+	
+	/**
+	 * Removes calls (for all write keys) that have been queued for longer than the given
+	 * time. This is a single range delete on the enqueue time index, so it is cheap enough
+	 * to run on every flush. Calls in batches being sent are left alone.
+	 * 
+	 * @param maxAgeMs		The max time a call can be queued before it expires (in MS).
+	 * @return the number of calls removed.
+	 */
+	public synchronized int purgeExpired(long maxAgeMs) {
+		List<String> args = new ArrayList<String>();
+		args.add(String.valueOf(System.currentTimeMillis() - maxAgeMs));
+		String where = excludeInFlight("created_at < ?", args);
+		int purged = getWritableDatabase().delete(TABLE_QUEUE, where, args.toArray(new String[args.size()]));
+		if(purged > 0) {
+			evictionStats.recordEvicted(EvictionStats.Reason.EXPIRED, purged);
+			Log.w(TAG, "Expired " + purged + " calls queued for longer than " + maxAgeMs + "ms");
+		}
+		return purged;
+	}
+	
+	/**
+	 * Marks the given batch as being sent, so it isn't evicted or purged until
+	 * {@link #clearInFlight(String, Vector)} is called for it.
+	 * 
+	 * @param writeKey		The write key the batch was read for.
+	 * @param batch			The batch being sent.
+	 */
+	public synchronized void markInFlight(String writeKey, Vector<QueuedApiCall> batch) {
+		if(!batch.isEmpty()) {
+			inFlight.add(new InFlightRange(writeKey, batch.firstElement().getId(), batch.lastElement().getId()));
+		}
+	}
+	
+	/**
+	 * Marks the given batch as no longer being sent (whether or not it was acknowledged).
+	 * 
+	 * @param writeKey		The write key the batch was read for.
+	 * @param batch			The batch previously passed to {@link #markInFlight(String, Vector)}.
+	 */
+	public synchronized void clearInFlight(String writeKey, Vector<QueuedApiCall> batch) {
+		if(batch.isEmpty()) {
+			return;
+		}
+		long first = batch.firstElement().getId();
+		for(int n = 0; n < inFlight.size(); n++) {
+			InFlightRange range = inFlight.get(n);
+			if(range.first == first && range.writeKey.equals(writeKey)) {
+				inFlight.remove(n);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Whether the given call is in a batch being sent. Callers must hold the lock on this store.
+	 */
+	private boolean isInFlight(String writeKey, long id) {
+		for(InFlightRange range : inFlight) {
+			if(id >= range.first && id <= range.last && range.writeKey.equals(writeKey)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds a condition to the given WHERE clause leaving out calls in batches being sent (and
+	 * its args to the given list). Callers must hold the lock on this store.
+	 */
+	private String excludeInFlight(String where, List<String> args) {
+		StringBuilder builder = new StringBuilder(where);
+		for(InFlightRange range : inFlight) {
+			builder.append(" AND NOT (write_key = ? AND id BETWEEN ? AND ?)");
+			args.add(range.writeKey);
+			args.add(String.valueOf(range.first));
+			args.add(String.valueOf(range.last));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * The ids of a batch being sent. A batch is a contiguous run of its write key's queue.
+	 */
+	private static class InFlightRange {
+		final String writeKey;
+		final long first;
+		final long last;
+		
+		InFlightRange(String writeKey, long first, long last) {
+			this.writeKey = writeKey;
+			this.first = first;
+			this.last = last;
+		}
+	}
+	
+	/**
+	 * Gets the length of the given string once encoded as UTF-8 (without encoding it).
+	 */
+	static int getUtf8Length(String value) {
+		int length = 0;
+		for(int n = 0; n < value.length(); n++) {
+			char c = value.charAt(n);
+			if(c < 0x80) {
+				length += 1;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(Character.isHighSurrogate(c) && n + 1 < value.length() && Character.isLowSurrogate(value.charAt(n + 1))) {
+				length += 4;
+				n++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Gets the number of API calls queued for the given write key.
+	 * 
+	 * @param writeKey		The writeKey to count queued calls for.
+	 */
+	public long getQueueCount(String writeKey) {
+		Cursor cursor = getWritableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE_QUEUE + " WHERE write_key = ?",
+				new String[]{writeKey});
+		long count = 0;
+		if (cursor != null && cursor.moveToFirst()) {
+			count = cursor.getLong(0);
+		}
+		cursor.close();
+		return count;
 	}
 	
 	/**
@@ -151,7 +627,7 @@ public class ApiDataStore extends SQLiteOpenHelper {
     public Vector<QueuedApiCall> getBatch(String writeKey, String endPoint) {
         Cursor cursor = getWritableDatabase().query(TABLE_QUEUE, /* All columns */ null,
                 "write_key = ?", new String[]{writeKey}, null, null,
-                /* ORDER BY */ "id ASC", /* LIMIT */ "100");
+                /* ORDER BY */ "id ASC", /* LIMIT */ String.valueOf(MAX_BATCH_SIZE));
 
         Vector<QueuedApiCall> batch = new Vector<QueuedApiCall>();
         if (cursor != null && cursor.moveToFirst()) {
@@ -172,6 +648,105 @@ public class ApiDataStore extends SQLiteOpenHelper {
         return batch;
     }
 	
+    /**
+     * Gets the next batch of API calls to send for the given write key, in a single query.
+     * Does not remove items from queue.
+     * 
+     * <p>The batch is the run of calls at the head of the queue sharing the first call's
+     * endpoint. Only Track calls support batching, so for other endpoints the batch is just
+     * the first call. As a batch is always a contiguous run of a write key's queue it can be
+     * removed with {@link #deleteBatchFromQueue(String, Vector)}.
+     *
+     * @param writeKey		The writeKey to get queued calls for.
+     * @return the next batch (empty if nothing queued).
+     */
+    public Vector<QueuedApiCall> getNextBatch(String writeKey) {
+        return getNextBatch(writeKey, false);
+    }
+
+    /**
+     * Gets the next batch of API calls to send for the given write key, in a single query.
+     * Does not remove items from queue.
+     * 
+     * @param writeKey		The writeKey to get queued calls for.
+     * @param multiplex		If the batch can mix endpoints (to be sent to the Batch endpoint).
+     * 		If false this is the same as {@link #getNextBatch(String)}.
+     * @return the next batch (empty if nothing queued).
+     */
+    public Vector<QueuedApiCall> getNextBatch(String writeKey, boolean multiplex) {
+        return getNextBatch(writeKey, multiplex, MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Gets the next batch of API calls to send for the given write key, in a single query.
+     * Does not remove items from queue.
+     * 
+     * <p>The batch is capped at {@link #MAX_BATCH_SIZE} calls and at maxBytes of stored
+     * payload, whichever comes first. A single call bigger than maxBytes is still returned
+     * (on its own) so it can't block the queue.
+     * 
+     * @param writeKey		The writeKey to get queued calls for.
+     * @param multiplex		If the batch can mix endpoints (to be sent to the Batch endpoint).
+     * @param maxBytes		The max total payload size of the batch (in bytes).
+     * @return the next batch (empty if nothing queued).
+     */
+    public Vector<QueuedApiCall> getNextBatch(String writeKey, boolean multiplex, int maxBytes) {
+        return getNextBatch(writeKey, multiplex, maxBytes, 0);
+    }
+
+    /**
+     * Gets the batch of API calls following the given id for the given write key. This lets
+     * further batches be read while earlier ones are still being sent (and so are still
+     * queued). Does not remove items from queue.
+     * 
+     * <p>This locks the store only while reading, so it can be called while other batches
+     * are being sent.
+     * 
+     * @param writeKey		The writeKey to get queued calls for.
+     * @param multiplex		If the batch can mix endpoints (to be sent to the Batch endpoint).
+     * @param maxBytes		The max total payload size of the batch (in bytes).
+     * @param afterId		Only calls with a greater id are returned (0 for the head of the queue).
+     * @return the batch (empty if nothing queued after the given id).
+     */
+    public synchronized Vector<QueuedApiCall> getNextBatch(String writeKey, boolean multiplex, int maxBytes, long afterId) {
+        Cursor cursor = getWritableDatabase().rawQuery(QUERY_NEXT_BATCH, new String[]{writeKey, String.valueOf(afterId)});
+
+        Vector<QueuedApiCall> batch = new Vector<QueuedApiCall>();
+        if (cursor != null && cursor.moveToFirst()) {
+            String endPoint = cursor.getString(1);
+            boolean canBatch = multiplex || endPoint.equalsIgnoreCase(ActionApiCall.ENDPOINT);
+            long totalBytes = 0;
+            do {
+                String callEndPoint = cursor.getString(1);
+                if (!multiplex && !endPoint.equalsIgnoreCase(callEndPoint)) {
+                    break;  // Different type, stop batch
+                }
+                int byteSize = cursor.getInt(3);
+                if (!batch.isEmpty() && totalBytes + byteSize > maxBytes) {
+                    break;  // Full
+                }
+                totalBytes += byteSize;
+                batch.add(new QueuedApiCall(cursor.getLong(0), callEndPoint, cursor.getString(2), writeKey,
+                        cursor.getString(4), byteSize));
+            } while (canBatch && cursor.moveToNext());
+        }
+        cursor.close();
+        return batch;
+    }
+
+    /**
+     * Gets the total size of the stored payloads in the given batch (in bytes).
+     *
+     * @param batch		The batch to measure.
+     */
+    public static long getBatchByteSize(Vector<QueuedApiCall> batch) {
+        long total = 0;
+        for (QueuedApiCall call : batch) {
+            total += call.getByteSize();
+        }
+        return total;
+    }
+	
 	/**
 	 * Removes the given QueuedApiCall from the queue.
 	 * 
@@ -206,4 +781,140 @@ public class ApiDataStore extends SQLiteOpenHelper {
         return success;
     }
 
+    /**
+     * Removes a batch previously returned by {@link #getNextBatch(String)} from the queue.
+     * As the batch is a contiguous run of the write key's queue this is a single range
+     * delete from the first to the last id, rather than matching each id. Ids are
+     * AUTOINCREMENT, so a call queued since the batch was read can never fall inside the
+     * range (even if calls at the end of the queue have been removed meanwhile).
+     *
+     * @param writeKey		The write key the batch was read for.
+     * @param batch			The batch of API calls to remove.
+     */
+    public synchronized void deleteBatchFromQueue(String writeKey, Vector<QueuedApiCall> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        if (deleteRange == null) {
+            deleteRange = db.compileStatement("DELETE FROM " + TABLE_QUEUE + " WHERE write_key = ? AND id BETWEEN ? AND ?");
+        }
+        deleteRange.bindString(1, writeKey);
+        deleteRange.bindLong(2, batch.firstElement().getId());
+        deleteRange.bindLong(3, batch.lastElement().getId());
+        deleteRange.execute();
+    }
+
+    // Dead letters. Only requeueing locks the store (as it may need to evict)
+
+    /**
+     * Moves a call the API server rejected from the queue to the dead letter table.
+     *
+     * @param apiCall		The previously queued API call that was rejected.
+     * @param error			The error the API server gave (can be null).
+     * @return true if the call was moved.
+     */
+    public boolean moveToDeadLetter(QueuedApiCall apiCall, String error) {
+        SQLiteDatabase db = getWritableDatabase();
+        String id = String.valueOf(apiCall.getId());
+        boolean moved;
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO " + TABLE_DEAD_LETTER +
+                    " (write_key, endpoint, payload, byte_size, actor, error, attempts, created_at, failed_at, priority)" +
+                    " SELECT write_key, endpoint, payload, byte_size, actor, ?, attempts + 1, created_at, ?, priority" +
+                    " FROM " + TABLE_QUEUE + " WHERE id = ?",
+                    new Object[]{ error, System.currentTimeMillis(), id });
+            moved = db.delete(TABLE_QUEUE, "id = ?", new String[]{ id }) == 1;
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return moved;
+    }
+
+    /**
+     * Gets the number of dead letters held for the given write key.
+     *
+     * @param writeKey		The writeKey to count dead letters for.
+     */
+    public long getDeadLetterCount(String writeKey) {
+        Cursor cursor = getWritableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE_DEAD_LETTER + " WHERE write_key = ?",
+                new String[]{writeKey});
+        long count = 0;
+        if (cursor != null && cursor.moveToFirst()) {
+            count = cursor.getLong(0);
+        }
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * Gets all dead letters held for the given write key, oldest first.
+     *
+     * @param writeKey		The writeKey to get dead letters for.
+     */
+    public List<DeadLetter> getDeadLetters(String writeKey) {
+        Cursor cursor = getWritableDatabase().rawQuery(
+                "SELECT id, endpoint, payload, error, attempts, created_at, failed_at FROM " + TABLE_DEAD_LETTER +
+                " WHERE write_key = ? ORDER BY id ASC", new String[]{writeKey});
+
+        List<DeadLetter> deadLetters = new ArrayList<DeadLetter>();
+        if (cursor != null && cursor.moveToFirst()) {
+            do {
+                deadLetters.add(new DeadLetter(cursor.getLong(0), writeKey, cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getInt(4), cursor.getLong(5), cursor.getLong(6)));
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return deadLetters;
+    }
+
+    /**
+     * Moves all dead letters for the given write key back onto the end of the queue (in the
+     * order they were rejected) so they will be sent again. They keep the priority they were
+     * queued with, and calls are evicted if this takes the queue over its limits.
+     *
+     * @param writeKey		The writeKey to requeue dead letters for.
+     * @return the number of calls requeued.
+     */
+    public synchronized int requeueDeadLetters(String writeKey) {
+        SQLiteDatabase db = getWritableDatabase();
+        int requeued;
+        db.beginTransaction();
+        try {
+            // Treat as newly queued so they aren't expired straight away
+            db.execSQL("INSERT INTO " + TABLE_QUEUE + " (write_key, endpoint, payload, byte_size, actor, attempts, created_at, priority)" +
+                    " SELECT write_key, endpoint, payload, byte_size, actor, attempts, ?, priority" +
+                    " FROM " + TABLE_DEAD_LETTER + " WHERE write_key = ? ORDER BY id ASC",
+                    new Object[]{ System.currentTimeMillis(), writeKey });
+            requeued = db.delete(TABLE_DEAD_LETTER, "write_key = ?", new String[]{ writeKey });
+            evictOverLimits();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return requeued;
+    }
+
+    /**
+     * Removes dead letters older than the given age (for all write keys), and the oldest
+     * for the given write key beyond the given count.
+     *
+     * @param writeKey		The writeKey to trim dead letters for.
+     * @param maxCount		The max number of dead letters to keep for the write key.
+     * @param maxAgeMs		The max time to keep a dead letter after it was rejected (in MS).
+     * @return the number of dead letters removed.
+     */
+    public int purgeDeadLetters(String writeKey, int maxCount, long maxAgeMs) {
+        SQLiteDatabase db = getWritableDatabase();
+        int purged = db.delete(TABLE_DEAD_LETTER, "failed_at < ?",
+                new String[]{ String.valueOf(System.currentTimeMillis() - maxAgeMs) });
+        purged += db.delete(TABLE_DEAD_LETTER, "write_key = ? AND id NOT IN (SELECT id FROM " + TABLE_DEAD_LETTER +
+                " WHERE write_key = ? ORDER BY id DESC LIMIT ?)",
+                new String[]{ writeKey, writeKey, String.valueOf(maxCount) });
+        return purged;
+    }
+
 }
@@ -16,21 +16,25 @@
 package io.calq.android.analytics;
 
 import io.calq.android.ApiException;
+import io.calq.android.ApiRateLimitedException;
 import io.calq.android.LocalConfig;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -39,64 +43,113 @@ import org.json.JSONObject;
  */
 public class ApiDispatcher {
 	
+	/**
+	 * Endpoint accepting multiplexed batches of calls to different endpoints.
+	 */
+	public static final String MULTIPLEX_ENDPOINT = "Batch";
+	
+	/**
+	 * Status sent by the API server when we are being rate limited (not in HttpURLConnection).
+	 */
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+	
+	/**
+	 * How long to wait when rate limited without a (valid) Retry-After (in MS).
+	 */
+	public static final long DEFAULT_RETRY_AFTER_MS = 60 * 1000;
+	
+	/**
+	 * Longest Retry-After we will honor (in MS). Guards against bad values stopping us sending
+	 * for days.
+	 */
+	public static final long MAX_RETRY_AFTER_MS = 60 * 60 * 1000;
+	
+	/**
+	 * Largest payload (in bytes) we compress in memory before sending. Below this we only send
+	 * compressed if it is actually smaller. Above it we stream through gzip without buffering.
+	 */
+	public static final int MAX_BUFFERED_GZIP_BYTES = 64 * 1024;
+	
 	/**
 	 * Config settings being used.
 	 */
 	protected LocalConfig config;
 
+	/**
+	 * Transport used to send requests. Shared so connections are reused between batches.
+	 */
+	protected ApiTransport transport;
+
+	/**
+	 * Stats about the requests this dispatcher has sent.
+	 */
+	protected UploadStats uploadStats = new UploadStats();
+
 	/**
 	 * Creates a new ApiDispatcher for sending QueuedApiCalls to the Calq server.
 	 * 
 	 * @param config	The local config settings to use.
 	 */
 	public ApiDispatcher(LocalConfig config) {
+		this(config, ApiTransport.getInstance(config));
+	}
+
+	/**
+	 * Creates a new ApiDispatcher for sending QueuedApiCalls to the Calq server using
+	 * the given transport.
+	 * 
+	 * @param config	The local config settings to use.
+	 * @param transport	The transport to send requests with.
+	 */
+	public ApiDispatcher(LocalConfig config, ApiTransport transport) {
 		this.config = config;
+		this.transport = transport;
 	}
 	
 	/**
 	 * Dispatches the given API call to the remote Calq server.
 	 * @param batch			    The batch of API calls to dispatch.
-	 * @throws ApiException 
+	 * @throws ApiException if the API server rejected the call.
+	 * @throws ApiRateLimitedException if the API server asked us to slow down. The batch
+	 * 		should stay queued.
 	 * @returns if this was successful.
 	 */
 	public boolean dispatch(Vector<QueuedApiCall> batch) throws ApiException {
-		
-		// At some point we should switch from the Apache client to HttpURLConnection on clients that support it.
-		//	See: http://android-developers.blogspot.co.uk/2011/09/androids-http-clients.html
-		
 		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			
-			HttpPost post = new HttpPost(getEndpointUrl(batch.firstElement()));
-			post.setHeader("Content-type", "application/json");
-			post.setEntity(buildPayload(batch));
-			HttpResponse response = httpclient.execute(post);
+			boolean multiplexed = isMultiplexed(batch);
+			long estimatedSize = estimatePayloadSize(batch);
+			boolean compress = config.isGzipUploads() && estimatedSize >= config.getGzipThresholdBytes();
+			BatchBodyWriter body = new BatchBodyWriter(batch, multiplexed, compress);
+			if(compress && estimatedSize < MAX_BUFFERED_GZIP_BYTES) {
+				compress = body.bufferSmallest();
+			}
+
+			String url = multiplexed ? getEndpointUrl(MULTIPLEX_ENDPOINT) : getEndpointUrl(batch.firstElement());
+			ApiTransport.Response response = transport.post(url, "application/json", compress ? "gzip" : null, body);
+			uploadStats.recordRequest(body.uncompressedBytes, body.sentBytes, compress);
 			
-		    int statusCode = response.getStatusLine().getStatusCode();
-		    if(statusCode >= 500) { 
+		    int statusCode = response.getStatusCode();
+		    if(statusCode == HTTP_TOO_MANY_REQUESTS ||
+		    		(statusCode == HttpURLConnection.HTTP_UNAVAILABLE && response.getRetryAfter() != null)) {
+		    	// Rate limited, or server shedding load. Not the batch's fault, so keep it
+		    	throw(new ApiRateLimitedException("API server asked us to slow down (HTTP " + statusCode + ")",
+		    			parseRetryAfterMs(response.getRetryAfter(), System.currentTimeMillis())));
+		    } else if(statusCode >= 500) { 
 		    	// 500s we want to retry later
 	        	return false;
-	        } else if(statusCode != HttpStatus.SC_OK) {
-			
+	        } else if(statusCode < 200 || statusCode >= 300) {
 			    // Try get response for other codes, might have API error in it
-			    HttpEntity entity = response.getEntity();
-			    if(entity != null) {
-					ByteArrayOutputStream out = new ByteArrayOutputStream();
-					response.getEntity().writeTo(out);
-					out.close();
-					String responseString = out.toString();
-					
-					JSONObject json = new JSONObject(responseString);
-					if(json.has("error")) {
-						throw(new ApiException(json.getString("error")));
-					} else {
-						throw(new ApiException("Unknown error occured during API call."));
-					}
+			    String responseBody = response.getBody();
+			    if(responseBody == null || responseBody.length() == 0) {
+			    	throw(new ApiException("API call rejected with no response (HTTP " + statusCode + ")."));
 			    }
+				JSONObject json = new JSONObject(responseBody);
+				if(json.has("error")) {
+					throw(new ApiException(json.getString("error")));
+				} else {
+					throw(new ApiException("Unknown error occured during API call."));
+				}
 	        }
-		} catch (ClientProtocolException e) {
-			// Failed, but don't know why. Signal failed for re-queue
-    		return false;
 		} catch (IOException e) {
 			// Failed, but don't know why. Signal failed for re-queue
     		return false;
@@ -110,33 +163,214 @@ public class ApiDispatcher {
 	}
 
     /**
-     * Builds a payload based on the batch content.
+     * Parses a Retry-After header, which is either a number of seconds or an HTTP date.
+     * Missing or invalid values use {@link #DEFAULT_RETRY_AFTER_MS}, and the result is
+     * kept between 1s and {@link #MAX_RETRY_AFTER_MS}.
+     *
+     * @param retryAfter		The header value (can be null).
+     * @param nowMs			The current time (in MS since the epoch), used for dates.
+     * @return how long to wait (in MS).
+     */
+    static long parseRetryAfterMs(String retryAfter, long nowMs) {
+        long delayMs = DEFAULT_RETRY_AFTER_MS;
+        if(retryAfter != null && retryAfter.trim().length() > 0) {
+            String value = retryAfter.trim();
+            try {
+                delayMs = Long.parseLong(value) * 1000;
+            } catch (NumberFormatException e) {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                try {
+                    Date date = format.parse(value);
+                    delayMs = date.getTime() - nowMs;
+                } catch (ParseException e1) {
+                    // Not something we understand. Use default
+                }
+            }
+        }
+        return Math.min(MAX_RETRY_AFTER_MS, Math.max(1000, delayMs));
+    }
+
+    /**
+     * Whether the given batch must be sent as a multiplexed batch. That is any batch mixing
+     * endpoints, and any run of more than one call to an endpoint other than Track (only
+     * Track accepts an array of calls).
+     */
+    private static boolean isMultiplexed(Vector<QueuedApiCall> batch) {
+        String endpoint = batch.firstElement().getApiEndpoint();
+        if(batch.size() > 1 && !endpoint.equalsIgnoreCase(ActionApiCall.ENDPOINT)) {
+            return true;
+        }
+        for(int n = 1; n < batch.size(); n++) {
+            if(!endpoint.equalsIgnoreCase(batch.get(n).getApiEndpoint())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a payload based on the batch content. Payloads are written one call at a time so
+     * the whole batch is never built up in memory.
+     * 
+     * <p>A multiplexed batch is an array of <tt>{"endpoint":"Track","payload":{...}}</tt>
+     * envelopes, in queue order, so the server can apply each call in turn.
      */
-    private StringEntity buildPayload(Vector<QueuedApiCall> batch) throws UnsupportedEncodingException {
+    private static void writePayload(Vector<QueuedApiCall> batch, boolean multiplexed, Writer writer) throws IOException {
+        // Whole batch is being sent now, so it shares a single utc_now
+        String utcNow = QueuedApiCall.getUtcNow();
+
         // Single item?
         if(batch.size() == 1) {
-            return new StringEntity(batch.firstElement().getPayload(), "UTF-8");
+            batch.firstElement().writePayload(writer, utcNow);
         } else {
-            StringBuilder payload = new StringBuilder();
-            payload.append("[");
+            writer.write('[');
             for(int n = 0; n < batch.size(); n++) {
                 if(n > 0) {
-                    payload.append(",");
+                    writer.write(',');
                 }
                 QueuedApiCall apiCall = batch.get(n);
-                payload.append(apiCall.getPayload());
+                if(multiplexed) {
+                    writer.write("{\"" + ReservedApiProperties.BATCH_ENDPOINT + "\":\"");
+                    writer.write(apiCall.getApiEndpoint());
+                    writer.write("\",\"" + ReservedApiProperties.BATCH_PAYLOAD + "\":");
+                    apiCall.writePayload(writer, utcNow);
+                    writer.write('}');
+                } else {
+                    apiCall.writePayload(writer, utcNow);
+                }
+            }
+            writer.write(']');
+        }
+    }
+
+    /**
+     * Estimates the size of the payload for the given batch (in bytes). This is used to decide
+     * whether to compress before we start streaming. Stored payloads are mostly ASCII so the
+     * char count is a close lower bound.
+     */
+    private static long estimatePayloadSize(Vector<QueuedApiCall> batch) {
+        long size = batch.size() * 40 + 1;    // Brackets, commas and utc_now
+        for(int n = 0; n < batch.size(); n++) {
+            size += batch.get(n).payload.length();
+        }
+        return size;
+    }
+
+    /**
+     * Streams a batch as the request body, optionally through gzip, counting bytes as it goes.
+     * Small bodies can instead be built up front so we can pick the smaller encoding.
+     */
+    private static class BatchBodyWriter implements ApiTransport.BodyWriter {
+
+        private final Vector<QueuedApiCall> batch;
+        private final boolean multiplexed;
+        private boolean compress;
+        private byte[] buffered;
+
+        long uncompressedBytes;
+        long sentBytes;
+
+        BatchBodyWriter(Vector<QueuedApiCall> batch, boolean multiplexed, boolean compress) {
+            this.batch = batch;
+            this.multiplexed = multiplexed;
+            this.compress = compress;
+        }
+
+        /**
+         * Builds the body in memory, keeping the gzip version only if it is smaller.
+         * @returns if the body will be sent compressed.
+         */
+        boolean bufferSmallest() throws IOException {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(plain, "UTF-8");
+            writePayload(batch, multiplexed, writer);
+            writer.flush();
+            byte[] payload = plain.toByteArray();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            try {
+                gzip.write(payload);
+            } finally {
+                gzip.close();
+            }
+            byte[] compressed = out.toByteArray();
+
+            compress = compressed.length < payload.length;
+            buffered = compress ? compressed : payload;
+            uncompressedBytes = payload.length;
+            return compress;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if(buffered != null) {
+                out.write(buffered);
+                sentBytes = buffered.length;
+                return;
             }
-            payload.append("]");
-            return new StringEntity(payload.toString(), "UTF-8");
+
+            CountingOutputStream sent = new CountingOutputStream(out);
+            GZIPOutputStream gzip = compress ? new GZIPOutputStream(sent, 8192) : null;
+            CountingOutputStream uncompressed = new CountingOutputStream(gzip != null ? gzip : sent);
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(uncompressed, "UTF-8"), 8192);
+            writePayload(batch, multiplexed, writer);
+            writer.flush();
+            if(gzip != null) {
+                gzip.finish();
+            }
+
+            uncompressedBytes = uncompressed.count;
+            sentBytes = sent.count;
+        }
+    }
+
+    /**
+     * Passes writes through to another stream, counting the bytes written.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
         }
     }
 
+	/**
+	 * Gets stats about the requests this dispatcher has sent (such as compression ratio).
+	 */
+	public UploadStats getUploadStats() {
+		return uploadStats;
+	}
+
 	/**
 	 * Gets the endpoint URL to use for the given API call.
 	 */
 	public String getEndpointUrl(QueuedApiCall apiCall) {
+		return getEndpointUrl(apiCall.endpoint);
+	}
+
+	/**
+	 * Gets the URL of the given endpoint.
+	 */
+	private String getEndpointUrl(String endpoint) {
 		String apiServerUrl = config.getRemoteApiServerUrl();
-		return apiServerUrl + (apiServerUrl.endsWith("/") ? "" : "/") + apiCall.endpoint;
+		return apiServerUrl + (apiServerUrl.endsWith("/") ? "" : "/") + endpoint;
 	}
 
 }
@@ -0,0 +1,465 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import io.calq.android.LocalConfig;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Does the background work for every write key on one shared thread, with one shared
+ * connection to the queue database (and one pool for sending batches on). Each write key
+ * still has its own {@link ApiHandler}, but they all schedule their work through here.
+ *
+ * <p>Flushes are coalesced across write keys. Calls received for any key are written to
+ * storage together in one transaction. When one key's flush to the API server comes due, any
+ * other keys due within {@link #COALESCE_WINDOW_MS} are flushed along with it, so the radio is
+ * woken once rather than once per key. Keys flushed together take turns sending a few
+ * batches each (starting with a different key each time), so one key with a big backlog
+ * can't hold the others up.
+ *
+ * <p>{@link #shutdownShared()} stops the thread and closes the database. A new engine is
+ * started the next time a handler is needed, including by handlers from the old engine which
+ * are still in use (see {@link ApiHandler#getActiveHandler()}).
+ */
+public class ApiEngine extends Handler {
+
+	private static final String TAG = "ApiEngine";
+
+	/**
+	 * How long before its due time a key's flush to the API server can be brought forward to
+	 * go with another key's (in MS).
+	 */
+	static final long COALESCE_WINDOW_MS = 5 * 1000;
+
+	/**
+	 * Used as the due time of a flush that isn't scheduled.
+	 */
+	static final long NOT_SCHEDULED = Long.MAX_VALUE;
+
+	/**
+	 * The engine shared by all write keys (guarded by the class lock).
+	 */
+	private static ApiEngine shared;
+
+	/**
+	 * The thread all work is done on.
+	 */
+	private final HandlerThread thread;
+
+	/**
+	 * The context the engine was created with (used to start a replacement once shut down).
+	 */
+	final Context context;
+
+	/**
+	 * Data store used to persist API calls for every write key.
+	 */
+	protected final ApiDataStore dataStore;
+
+	/**
+	 * The map between write keys and handler instances (guarded by itself).
+	 */
+	private final Map<String, ApiHandler> handlerKeyMap = new Hashtable<String, ApiHandler>();
+
+	/**
+	 * Every handler, in the order they were created. Can be read without locking.
+	 */
+	private final List<ApiHandler> handlers = new CopyOnWriteArrayList<ApiHandler>();
+
+	/**
+	 * Where the next flush to the API server starts taking turns (guarded by this).
+	 */
+	private int nextFirstTurn;
+
+	/**
+	 * When the flush to the API server message is due (guarded by this).
+	 */
+	private long remoteFlushAt = NOT_SCHEDULED;
+
+	/**
+	 * Pool batches are sent on, when more than one is in flight (guarded by this).
+	 */
+	private ThreadPoolExecutor dispatchExecutor;
+
+	/**
+	 * Whether this engine has been shut down.
+	 */
+	private volatile boolean shutDown;
+
+	/**
+	 * Whether the final flush to storage has been made and the database closed (guarded by
+	 * the data store's lock).
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a new engine (with its own thread and connection). Normally the shared engine
+	 * is used instead.
+	 *
+	 * @param context		The context to use.
+	 */
+	ApiEngine(Context context) {
+		this(context, startThread());
+	}
+
+	private ApiEngine(Context context, HandlerThread thread) {
+		super(thread.getLooper());
+
+		this.thread = thread;
+		this.context = context;
+		dataStore = new ApiDataStore(context);
+	}
+
+	/**
+	 * Gets the handler for the given write key from the shared engine (starting the engine
+	 * if needed).
+	 *
+	 * @param context		The context to use.
+	 * @param writeKey		The write key to get an ApiHandler for.
+	 * @param config		The config to use (if a new handler is created).
+	 * @return an ApiHandler for the given write key.
+	 */
+	public static ApiHandler getSharedHandler(Context context, String writeKey, LocalConfig config) {
+		synchronized (ApiEngine.class) {
+			if(shared == null) {
+				shared = new ApiEngine(context);
+			}
+			return shared.getHandler(writeKey, config);
+		}
+	}
+
+	/**
+	 * Shuts down the shared engine, if started. Calls not yet written to storage are written
+	 * first, and anything queued stays on disk to be sent next time. This waits for any flush
+	 * in progress to finish.
+	 *
+	 * <p>Calls made afterwards on handlers from the engine are passed on to a new engine (see
+	 * {@link ApiHandler#getActiveHandler()}), so nothing is lost.
+	 */
+	public static void shutdownShared() {
+		ApiEngine engine;
+		synchronized (ApiEngine.class) {
+			engine = shared;
+			shared = null;
+		}
+		if(engine != null) {
+			engine.shutdown();
+		}
+	}
+
+	/**
+	 * Gets the handler for the given write key, creating it if needed. Only one handler
+	 * exists for each key.
+	 *
+	 * @param writeKey		The write key to get an ApiHandler for.
+	 * @param config		The config to use (if a new handler is created).
+	 * @return an ApiHandler for the given write key.
+	 */
+	ApiHandler getHandler(String writeKey, LocalConfig config) {
+		synchronized (handlerKeyMap) {
+			ApiHandler handler = handlerKeyMap.get(writeKey);
+			if(handler == null) {
+				handler = new ApiHandler(this, writeKey, config);
+				handlerKeyMap.put(writeKey, handler);
+				handlers.add(handler);
+				
+				// Shecdule flush of any existing messages in 5s (Long enough so app can load / splash screen)
+				handler.scheduleFlushToRemote(5 * 1000);
+			}
+			return handler;
+		}
+	}
+
+	/**
+	 * Stops the thread and closes the database. Calls not yet written to storage are written
+	 * first. Waits for any flush in progress to finish (unless called from the engine's own
+	 * thread).
+	 */
+	void shutdown() {
+		shutDown = true;
+		thread.quit();
+		if(Thread.currentThread() != thread) {
+			boolean interrupted = false;
+			while(thread.isAlive()) {
+				try {
+					thread.join();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Wait for flushes on other threads (such as forceFlush) before closing the database
+		for(ApiHandler handler : handlers) {
+			handler.flushLock.lock();
+		}
+		try {
+			synchronized (dataStore) {
+				onFlushToStorage();
+				dataStore.close();
+				closed = true;
+			}
+		} finally {
+			for(ApiHandler handler : handlers) {
+				handler.flushLock.unlock();
+			}
+		}
+		synchronized (this) {
+			if(dispatchExecutor != null) {
+				dispatchExecutor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Gets whether this engine has been shut down.
+	 */
+	public boolean isShutDown() {
+		return shutDown;
+	}
+
+	/**
+	 * Gets whether the final flush to storage has been made. Calls received after this are
+	 * not persisted by this engine. Must be called holding the data store's lock (or a handler's
+	 * flush lock).
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Gets the executor batches are sent on. With a single batch in flight they are just sent
+	 * on the calling thread. Otherwise every key shares one pool, big enough for whichever
+	 * key allows the most in flight (only one key flushes at a time).
+	 *
+	 * @param maxInFlight	The max number of batches the caller has in flight at once.
+	 */
+	synchronized Executor getDispatchExecutor(int maxInFlight) {
+		if(maxInFlight <= 1) {
+			return BatchPipeline.DIRECT_EXECUTOR;
+		}
+		if(dispatchExecutor == null) {
+			dispatchExecutor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, TAG + "Dispatch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else if(dispatchExecutor.getMaximumPoolSize() < maxInFlight) {
+			dispatchExecutor.setMaximumPoolSize(maxInFlight);
+			dispatchExecutor.setCorePoolSize(maxInFlight);
+		}
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Request that we flush received calls to storage after the given delay. Will be ignored
+	 * if a flush has already been scheduled.
+	 *
+	 * @param delayMS		The delay before flushing (in MS).
+	 */
+	void scheduleFlushToStorage(long delayMS) {
+		if(!hasMessages(MESSAGE_FLUSH_TO_STORAGE)) {
+			sendEmptyMessageDelayed(MESSAGE_FLUSH_TO_STORAGE, delayMS);
+		}
+	}
+
+	/**
+	 * Request that we flush received calls to storage as soon as possible.
+	 */
+	void flushToStorageNow() {
+		sendEmptyMessage(MESSAGE_FLUSH_TO_STORAGE);
+	}
+
+	/**
+	 * Request that the given handler flushes to Calq's API servers after the given delay.
+	 *
+	 * @param handler		The handler to flush.
+	 * @param delayMS		The delay before flushing (in MS).
+	 * @param replace		Whether to replace a flush already scheduled for the handler (else
+	 * 						this is ignored if one is).
+	 */
+	synchronized void scheduleFlushToRemote(ApiHandler handler, long delayMS, boolean replace) {
+		if(replace || handler.remoteFlushAt == NOT_SCHEDULED) {
+			handler.remoteFlushAt = SystemClock.uptimeMillis() + delayMS;
+			updateFlushToRemoteMessage();
+		}
+	}
+
+	/**
+	 * Makes sure our one flush to the API server message is due when the first handler's is.
+	 * Must be called while holding this engine's lock.
+	 */
+	private void updateFlushToRemoteMessage() {
+		long first = NOT_SCHEDULED;
+		for(ApiHandler handler : handlers) {
+			first = Math.min(first, handler.remoteFlushAt);
+		}
+		if(first != remoteFlushAt) {
+			removeMessages(MESSAGE_FLUSH_TO_API_SERVER);
+			if(first != NOT_SCHEDULED) {
+				sendMessageAtTime(obtainMessage(MESSAGE_FLUSH_TO_API_SERVER), first);
+			}
+			remoteFlushAt = first;
+		}
+	}
+
+	/**
+	 * Writes the calls every handler has received to storage, in one transaction.
+	 */
+	protected void onFlushToStorage() {
+		synchronized (dataStore) {
+			List<AbstractAnalyticsApiCall> received = new ArrayList<AbstractAnalyticsApiCall>();
+			for(ApiHandler handler : handlers) {
+				handler.drainReceived(received);
+			}
+			if(!received.isEmpty()) {
+				dataStore.addAllToQueue(received);
+			}
+		}
+	}
+
+	/**
+	 * Flushes every handler which is due to flush to the API server, along with any due soon
+	 * after (see {@link #COALESCE_WINDOW_MS}).
+	 */
+	protected void onFlushToRemoteServer() {
+		List<ApiHandler> due = new ArrayList<ApiHandler>();
+		synchronized (this) {
+			long dueBy = SystemClock.uptimeMillis() + COALESCE_WINDOW_MS;
+			int count = handlers.size();
+			for(int n = 0; n < count; n++) {
+				ApiHandler handler = handlers.get((nextFirstTurn + n) % count);
+				if(handler.remoteFlushAt <= dueBy) {
+					handler.remoteFlushAt = NOT_SCHEDULED;
+					due.add(handler);
+				}
+			}
+			nextFirstTurn = count > 0 ? (nextFirstTurn + 1) % count : 0;
+			remoteFlushAt = NOT_SCHEDULED;
+		}
+
+		flushToRemote(due);
+
+		synchronized (this) {
+			updateFlushToRemoteMessage();
+		}
+	}
+
+	/**
+	 * Flushes the given handlers to the API server, taking turns in the order given until
+	 * each has sent everything (or failed). A handler already being flushed on another thread
+	 * (such as by {@link ApiHandler#forceFlush()}) is skipped, as that flush schedules its next.
+	 *
+	 * @param due			The handlers to flush.
+	 */
+	void flushToRemote(List<ApiHandler> due) {
+		List<ApiHandler> flushing = new ArrayList<ApiHandler>();
+		try {
+			List<ApiHandler> sending = new ArrayList<ApiHandler>();
+			for(ApiHandler handler : due) {
+				if(!handler.flushLock.tryLock()) {
+					continue;
+				}
+				flushing.add(handler);
+				if(handler.beginFlushToRemote()) {
+					sending.add(handler);
+				}
+			}
+
+			while(!sending.isEmpty()) {
+				Iterator<ApiHandler> turns = sending.iterator();
+				while(turns.hasNext()) {
+					if(!turns.next().flushToRemoteTurn()) {
+						turns.remove();	// Done (or failed)
+					}
+				}
+			}
+
+			for(ApiHandler handler : flushing) {
+				handler.endFlushToRemote();
+			}
+		} finally {
+			for(ApiHandler handler : flushing) {
+				handler.flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Handles our scheduled work.
+	 *
+	 * @param msg			The message saying what to do.
+	 */
+	@Override
+	public void handleMessage(Message msg) {
+		switch(msg.what) {
+
+			case MESSAGE_FLUSH_TO_STORAGE:
+				onFlushToStorage();
+				break;
+
+			case MESSAGE_FLUSH_TO_API_SERVER:
+				onFlushToRemoteServer();
+				break;
+
+			default:
+				throw(new IllegalArgumentException("Unknown message type of " + Integer.toString(msg.what)));
+		}
+	}
+
+	/**
+	 * Starts the thread all work is done on.
+	 */
+	private static HandlerThread startThread() {
+		HandlerThread thread = new HandlerThread(TAG);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Message indicating it's time to flush outstanding messages to storage.
+	 */
+	protected static final int MESSAGE_FLUSH_TO_STORAGE = 100;
+	/**
+	 * Message indicating it's time to flush outstanding messages to the remote API server.
+	 */
+	protected static final int MESSAGE_FLUSH_TO_API_SERVER = 101;
+
+}
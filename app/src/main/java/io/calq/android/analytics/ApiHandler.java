@@ -15,34 +15,33 @@
 
 package io.calq.android.analytics;
 
-import io.calq.android.ApiException;
 import io.calq.android.LocalConfig;
 
-import java.util.Hashtable;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
 /**
  * Class allows API calls to be handled in a non blocking manner.
+ * 
+ * <p>There is one handler per write key. The work is done in the background by the
+ * {@link ApiEngine}, which is shared by every write key.
  *
  */
-public class ApiHandler extends Handler {
+public class ApiHandler {
 	
 	private static final String TAG = "ApiHandler";
 	
 	/**
-	 * The map between write keys and handler instances.
+	 * The engine doing our background work (shared with other write keys).
 	 */
-	private static Map<String, ApiHandler> handlerKayMap = new Hashtable<String, ApiHandler>(); 	// Yes, shared state. It's by design.
+	protected final ApiEngine engine;
 	
 	/**
 	 * The write key this handler is using.
@@ -50,15 +49,54 @@ public class ApiHandler extends Handler {
 	protected String writeKey;
 	
 	/**
-	 * Queue that holds API calls that we have received but not yet persisted.
+	 * Max number of received calls held in memory before calls spill to the overflow list.
 	 */
-	protected Queue<AbstractAnalyticsApiCall> receiveQueue;
+	protected static final int RECEIVE_QUEUE_CAPACITY = 4096;
+	
+	/**
+	 * Queue that holds API calls that we have received but not yet persisted. Any thread can
+	 * add to this without taking a lock.
+	 */
+	protected MpscRingBuffer<AbstractAnalyticsApiCall> receiveQueue;
+	
+	/**
+	 * Calls received while the receive queue was full (guarded by its own lock).
+	 */
+	private final List<AbstractAnalyticsApiCall> overflowQueue = new ArrayList<AbstractAnalyticsApiCall>();
+	
+	/**
+	 * Whether calls are going to the overflow list. While set every new call goes there too,
+	 * so calls from each thread stay in order.
+	 */
+	private volatile boolean overflowing;
+	
+	/**
+	 * Whether a flush to storage has been requested since the receive queue was last drained.
+	 * Only the first call after a drain needs to schedule anything.
+	 */
+	private final AtomicBoolean flushSignalled = new AtomicBoolean();
 	
 	/**
 	 * Dispatcher used to actually issue API calls.
 	 */
 	protected ApiDispatcher dispatcher;
 	
+	/**
+	 * Chooses how big each batch we send is.
+	 */
+	protected AdaptiveBatchSizer batchSizer;
+	
+	/**
+	 * Sends queued calls to the API server (several batches at once).
+	 */
+	protected BatchPipeline pipeline;
+	
+	/**
+	 * Decides when to retry after flushes fail (and stops us trying while the API server
+	 * can't be reached).
+	 */
+	protected RetryScheduler retryScheduler;
+	
 	/**
 	 * The config we are using.
 	 */
@@ -70,28 +108,51 @@ public class ApiHandler extends Handler {
 	protected long flushStorageDelay = 3 * 1000;
 		
 	/**
-	 * Data store used to persist API calls.
+	 * Data store used to persist API calls (shared with other write keys). Its lock is held
+	 * while moving calls from the receive queue to storage. This keeps calls in order if two
+	 * threads flush to storage at once (and makes sure the receive queue only ever has one
+	 * consumer at a time).
 	 */
 	protected ApiDataStore dataStore;
+	
+	/**
+	 * Held while flushing this write key to the API server, so only one thread flushes it at
+	 * a time. The data store's lock is only taken around reading and acknowledging batches,
+	 * so storage flushes (and other write keys) never wait behind a request.
+	 */
+	final ReentrantLock flushLock = new ReentrantLock();
+	
+	/**
+	 * When this handler is next due to flush to the API server, as uptime in MS (guarded
+	 * by the engine's lock).
+	 */
+	long remoteFlushAt = ApiEngine.NOT_SCHEDULED;
 
 	
-	private ApiHandler(Context context, String writeKey, LocalConfig config) {
-		super(getNewThreadLooper());
-		
+	/**
+	 * Creates a new handler. Use {@link #getHandlerForKey(Context, String, LocalConfig)}
+	 * rather than calling this directly.
+	 */
+	ApiHandler(ApiEngine engine, String writeKey, LocalConfig config) {
+		this.engine = engine;
 		this.writeKey = writeKey;
 		this.config = config;
 		
-		dataStore = new ApiDataStore(context);
-		receiveQueue = new LinkedList<AbstractAnalyticsApiCall>();
+		dataStore = engine.dataStore;
+		dataStore.setQueueLimits(config.getMaxQueueCount(), config.getMaxQueueBytes(), config.getQueueEvictionPolicy());
+		receiveQueue = new MpscRingBuffer<AbstractAnalyticsApiCall>(RECEIVE_QUEUE_CAPACITY);
 		dispatcher = new ApiDispatcher(config);
-		
-		// Shecdule flush of any existing messages in 5s (Long enough so app can load / splash screen)
-		scheduleFlushToRemote(5 * 1000);
+		batchSizer = new AdaptiveBatchSizer();
+		pipeline = new BatchPipeline(writeKey, dataStore, dispatcher, batchSizer,
+				engine.getDispatchExecutor(config.getMaxInFlightBatches()), config.getMaxInFlightBatches(),
+				config.isMultiplexBatches());
+		retryScheduler = new RetryScheduler(config.getRetryMaxDelaySeconds() * 1000L, config.getCircuitBreakerThreshold());
 	}
 		
 	/**
 	 * Gets the handler that can be used for the given write key. Only one handler normally
-	 * exists for each key.
+	 * exists for each key. Every handler shares one background thread and one connection
+	 * to storage (see {@link ApiEngine}).
 	 * 
 	 * @param context		The context to use for this handler.
 	 * @param writeKey		The write key to get an ApiHandler for.
@@ -99,14 +160,7 @@ public class ApiHandler extends Handler {
 	 * @return an ApiHandler for the given write key.
 	 */
 	public static ApiHandler getHandlerForKey(Context context, String writeKey, LocalConfig config) {
-		synchronized (handlerKayMap) {
-			ApiHandler handler = handlerKayMap.get(writeKey);
-			if(handler == null) {
-				handler = new ApiHandler(context, writeKey, config);
-				handlerKayMap.put(writeKey, handler);
-			}
-			return handler;
-		}
+		return ApiEngine.getSharedHandler(context, writeKey, config);
 	}
 
 	/**
@@ -114,18 +168,78 @@ public class ApiHandler extends Handler {
 	 * 
 	 * <p>When new messages arrive we want to return to the calling thread as soon
 	 * as possible so it can get on with doing what it needs to. We store the call
-	 * in a local queue and delay persisting for later.
+	 * in a local queue and delay persisting for later. This doesn't take any locks
+	 * unless the queue is full, and only the first call after each flush to storage
+	 * schedules anything.
+	 * 
+	 * <p>If our engine has been shut down the call is passed on to the handler for our
+	 * write key on a new engine.
 	 * 
 	 * @param apiCall		The API call that was received.
 	 */
 	public void apiCall(AbstractAnalyticsApiCall apiCall) {
-		synchronized (receiveQueue) {
-			receiveQueue.add(apiCall);
-			scheduleFlushToStorage();	
+		if(engine.isShutDown()) {
+			getActiveHandler().apiCall(apiCall);
+			return;
+		}
+		
+		if(overflowing || !receiveQueue.offer(apiCall)) {
+			boolean startedOverflowing;
+			synchronized (overflowQueue) {
+				overflowQueue.add(apiCall);
+				startedOverflowing = !overflowing;
+				overflowing = true;
+			}
+			if(startedOverflowing) {
+				// Getting busy. Don't wait for the delay to write them out
+				engine.flushToStorageNow();
+			}
+		}
+		
+		if(engine.isShutDown()) {
+			// Shut down while we were adding it. Pass on anything the final flush missed
+			rescueReceived();
+			return;
+		}
+		
+		if(!flushSignalled.get() && flushSignalled.compareAndSet(false, true)) {
+			scheduleFlushToStorage();
 			scheduleFlushToRemote();
 		}
 	}
 	
+	/**
+	 * Gets the handler to use for our write key. That is this handler, unless our engine has
+	 * been shut down, in which case it is the key's handler on the shared engine (starting
+	 * a new one if needed).
+	 */
+	public ApiHandler getActiveHandler() {
+		if(!engine.isShutDown()) {
+			return this;
+		}
+		return ApiEngine.getSharedHandler(engine.context, writeKey, config);
+	}
+	
+	/**
+	 * Passes calls still in our receive queue after our engine's final flush to storage on to
+	 * the active handler. If the final flush hasn't happened yet it will write them instead.
+	 */
+	private void rescueReceived() {
+		List<AbstractAnalyticsApiCall> missed = new ArrayList<AbstractAnalyticsApiCall>();
+		synchronized (dataStore) {
+			if(engine.isClosed()) {
+				drainReceived(missed);
+			}
+		}
+		if(!missed.isEmpty()) {
+			Log.w(TAG, "Passing " + missed.size() + " calls made during shutdown to a new engine");
+			ApiHandler active = getActiveHandler();
+			for(AbstractAnalyticsApiCall apiCall : missed) {
+				active.apiCall(apiCall);
+			}
+		}
+	}
+	
 	/**
 	 * Handles when a it's time to flush outstanding messages to storage.
 	 * 
@@ -134,135 +248,247 @@ public class ApiHandler extends Handler {
 	 * issue we can keep retrying to play them.
 	 */
 	protected void onFlushToStorage() {
-		synchronized (receiveQueue) {
-			while(!receiveQueue.isEmpty()) {
-				dataStore.addToQueue(receiveQueue.remove());
+		synchronized (dataStore) {
+			if(engine.isClosed()) {
+				// Final flush already made. Anything since is passed on by apiCall
+				return;
+			}
+			List<AbstractAnalyticsApiCall> received = new ArrayList<AbstractAnalyticsApiCall>();
+			drainReceived(received);
+			if(received.isEmpty()) {
+				return;
+			}
+			
+			// Write all in one transaction (and without blocking new calls arriving)
+			dataStore.addAllToQueue(received);
+		}
+	}
+	
+	/**
+	 * Moves the calls we have received but not yet persisted to the given collection, in the
+	 * order they were received. Must be called holding the data store's lock (and the calls
+	 * written to storage before it is released).
+	 * 
+	 * @param out			The collection to add the calls to.
+	 */
+	void drainReceived(Collection<AbstractAnalyticsApiCall> out) {
+		// Anything received from here on needs to schedule another flush
+		flushSignalled.set(false);
+		
+		receiveQueue.drainTo(out);
+		if(overflowing) {
+			synchronized (overflowQueue) {
+				// Drain again under the lock. Any call that went to the queue before a call
+				//	in the overflow list is then taken first
+				receiveQueue.drainTo(out);
+				out.addAll(overflowQueue);
+				overflowQueue.clear();
+				overflowing = false;
 			}
 		}
 	}
 	
 	/**
 	 * Requests that we flush outstanding events immediately.
+	 * 
+	 * <p>If our engine has been shut down this flushes the handler for our write key on a
+	 * new engine instead.
 	 */
 	public boolean forceFlush() {
+		if(engine.isShutDown()) {
+			return getActiveHandler().forceFlush();
+		}
+		
         onFlushToStorage(); // In case we have any not yet saved, but we will want to flush them
         return onFlushToRemoteServer();
     }
 	
+	/**
+	 * Gets stats about the requests this handler has sent to the API server.
+	 */
+	public UploadStats getUploadStats() {
+		return dispatcher.getUploadStats();
+	}
+	
+	/**
+	 * Gets the sizer choosing this handler's batch size (and its round trip and failure stats).
+	 */
+	public AdaptiveBatchSizer getBatchSizer() {
+		return batchSizer;
+	}
+	
+	/**
+	 * Gets the scheduler deciding when this handler retries failed flushes (and the state of
+	 * its circuit breaker).
+	 */
+	public RetryScheduler getRetryScheduler() {
+		return retryScheduler;
+	}
+	
+	/**
+	 * Gets counts of queued calls that were evicted because the queue was full or they expired
+	 * (and why).
+	 */
+	public EvictionStats getEvictionStats() {
+		return dataStore.getEvictionStats();
+	}
+	
+	/**
+	 * Gets the number of calls rejected by the API server that are being kept aside.
+	 */
+	public long getDeadLetterCount() {
+		return dataStore.getDeadLetterCount(writeKey);
+	}
+	
+	/**
+	 * Gets the calls rejected by the API server that are being kept aside, oldest first.
+	 */
+	public List<DeadLetter> getDeadLetters() {
+		return dataStore.getDeadLetters(writeKey);
+	}
+	
+	/**
+	 * Puts calls rejected by the API server back on the queue to be sent again.
+	 * 
+	 * @return the number of calls requeued.
+	 */
+	public int requeueDeadLetters() {
+		int requeued = dataStore.requeueDeadLetters(writeKey);
+		if(requeued > 0) {
+			scheduleFlushToRemote();
+		}
+		return requeued;
+	}
+	
 	/**
 	 * Handles when a it's time to flush queued messages to the API server.
 	 * 
 	 * <p>API calls which fail to send are not actually removed from the queue 
-	 * (unless it was an API error from the server).
+	 * (unless it was an API error from the server). Failures back off before retrying, and
+	 * after too many we only probe with a single batch now and then. If the server asks us
+	 * to slow down we don't send anything until it says we can.
+	 * 
+	 * <p>This flushes this handler on its own. Scheduled flushes are run by the engine,
+	 * taking turns with other write keys.
 	 */
 	protected boolean onFlushToRemoteServer() {
-		synchronized (dataStore) {
-			// Eat until we run out
-			QueuedApiCall apiCall = null;
-			while(null != (apiCall = dataStore.peekQueue(writeKey))) {
-                try {
-                    Vector<QueuedApiCall> batch = new Vector<QueuedApiCall>();
-                    // Can we batch? Only track supports batching
-                    if(apiCall.getApiEndpoint().equals(ActionApiCall.ENDPOINT)) {
-                        batch = dataStore.getBatch(writeKey, apiCall.getApiEndpoint());
-                    } else {
-                        // Single call
-                        batch.add(apiCall);
-                    }
-
-                    if(dispatcher.dispatch(batch)) {
-						// Success. Delete this one
-						dataStore.deleteFromQueue(batch);
-					} else {
-						// Failed. Probably network error. Retry later
-						break;
-					}
-				} catch (ApiException e) {
-					// API exceptions can't be replayed. They will fail again
-					Log.e(TAG, "API exception returned from Calq: " + e.getMessage(), e);
-					dataStore.deleteFromQueue(apiCall);
-				}
+		flushLock.lock();
+		try {
+			if(engine.isClosed()) {
+				// Shut down while we were waiting. Anything queued is sent by the next engine
+				return false;
 			}
 			
-			// Empty now, don't fire again for a little
-			scheduleFlushToRemote();
+			boolean emptied = false;
+			if(beginFlushToRemote()) {
+				// Eat until we run out (or fail)
+				emptied = pipeline.flush();
+				onFlushResult(emptied);
+			}
+			endFlushToRemote();
 
-            return apiCall == null; // Whether we emptied the queue or not
+            return emptied;
+		} finally {
+			flushLock.unlock();
 		}
 	}
 	
 	/**
-	 * Handles API messages as they arrived.
+	 * Starts a flush to the API server. Must be called holding {@link #flushLock}, and
+	 * followed by {@link #endFlushToRemote()}.
 	 * 
-	 * @param msg			The message containing the API call to handle.
+	 * @return true if batches can be sent (false if we are backing off).
 	 */
-	@Override
-	public void handleMessage(Message msg) {
-		switch(msg.what) {
-
-			case MESSAGE_FLUSH_TO_STORAGE:
-				onFlushToStorage();
-				break;
-				
-			case MESSAGE_FLUSH_TO_API_SERVER:
-				onFlushToRemoteServer();
-				break;
-				
-			default:
-				throw(new IllegalArgumentException("Unknown message type of " + Integer.toString(msg.what)));
-		}	
+	boolean beginFlushToRemote() {
+		// Don't spend bandwidth on calls that are too old to be worth anything
+		dataStore.purgeExpired(TimeUnit.HOURS.toMillis(config.getQueueTtlHours()));
+		
+		if(!retryScheduler.isPaused() && retryScheduler.getState() == RetryScheduler.State.HALF_OPEN) {
+			// See if the server is back before sending everything
+			onFlushResult(pipeline.probe());
+		}
+		
+		return !retryScheduler.isPaused() && retryScheduler.getState() == RetryScheduler.State.CLOSED;
 	}
 	
 	/**
-	 * Request that we flush to storage after the next delay. Will be ignored if 
-	 * a flush has already been scheduled.
+	 * Sends our next few batches to the API server, as one turn of a flush shared with
+	 * other write keys. Sends as many batches as we can have in flight at once.
+	 * 
+	 * @return true if there is more to send (so we need another turn).
 	 */
-	protected void scheduleFlushToStorage() {
-		if(!hasMessages(MESSAGE_FLUSH_TO_STORAGE)) {
-			Message msg = Message.obtain();
-			msg.what = MESSAGE_FLUSH_TO_STORAGE;
-			sendMessageDelayed(msg, flushStorageDelay);
+	boolean flushToRemoteTurn() {
+		boolean succeeded = pipeline.flush(config.getMaxInFlightBatches());
+		if(succeeded && !pipeline.isEmptied()) {
+			return true;
 		}
+		onFlushResult(succeeded);
+		return false;
 	}
 	
 	/**
-	 * Request that we flush to Calq's API servers. Will be ignored if 
-	 * a flush has already been scheduled.
+	 * Finishes a flush to the API server, and schedules the next.
 	 */
-	protected void scheduleFlushToRemote() {
-		if(!hasMessages(MESSAGE_FLUSH_TO_API_SERVER)) {
-			scheduleFlushToRemote(config.getRemoteFlushDelaySeconds() * 1000);
+	void endFlushToRemote() {
+		// Keep dead letters bounded
+		dataStore.purgeDeadLetters(writeKey, config.getDeadLetterMaxCount(),
+				TimeUnit.DAYS.toMillis(config.getDeadLetterMaxAgeDays()));
+		
+		// Don't fire again for a little (or longer if backing off)
+		scheduleNextFlushToRemote();
+	}
+	
+	/**
+	 * Passes the result of the last flush (or probe) on to the retry scheduler.
+	 */
+	private void onFlushResult(boolean succeeded) {
+		long retryAfterMs = pipeline.getRetryAfterMs();
+		if(retryAfterMs > 0) {
+			retryScheduler.onThrottled(retryAfterMs);
+		} else if(succeeded) {
+			retryScheduler.onSuccess();
+		} else {
+			retryScheduler.onFailure();
 		}
 	}
 	
 	/**
-	 * Request that we flush to Calq's API servers. With the given delay.
-	 * Does not check if a message is already pending.
-	 * 
-	 * @param delayMS		The delay before flushing (in MS).
+	 * Request that we flush to storage after the next delay. Will be ignored if 
+	 * a flush has already been scheduled (for any write key).
 	 */
-	protected void scheduleFlushToRemote(int delayMS) {
-		Message msg = Message.obtain();
-		msg.what = MESSAGE_FLUSH_TO_API_SERVER;
-		sendMessageDelayed(msg, delayMS);
+	protected void scheduleFlushToStorage() {
+		engine.scheduleFlushToStorage(flushStorageDelay);
 	}
 	
 	/**
-	 * Starts a new HandlerThread and gets a Looper for it so we can work off the main thread.
+	 * Request that we flush to Calq's API servers. Will be ignored if 
+	 * a flush has already been scheduled.
 	 */
-	private static Looper getNewThreadLooper() {
-		HandlerThread thread = new HandlerThread(TAG);
-		thread.start();
-		return thread.getLooper();
+	protected void scheduleFlushToRemote() {
+		engine.scheduleFlushToRemote(this, config.getRemoteFlushDelaySeconds() * 1000L, false);
 	}
-
+	
 	/**
-	 * Message indicating it's time to flush outstanding messages to storage.
+	 * Schedules the next flush to Calq's API servers. Replaces any already scheduled if
+	 * we are backing off after failures.
 	 */
-	protected static final int MESSAGE_FLUSH_TO_STORAGE = 100;
+	protected void scheduleNextFlushToRemote() {
+		long retryDelayMs = retryScheduler.getRetryDelayMs();
+		if(retryDelayMs > 0) {
+			scheduleFlushToRemote(retryDelayMs);
+		} else {
+			scheduleFlushToRemote();
+		}
+	}
+	
 	/**
-	 * Message indicating it's time to flush outstanding messages to the remote API server.
+	 * Request that we flush to Calq's API servers. With the given delay.
+	 * Replaces any flush already scheduled.
+	 * 
+	 * @param delayMS		The delay before flushing (in MS).
 	 */
-	protected static final int MESSAGE_FLUSH_TO_API_SERVER = 101;
+	protected void scheduleFlushToRemote(long delayMS) {
+		engine.scheduleFlushToRemote(this, delayMS, true);
+	}
 
 }
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import io.calq.android.LocalConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Long lived HTTP transport used to POST API calls to the Calq API server.
+ *
+ * <p>This is built on HttpURLConnection, which keeps a pool of keep-alive connections per
+ * host. As long as each response is read to the end and its stream closed (rather than the
+ * connection being disconnected) the socket, and any TLS session on it, is handed back to the
+ * pool and reused by the next request. That saves a full TCP+TLS handshake per batch.
+ *
+ * <p>A single transport is normally shared by every dispatcher (and so every write key) in
+ * the process. This class is thread safe.
+ */
+public class ApiTransport {
+
+	/**
+	 * Shared instance used by dispatchers.
+	 */
+	private static ApiTransport singleton;
+
+	/**
+	 * Lock used to create singleton.
+	 */
+	private static Object creationLock = new Object();
+
+	/**
+	 * Timeout used when opening a new connection (in MS).
+	 */
+	protected int connectTimeoutMs;
+
+	/**
+	 * Timeout used when waiting for data from an open connection (in MS).
+	 */
+	protected int readTimeoutMs;
+
+	/**
+	 * Creates a new transport with the given timeouts. Typically you would use the shared
+	 * instance from {@link #getInstance(LocalConfig)} so that connections are pooled.
+	 *
+	 * @param connectTimeoutMs		Timeout used when opening a new connection (in MS).
+	 * @param readTimeoutMs			Timeout used when waiting for data (in MS).
+	 */
+	public ApiTransport(int connectTimeoutMs, int readTimeoutMs) {
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.readTimeoutMs = readTimeoutMs;
+
+		// HttpURLConnection had a keep-alive bug prior to Froyo, but we need API 8+ anyway.
+		//	See: http://android-developers.blogspot.co.uk/2011/09/androids-http-clients.html
+		System.setProperty("http.keepAlive", "true");
+	}
+
+	/**
+	 * Gets (or creates) the shared transport. The timeouts are taken from the config used
+	 * by the first caller.
+	 *
+	 * @param config		The config to read timeouts from.
+	 * @return the shared ApiTransport.
+	 */
+	public static ApiTransport getInstance(LocalConfig config) {
+		synchronized (creationLock) {
+			if(singleton == null) {
+				singleton = new ApiTransport(
+						config.getRemoteConnectTimeoutSeconds() * 1000,
+						config.getRemoteReadTimeoutSeconds() * 1000);
+			}
+			return singleton;
+		}
+	}
+
+	/**
+	 * POSTs a body to the given URL and reads the full response. The body is streamed to the
+	 * connection (using chunked transfer encoding) as it is written, so it is never held in
+	 * memory as a whole.
+	 * 
+	 * @param url			The URL to POST to.
+	 * @param contentType	The content type of the body.
+	 * @param contentEncoding	The content encoding of the body (null if not encoded).
+	 * @param body			Writes the body to send.
+	 * @return the response from the server.
+	 * @throws IOException if the request could not be completed.
+	 */
+	public Response post(String url, String contentType, String contentEncoding, BodyWriter body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			connection.setConnectTimeout(connectTimeoutMs);
+			connection.setReadTimeout(readTimeoutMs);
+			connection.setUseCaches(false);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", contentType);
+			if(contentEncoding != null) {
+				connection.setRequestProperty("Content-Encoding", contentEncoding);
+			}
+			connection.setChunkedStreamingMode(0);	// Default chunk size
+
+			OutputStream out = connection.getOutputStream();
+			try {
+				body.writeTo(out);
+			} finally {
+				out.close();
+			}
+
+			int statusCode = connection.getResponseCode();
+			String retryAfter = connection.getHeaderField("Retry-After");
+			return new Response(statusCode, readFully(connection, statusCode), retryAfter);
+		} catch (IOException e) {
+			// Something broke mid request. Don't let this socket go back into the pool
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the response body to the end and closes it. Reading to the end is what allows
+	 * HttpURLConnection to recycle the connection.
+	 */
+	private static String readFully(HttpURLConnection connection, int statusCode) throws IOException {
+		InputStream in = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if(in == null) {
+			return "";
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a request body.
+	 */
+	public interface BodyWriter {
+
+		/**
+		 * Writes the body to the given stream. Implementations should not close the stream.
+		 * 
+		 * @param out		The stream to write to.
+		 * @throws IOException if the body could not be written.
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * A fully read response from the API server.
+	 */
+	public static class Response {
+
+		private final int statusCode;
+		private final String body;
+		private final String retryAfter;
+
+		public Response(int statusCode, String body) {
+			this(statusCode, body, null);
+		}
+
+		public Response(int statusCode, String body, String retryAfter) {
+			this.statusCode = statusCode;
+			this.body = body;
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * Gets the HTTP status code of the response.
+		 */
+		public int getStatusCode() { return statusCode; }
+
+		/**
+		 * Gets the body of the response (empty if none given).
+		 */
+		public String getBody() { return body; }
+
+		/**
+		 * Gets the raw Retry-After header of the response (null if none given).
+		 */
+		public String getRetryAfter() { return retryAfter; }
+	}
+
+}
@@ -0,0 +1,405 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import io.calq.android.ApiException;
+import io.calq.android.ApiRateLimitedException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Sends a write key's queued calls to the API server with several batches in flight at once.
+ * After a long time offline this means draining the queue is bound by bandwidth rather than
+ * round trip latency.
+ * 
+ * <p>Batches are read from the queue in order, and each is handed to the executor as soon as
+ * there is room for it. Responses can come back in any order. Each batch is a contiguous run
+ * of queued ids, so it is acknowledged (removed from the queue) as soon as it succeeds,
+ * whatever happened to the batches either side of it.
+ * 
+ * <p>Calls for the same actor must reach the server in the order they were made, so a batch
+ * is only sent while no batch in flight shares an actor with it. Calls without a single
+ * ordering actor (Transfers, and calls queued by older versions) act as barriers: they are
+ * only sent once everything before them has completed, and nothing after them is sent until
+ * they have.
+ * 
+ * <p>If the API server rejects a batch it is sent again in halves, recursively, until the
+ * calls it rejects are isolated. Only those are moved aside (to the dead letter table) and
+ * everything else in the batch is delivered. One bad call costs a number of extra requests logarithmic in the batch size.
+ * 
+ * <p>Once a batch fails no more are started. Batches already in flight are allowed to finish
+ * (and are acknowledged if they succeed) and the rest stays queued for the next flush. The
+ * same goes if the API server asks us to slow down, in which case {@link #getRetryAfterMs()}
+ * says how long it asked us to wait.
+ */
+public class BatchPipeline {
+
+	private static final String TAG = "BatchPipeline";
+
+	/**
+	 * Executor that runs each batch on the calling thread (one batch in flight at a time).
+	 */
+	public static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * The outcome of a completed batch (or of a pass over the queue). Ordered from best to
+	 * worst.
+	 */
+	private enum Outcome {
+		/** Sent successfully. */
+		SENT,
+		/** Failed to send (network or server error). Retry later. */
+		FAILED,
+		/** API server asked us to slow down. Retry after the delay it gave. */
+		THROTTLED
+	}
+
+	private final String writeKey;
+	private final ApiDataStore dataStore;
+	private final ApiDispatcher dispatcher;
+	private final AdaptiveBatchSizer batchSizer;
+	private final Executor executor;
+	private final int maxInFlight;
+	private final boolean multiplex;
+	
+	/**
+	 * Delay the API server asked for during the last flush (0 if none).
+	 */
+	private long retryAfterMs;
+	
+	/**
+	 * Whether the last flush (or probe) reached the end of the queue.
+	 */
+	private boolean emptied;
+
+	/**
+	 * Creates a new pipeline.
+	 * 
+	 * @param writeKey		The write key whose queue is sent.
+	 * @param dataStore		The store holding the queue.
+	 * @param dispatcher	The dispatcher used to send batches. Must be thread safe.
+	 * @param batchSizer	Chooses the size of each batch.
+	 * @param executor		Runs batches. Should have at least maxInFlight threads (or be
+	 * 						{@link #DIRECT_EXECUTOR} when maxInFlight is 1).
+	 * @param maxInFlight	The max number of batches in flight at once.
+	 * @param multiplex		If batches can mix endpoints.
+	 */
+	public BatchPipeline(String writeKey, ApiDataStore dataStore, ApiDispatcher dispatcher,
+			AdaptiveBatchSizer batchSizer, Executor executor, int maxInFlight, boolean multiplex) {
+		this.writeKey = writeKey;
+		this.dataStore = dataStore;
+		this.dispatcher = dispatcher;
+		this.batchSizer = batchSizer;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.multiplex = multiplex;
+	}
+
+	/**
+	 * Sends queued calls until the queue is empty or a batch fails to send. Calls rejected
+	 * by the API server are removed from the queue (they would only fail again).
+	 * 
+	 * <p>Only one thread should flush a write key at a time.
+	 * 
+	 * @return true if the queue was emptied.
+	 */
+	public boolean flush() {
+		return flush(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Sends up to the given number of batches from the head of the queue, stopping early if
+	 * the queue empties or a batch fails to send. Lets several write keys take turns sending.
+	 * 
+	 * <p>Only one thread should flush a write key at a time.
+	 * 
+	 * @param maxBatches	The max number of batches to send.
+	 * @return true if every batch sent succeeded. {@link #isEmptied()} says whether that
+	 * 		was everything queued.
+	 */
+	public boolean flush(int maxBatches) {
+		retryAfterMs = 0;
+		return flushPass(maxInFlight, maxBatches) == Outcome.SENT;
+	}
+
+	/**
+	 * Sends just the batch at the head of the queue, to probe whether the API server can be
+	 * reached again after failures.
+	 * 
+	 * @return true if the server answered the probe (or there was nothing queued).
+	 */
+	public boolean probe() {
+		retryAfterMs = 0;
+		// Throttled still means the server answered
+		return flushPass(1, 1) != Outcome.FAILED;
+	}
+
+	/**
+	 * Gets how long the API server asked us to wait before sending again during the last
+	 * flush or probe (in MS).
+	 * 
+	 * @return the delay, or 0 if the server didn't ask us to slow down.
+	 */
+	public long getRetryAfterMs() {
+		return retryAfterMs;
+	}
+
+	/**
+	 * Gets whether the last flush or probe found nothing more queued.
+	 */
+	public boolean isEmptied() {
+		return emptied;
+	}
+
+	/**
+	 * Sends batches from the head of the queue until it is empty, a batch doesn't succeed or
+	 * the batch limit is reached, then waits for everything still in flight.
+	 */
+	private Outcome flushPass(int inFlightLimit, int batchLimit) {
+		CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+		Map<Future<Boolean>, InFlightBatch> inFlight = new HashMap<Future<Boolean>, InFlightBatch>();
+
+		Outcome outcome = Outcome.SENT;
+		InFlightBatch next = null;
+		long lastReadId = 0;
+		int started = 0;
+		emptied = false;
+		while(outcome == Outcome.SENT && started < batchLimit) {
+			if(next == null) {
+				Vector<QueuedApiCall> batch = dataStore.getNextBatch(writeKey, multiplex, batchSizer.getTargetBytes(), lastReadId);
+				if(batch.isEmpty()) {
+					emptied = true;
+					break;	// Nothing more queued
+				}
+				lastReadId = batch.lastElement().getId();
+				next = new InFlightBatch(batch);
+			}
+
+			if(inFlight.size() < inFlightLimit && !next.conflictsWith(inFlight.values())) {
+				dataStore.markInFlight(writeKey, next.batch);
+				inFlight.put(completion.submit(next), next);
+				next = null;
+				started++;
+			} else {
+				// No room, or would overtake an earlier call for the same actor
+				outcome = awaitNext(completion, inFlight);
+			}
+		}
+
+		// Let anything still in flight finish. Keep the worst outcome
+		while(!inFlight.isEmpty()) {
+			Outcome completed = awaitNext(completion, inFlight);
+			if(completed.compareTo(outcome) > 0) {
+				outcome = completed;
+			}
+		}
+		return outcome;
+	}
+
+	/**
+	 * Waits for the next batch in flight to complete, and acknowledges it if it succeeded.
+	 */
+	private Outcome awaitNext(CompletionService<Boolean> completion, Map<Future<Boolean>, InFlightBatch> inFlight) {
+		Future<Boolean> future = takeUninterruptibly(completion);
+		InFlightBatch done = inFlight.remove(future);
+		try {
+			return completed(future, done);
+		} finally {
+			dataStore.clearInFlight(writeKey, done.batch);
+		}
+	}
+
+	/**
+	 * Handles the result of a completed batch.
+	 */
+	private Outcome completed(Future<Boolean> future, InFlightBatch done) {
+		try {
+			if(future.get()) {
+				batchSizer.onSuccess(done.getRoundTripMs(), ApiDataStore.getBatchByteSize(done.batch));
+				dataStore.deleteBatchFromQueue(writeKey, done.batch);
+				return Outcome.SENT;
+			} else {
+				// Probably network error or timeout. Retry later, with smaller batches
+				batchSizer.onFailure();
+				return Outcome.FAILED;
+			}
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof ApiRateLimitedException) {
+				// Batch was fine, but we need to back off. Keep it queued
+				retryAfterMs = Math.max(retryAfterMs, ((ApiRateLimitedException) e.getCause()).getRetryAfterMs());
+				return Outcome.THROTTLED;
+			} else if(e.getCause() instanceof ApiException) {
+				// Something in the batch was rejected. Find it
+				return isolateRejected(done.batch, (ApiException) e.getCause());
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			// Can't happen, the future has already completed
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sends a rejected batch again in two halves (in order), recursing into any half that is
+	 * also rejected, until the rejected calls are isolated and moved to the dead letter table.
+	 * Halves that succeed are acknowledged as normal.
+	 * 
+	 * <p>This runs on the flushing thread, so no other batches are started meanwhile.
+	 * 
+	 * @param batch			The rejected batch.
+	 * @param rejection		Why it was rejected.
+	 * @return SENT if everything in the batch was delivered or removed, otherwise the
+	 * 		outcome that stopped us (the rest is left queued).
+	 */
+	private Outcome isolateRejected(Vector<QueuedApiCall> batch, ApiException rejection) {
+		if(batch.size() == 1) {
+			// Found it. API exceptions can't be replayed. They will fail again, so move aside
+			Log.e(TAG, "API exception returned from Calq: " + rejection.getMessage(), rejection);
+			dataStore.moveToDeadLetter(batch.firstElement(), rejection.getMessage());
+			return Outcome.SENT;
+		}
+
+		int middle = batch.size() / 2;
+		List<Vector<QueuedApiCall>> halves = new ArrayList<Vector<QueuedApiCall>>(2);
+		halves.add(new Vector<QueuedApiCall>(batch.subList(0, middle)));
+		halves.add(new Vector<QueuedApiCall>(batch.subList(middle, batch.size())));
+		for(Vector<QueuedApiCall> half : halves) {
+			try {
+				if(dispatcher.dispatch(half)) {
+					dataStore.deleteBatchFromQueue(writeKey, half);
+				} else {
+					batchSizer.onFailure();
+					return Outcome.FAILED;
+				}
+			} catch (ApiRateLimitedException e) {
+				retryAfterMs = Math.max(retryAfterMs, e.getRetryAfterMs());
+				return Outcome.THROTTLED;
+			} catch (ApiException e) {
+				Outcome outcome = isolateRejected(half, e);
+				if(outcome != Outcome.SENT) {
+					return outcome;
+				}
+			}
+		}
+		return Outcome.SENT;
+	}
+
+	/**
+	 * Takes the next completed batch. We can't walk away from batches in flight (they still
+	 * need acknowledging) so interrupts are deferred until one has completed.
+	 */
+	private static Future<Boolean> takeUninterruptibly(CompletionService<Boolean> completion) {
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return completion.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * A batch being sent, along with the actors it must be kept in order with.
+	 */
+	private class InFlightBatch implements Callable<Boolean> {
+
+		private final Vector<QueuedApiCall> batch;
+		private final Set<String> actors = new HashSet<String>();
+		private boolean barrier;
+		private long startedNanos;
+		private long finishedNanos;
+
+		public InFlightBatch(Vector<QueuedApiCall> batch) {
+			this.batch = batch;
+			for(QueuedApiCall apiCall : batch) {
+				String actor = apiCall.getOrderingActor();
+				if(actor == null) {
+					barrier = true;
+				} else {
+					actors.add(actor);
+				}
+			}
+		}
+
+		/**
+		 * Whether sending this batch now could reorder it with one of the given batches.
+		 */
+		public boolean conflictsWith(Collection<InFlightBatch> others) {
+			if(others.isEmpty()) {
+				return false;
+			}
+			if(barrier) {
+				return true;
+			}
+			for(InFlightBatch other : others) {
+				if(other.barrier) {
+					return true;
+				}
+				for(String actor : actors) {
+					if(other.actors.contains(actor)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public Boolean call() throws ApiException {
+			startedNanos = System.nanoTime();
+			try {
+				return dispatcher.dispatch(batch);
+			} finally {
+				finishedNanos = System.nanoTime();
+			}
+		}
+
+		/**
+		 * Gets how long the batch took to send (in MS). Only valid once completed.
+		 */
+		public long getRoundTripMs() {
+			return (finishedNanos - startedNanos) / 1000000;
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+/**
+ * An API call the API server rejected, kept aside in the dead letter table so it can be
+ * inspected (or requeued after a server side fix) rather than being lost.
+ */
+public class DeadLetter {
+
+	private final long id;
+	private final String writeKey;
+	private final String endpoint;
+	private final String payload;
+	private final String error;
+	private final int attempts;
+	private final long createdAt;
+	private final long failedAt;
+
+	/**
+	 * @param id			The id of the dead letter (in local storage).
+	 * @param writeKey		The write key used.
+	 * @param endpoint		The endpoint the call was sent to.
+	 * @param payload		The JSON payload of the call (as stored, without utc_now).
+	 * @param error			The error the API server gave (can be null).
+	 * @param attempts		How many times the call has been rejected.
+	 * @param createdAt		When the call was first queued (MS since epoch).
+	 * @param failedAt		When the call was last rejected (MS since epoch).
+	 */
+	public DeadLetter(long id, String writeKey, String endpoint, String payload, String error,
+			int attempts, long createdAt, long failedAt) {
+		this.id = id;
+		this.writeKey = writeKey;
+		this.endpoint = endpoint;
+		this.payload = payload;
+		this.error = error;
+		this.attempts = attempts;
+		this.createdAt = createdAt;
+		this.failedAt = failedAt;
+	}
+
+	/**
+	 * Gets the id of the dead letter (in local storage).
+	 */
+	public long getId() { return id; }
+
+	/**
+	 * Gets the write key used.
+	 */
+	public String getWriteKey() { return writeKey; }
+
+	/**
+	 * Gets the endpoint the call was sent to (such as Track).
+	 */
+	public String getEndpoint() { return endpoint; }
+
+	/**
+	 * Gets the JSON payload of the call (as stored, without utc_now).
+	 */
+	public String getPayload() { return payload; }
+
+	/**
+	 * Gets the error the API server gave when rejecting the call (can be null).
+	 */
+	public String getError() { return error; }
+
+	/**
+	 * Gets how many times the call has been rejected (more than 1 if it was requeued).
+	 */
+	public int getAttempts() { return attempts; }
+
+	/**
+	 * Gets when the call was first queued (MS since epoch).
+	 */
+	public long getCreatedAt() { return createdAt; }
+
+	/**
+	 * Gets when the call was last rejected (MS since epoch).
+	 */
+	public long getFailedAt() { return failedAt; }
+
+}
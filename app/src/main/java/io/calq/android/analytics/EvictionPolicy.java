@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+/**
+ * How calls are chosen for eviction when the queue on disk is over its limits.
+ */
+public enum EvictionPolicy {
+
+	/**
+	 * Evict the oldest queued calls first.
+	 */
+	DROP_OLDEST("drop_oldest"),
+
+	/**
+	 * Evict the newest queued calls first (new calls are dropped while the queue is full).
+	 */
+	DROP_NEWEST("drop_newest"),
+
+	/**
+	 * Evict plain tracks before sales, profiles and transfers (oldest first within each).
+	 */
+	PRIORITY("priority");
+
+	private final String configValue;
+
+	private EvictionPolicy(String configValue) {
+		this.configValue = configValue;
+	}
+
+	/**
+	 * Gets the value used to select this policy in config.
+	 */
+	public String getConfigValue() {
+		return configValue;
+	}
+
+	/**
+	 * Gets the policy for the given config value.
+	 * 
+	 * @param configValue		The value from config (such as "drop_oldest").
+	 * @return the matching policy, or null if none matches.
+	 */
+	public static EvictionPolicy fromConfigValue(String configValue) {
+		for(EvictionPolicy policy : values()) {
+			if(policy.configValue.equalsIgnoreCase(configValue)) {
+				return policy;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+/**
+ * Counts queued calls that were evicted or expired (dropped without being sent), and why.
+ * 
+ * <p>This class is thread safe.
+ */
+public class EvictionStats {
+
+	/**
+	 * Why calls were evicted.
+	 */
+	public enum Reason {
+		/** The queue had more calls than allowed. */
+		MAX_COUNT,
+		/** The queue was bigger than allowed (in bytes). */
+		MAX_BYTES,
+		/** The call was queued for longer than allowed. */
+		EXPIRED
+	}
+
+	private final long[] evicted = new long[Reason.values().length];
+
+	/**
+	 * Records calls being evicted.
+	 * 
+	 * @param reason		Why they were evicted.
+	 * @param count			The number of calls evicted.
+	 */
+	public synchronized void recordEvicted(Reason reason, long count) {
+		evicted[reason.ordinal()] += count;
+	}
+
+	/**
+	 * Gets the number of calls evicted for the given reason.
+	 */
+	public synchronized long getEvicted(Reason reason) {
+		return evicted[reason.ordinal()];
+	}
+
+	/**
+	 * Gets the number of calls evicted for any reason.
+	 */
+	public synchronized long getTotalEvicted() {
+		long total = 0;
+		for(long count : evicted) {
+			total += count;
+		}
+		return total;
+	}
+
+}
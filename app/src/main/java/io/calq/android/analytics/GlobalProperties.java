@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the global properties sent with every action. Changing a property
+ * gives a new snapshot (with the next version) and leaves this one as it was, so a snapshot
+ * can be shared by any number of queued calls without copying or locking.
+ *
+ * <p>This class is thread safe.
+ */
+public final class GlobalProperties {
+
+	/**
+	 * Snapshot with no properties set.
+	 */
+	public static final GlobalProperties EMPTY =
+			new GlobalProperties(Collections.<String, Object>emptyMap(), 0);
+
+	/**
+	 * The properties in this snapshot (never modified once created).
+	 */
+	private final Map<String, Object> properties;
+
+	/**
+	 * Version of this snapshot. Each change gives a snapshot one version higher.
+	 */
+	private final long version;
+
+	private GlobalProperties(Map<String, Object> properties, long version) {
+		this.properties = properties;
+		this.version = version;
+	}
+
+	/**
+	 * Gets a snapshot with the given property set (overwriting any existing value).
+	 *
+	 * @param property		The name of the property to set.
+	 * @param value			The value of the property (not null).
+	 * @return a new snapshot with the property set.
+	 */
+	public GlobalProperties with(String property, Object value) {
+		if(value == null) {
+			throw new NullPointerException("Global property values can not be null");
+		}
+		Map<String, Object> copy = new HashMap<String, Object>(properties);
+		copy.put(property, value);
+		return new GlobalProperties(Collections.unmodifiableMap(copy), version + 1);
+	}
+
+	/**
+	 * Gets a snapshot with all the given properties set (overwriting any existing values).
+	 *
+	 * @param values		The properties to set (values not null).
+	 * @return a new snapshot with the properties set.
+	 */
+	public GlobalProperties withAll(Map<String, ?> values) {
+		Map<String, Object> copy = new HashMap<String, Object>(properties);
+		for(Map.Entry<String, ?> entry : values.entrySet()) {
+			if(entry.getValue() == null) {
+				throw new NullPointerException("Global property values can not be null");
+			}
+			copy.put(entry.getKey(), entry.getValue());
+		}
+		return new GlobalProperties(Collections.unmodifiableMap(copy), version + 1);
+	}
+
+	/**
+	 * Gets the value of the given property (null if not set).
+	 */
+	public Object get(String property) {
+		return properties.get(property);
+	}
+
+	/**
+	 * Gets whether the given property is set.
+	 */
+	public boolean containsKey(String property) {
+		return properties.containsKey(property);
+	}
+
+	/**
+	 * Gets the properties in this snapshot as a read only map.
+	 */
+	public Map<String, Object> asMap() {
+		return properties;
+	}
+
+	/**
+	 * Gets the number of properties set.
+	 */
+	public int size() {
+		return properties.size();
+	}
+
+	/**
+	 * Gets the version of this snapshot. A snapshot with a higher version was made from
+	 * this one (or a later one).
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+}
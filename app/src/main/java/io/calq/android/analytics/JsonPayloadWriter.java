@@ -0,0 +1,334 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Streaming JSON encoder used to build API call payloads. Values are written straight into a
+ * reusable character buffer, rather than building a tree of JSONObjects only to serialize it.
+ *
+ * <p>Handles the property value types we send: strings, numbers (including BigDecimal),
+ * booleans, null, and nested maps, collections and arrays of those. Anything else is written
+ * as its string form. Numbers that are whole are written without a fraction (as JSONObject
+ * does), and numbers that aren't finite are written as null.
+ *
+ * <p>A writer can be reused for many payloads by calling {@link #reset()}. It doesn't check
+ * the JSON is well formed (such as names only inside objects), so callers must take care.
+ * This class is not thread safe.
+ */
+public class JsonPayloadWriter {
+
+	/**
+	 * Largest buffer kept between payloads (in chars). Bigger buffers are dropped on reset so
+	 * one huge payload doesn't hold memory forever.
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	/**
+	 * Initial size of the buffer (in chars). Enough for a typical action.
+	 */
+	private static final int INITIAL_CAPACITY = 512;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 2^63, the first double beyond the range of a long.
+	 */
+	private static final double TWO_TO_63 = 9223372036854775808.0;
+
+	/**
+	 * Buffer the JSON is written to.
+	 */
+	private StringBuilder out = new StringBuilder(INITIAL_CAPACITY);
+
+	/**
+	 * Whether each open object or array has had anything written to it yet (so needs a comma
+	 * before the next entry). Index 0 is the top level.
+	 */
+	private boolean[] hasEntries = new boolean[8];
+
+	/**
+	 * Number of objects and arrays currently open.
+	 */
+	private int depth;
+
+	/**
+	 * Whether a name has just been written (so the next value belongs to it).
+	 */
+	private boolean afterName;
+
+	/**
+	 * Clears the writer ready for a new payload.
+	 *
+	 * @return this writer.
+	 */
+	public JsonPayloadWriter reset() {
+		if(out.capacity() > MAX_RETAINED_CAPACITY) {
+			out = new StringBuilder(INITIAL_CAPACITY);
+		} else {
+			out.setLength(0);
+		}
+		depth = 0;
+		hasEntries[0] = false;
+		afterName = false;
+		return this;
+	}
+
+	/**
+	 * Starts a new object.
+	 */
+	public JsonPayloadWriter beginObject() {
+		return open('{');
+	}
+
+	/**
+	 * Ends the current object.
+	 */
+	public JsonPayloadWriter endObject() {
+		return close('}');
+	}
+
+	/**
+	 * Starts a new array.
+	 */
+	public JsonPayloadWriter beginArray() {
+		return open('[');
+	}
+
+	/**
+	 * Ends the current array.
+	 */
+	public JsonPayloadWriter endArray() {
+		return close(']');
+	}
+
+	/**
+	 * Writes the name of the next property in the current object.
+	 *
+	 * @param name		The name of the property.
+	 */
+	public JsonPayloadWriter name(String name) {
+		beforeEntry();
+		writeString(name);
+		out.append(':');
+		afterName = true;
+		return this;
+	}
+
+	/**
+	 * Writes a string value (or null).
+	 */
+	public JsonPayloadWriter value(String value) {
+		beforeEntry();
+		if(value == null) {
+			out.append("null");
+		} else {
+			writeString(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a whole number value.
+	 */
+	public JsonPayloadWriter value(long value) {
+		beforeEntry();
+		out.append(value);
+		return this;
+	}
+
+	/**
+	 * Writes a boolean value.
+	 */
+	public JsonPayloadWriter value(boolean value) {
+		beforeEntry();
+		out.append(value);
+		return this;
+	}
+
+	/**
+	 * Writes any supported value, including nested maps, collections and arrays.
+	 *
+	 * @param value		The value to write (can be null).
+	 */
+	public JsonPayloadWriter value(Object value) {
+		if(value == null) {
+			return value((String) null);
+		} else if(value instanceof String) {
+			return value((String) value);
+		} else if(value instanceof Number) {
+			beforeEntry();
+			writeNumber((Number) value);
+		} else if(value instanceof Boolean) {
+			return value(((Boolean) value).booleanValue());
+		} else if(value instanceof Map) {
+			beginObject();
+			for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				name(String.valueOf(entry.getKey()));
+				value(entry.getValue());
+			}
+			endObject();
+		} else if(value instanceof Collection) {
+			beginArray();
+			for(Object item : (Collection<?>) value) {
+				value(item);
+			}
+			endArray();
+		} else if(value instanceof Object[]) {
+			beginArray();
+			for(Object item : (Object[]) value) {
+				value(item);
+			}
+			endArray();
+		} else if(value instanceof JSONObject || value instanceof JSONArray) {
+			// Already JSON
+			beforeEntry();
+			out.append(value.toString());
+		} else {
+			return value(value.toString());
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the JSON written since the last reset.
+	 */
+	@Override
+	public String toString() {
+		return out.toString();
+	}
+
+	private JsonPayloadWriter open(char bracket) {
+		beforeEntry();
+		out.append(bracket);
+		depth++;
+		if(depth == hasEntries.length) {
+			boolean[] grown = new boolean[hasEntries.length * 2];
+			System.arraycopy(hasEntries, 0, grown, 0, hasEntries.length);
+			hasEntries = grown;
+		}
+		hasEntries[depth] = false;
+		return this;
+	}
+
+	private JsonPayloadWriter close(char bracket) {
+		out.append(bracket);
+		depth--;
+		return this;
+	}
+
+	/**
+	 * Writes a comma if this isn't the first entry in the current object or array (or the
+	 * value following a name).
+	 */
+	private void beforeEntry() {
+		if(afterName) {
+			afterName = false;
+			return;
+		}
+		if(hasEntries[depth]) {
+			out.append(',');
+		}
+		hasEntries[depth] = true;
+	}
+
+	/**
+	 * Writes a number the way JSONObject does (whole numbers without a fraction). BigDecimal
+	 * and BigInteger are written exactly, as they can hold values a double or long can't.
+	 */
+	private void writeNumber(Number number) {
+		if(number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+			out.append(number.longValue());
+			return;
+		}
+		if(number instanceof BigInteger) {
+			out.append(number.toString());
+			return;
+		}
+		if(number instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) number;
+			if(decimal.signum() == 0) {
+				out.append('0');	// stripTrailingZeros() doesn't strip zero on older JDKs
+			} else {
+				out.append(decimal.stripTrailingZeros().toPlainString());
+			}
+			return;
+		}
+		double doubleValue = number.doubleValue();
+		if(Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+			out.append("null");	// Not valid JSON
+			return;
+		}
+		// Only whole if it fits in a long (longValue() saturates beyond that)
+		if(doubleValue >= -TWO_TO_63 && doubleValue < TWO_TO_63 && doubleValue == Math.rint(doubleValue)) {
+			out.append((long) doubleValue);
+		} else {
+			out.append(number.toString());
+		}
+	}
+
+	/**
+	 * Writes a quoted string, escaping anything that needs it. Runs of plain characters are
+	 * copied in one go.
+	 */
+	private void writeString(String value) {
+		out.append('"');
+		int start = 0;
+		int length = value.length();
+		for(int n = 0; n < length; n++) {
+			char c = value.charAt(n);
+			String escaped;
+			if(c == '"') {
+				escaped = "\\\"";
+			} else if(c == '\\') {
+				escaped = "\\\\";
+			} else if(c >= 0x20 && c != '\u2028' && c != '\u2029') {
+				continue;
+			} else if(c == '\n') {
+				escaped = "\\n";
+			} else if(c == '\r') {
+				escaped = "\\r";
+			} else if(c == '\t') {
+				escaped = "\\t";
+			} else if(c == '\b') {
+				escaped = "\\b";
+			} else if(c == '\f') {
+				escaped = "\\f";
+			} else {
+				escaped = null;	// Control (or line/paragraph separator, which break JavaScript)
+			}
+
+			out.append(value, start, n);
+			if(escaped != null) {
+				out.append(escaped);
+			} else {
+				out.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+						.append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+			}
+			start = n + 1;
+		}
+		out.append(value, start, length);
+		out.append('"');
+	}
+
+}
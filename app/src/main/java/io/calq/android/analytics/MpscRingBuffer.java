@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock free queue for many producers and a single consumer. Producers claim a slot by
+ * moving the producer index on with a CAS, then publish their item into it. The consumer
+ * takes items in slot order and frees each slot by moving the consumer index on.
+ *
+ * <p>Any number of threads can call {@link #offer(Object)} at once. Only one thread at a time
+ * may call {@link #drainTo(Collection)} (callers must make sure of this themselves, such as by
+ * only draining from one thread or under a lock).
+ *
+ * @param <E>	The type of item held.
+ */
+public class MpscRingBuffer<E> {
+
+	/**
+	 * Slots holding items. A null slot is free (or claimed but not yet published).
+	 */
+	private final AtomicReferenceArray<E> buffer;
+
+	/**
+	 * Mask applied to an index to get its slot (capacity is a power of 2).
+	 */
+	private final int mask;
+
+	/**
+	 * Index of the next slot producers will claim.
+	 */
+	private final AtomicLong producerIndex = new AtomicLong();
+
+	/**
+	 * Index of the next slot the consumer will take from.
+	 */
+	private final AtomicLong consumerIndex = new AtomicLong();
+
+	/**
+	 * Creates a new buffer.
+	 *
+	 * @param capacity		The max number of items held. Rounded up to a power of 2.
+	 */
+	public MpscRingBuffer(int capacity) {
+		if(capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30 (was " + capacity + ")");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) {
+			size <<= 1;
+		}
+		buffer = new AtomicReferenceArray<E>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an item to the end of the buffer. Safe to call from any number of threads.
+	 *
+	 * @param item		The item to add (not null).
+	 * @return true if added, false if the buffer is full.
+	 */
+	public boolean offer(E item) {
+		if(item == null) {
+			throw new NullPointerException("Can not add null items");
+		}
+
+		long index;
+		do {
+			index = producerIndex.get();
+			if(index - consumerIndex.get() >= buffer.length()) {
+				return false;	// Full
+			}
+		} while(!producerIndex.compareAndSet(index, index + 1));
+
+		// Slot is ours. Publish with a full barrier so the consumer can't miss it while we go
+		//	on to check if it needs waking
+		buffer.set((int) index & mask, item);
+		return true;
+	}
+
+	/**
+	 * Moves every item currently in the buffer to the given collection, in the order they
+	 * were added. Must only be called by one thread at a time.
+	 *
+	 * <p>Items claimed by a producer before this was called are always taken, waiting for
+	 * the producer to publish them if needed. This keeps each producer's items in order with
+	 * anything it adds elsewhere afterwards.
+	 *
+	 * @param out		The collection to add items to.
+	 * @return the number of items moved.
+	 */
+	public int drainTo(Collection<? super E> out) {
+		long limit = producerIndex.get();
+		long index = consumerIndex.get();
+		int drained = 0;
+		while(index < limit) {
+			int slot = (int) index & mask;
+			E item = buffer.get(slot);
+			if(item == null) {
+				// Claimed but not yet published. It's only ever a couple of instructions away
+				Thread.yield();
+				continue;
+			}
+			buffer.lazySet(slot, null);
+			index++;
+			consumerIndex.lazySet(index);	// Ordered after the slot is freed
+			out.add(item);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * Gets the number of items in the buffer (including any claimed but not yet published).
+	 */
+	public int size() {
+		long consumer = consumerIndex.get();
+		return (int) Math.max(0, producerIndex.get() - consumer);
+	}
+
+	/**
+	 * Gets whether the buffer is empty.
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the max number of items the buffer can hold.
+	 */
+	public int getCapacity() {
+		return buffer.length();
+	}
+
+}
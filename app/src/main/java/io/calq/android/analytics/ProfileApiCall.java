@@ -15,17 +15,11 @@
 
 package io.calq.android.analytics;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.util.Log;
-
 public class ProfileApiCall extends AbstractAnalyticsApiCall {
-	
-	private static final String TAG = "ProfileApiCall";
 
 	/**
 	 * The custom properties sent with this action.
@@ -47,7 +41,7 @@ public class ProfileApiCall extends AbstractAnalyticsApiCall {
 		if(properties == null || properties.isEmpty()) {
 			throw(new IllegalArgumentException("A properties value must be passed to the ProfileApiCall ctor. Must not be empty."));
 		}
-		this.properties = properties;
+		this.properties = new HashMap<String, Object>(properties);	// Serialized later, so don't alias the caller's map
 	}
 	
 	/**
@@ -57,25 +51,27 @@ public class ProfileApiCall extends AbstractAnalyticsApiCall {
 		return "Profile";
 	}
 	
+	/**
+	 * Profiles are kept over plain tracks when the queue is full.
+	 */
+	@Override
+	public int getPriority() {
+		return PRIORITY_HIGH;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected JSONObject buildJSONPayload() {
-		JSONObject jsonObject = super.buildJSONPayload();
-		try {
-			// Build properties into object
-			JSONObject jsonPropeties = new JSONObject();
-			for(Entry<String, Object> entry : properties.entrySet()) {
-				jsonPropeties.put(entry.getKey(), entry.getValue());
+	protected void writePayload(JsonPayloadWriter writer) {
+		super.writePayload(writer);
+		writer.name(ReservedApiProperties.USER_PROPERTIES).beginObject();
+		for(Entry<String, Object> entry : properties.entrySet()) {
+			if(entry.getKey() != null) {
+				writer.name(entry.getKey()).value(entry.getValue());
 			}
-			
-			jsonObject.put(ReservedApiProperties.USER_PROPERTIES, jsonPropeties);
-		} catch (JSONException e) {
-			// This shouldn't be happening! Should be sanitized already
-			Log.e(TAG, "Error setting JSON values", e);
 		}
-		return jsonObject;
+		writer.endObject();
 	}
 
 }
@@ -15,13 +15,9 @@
 
 package io.calq.android.analytics;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 
 
 /**
@@ -46,6 +42,11 @@ public class QueuedApiCall extends AbstractAnalyticsApiCall {
 	 */
 	protected long id;
 	
+	/**
+	 * The UTF-8 size of the stored payload (in bytes). -1 until known.
+	 */
+	protected int byteSize;
+	
 	/**
 	 * Creates a instance of an API call which has been previously queued.
 	 * 
@@ -55,11 +56,37 @@ public class QueuedApiCall extends AbstractAnalyticsApiCall {
 	 * @param writeKey		The write key used.
 	 */
 	public QueuedApiCall(long id, String endpoint, String payload, String writeKey) {
-		super(null, writeKey);
+		this(id, endpoint, payload, writeKey, null, -1);
+	}
+	
+	/**
+	 * Creates a instance of an API call which has been previously queued, where the ordering
+	 * actor and size of the payload are already known.
+	 * 
+	 * @param id			The id of this queued call (in local storage).
+	 * @param endpoint		The endpoint this api call should use.
+	 * @param payload		The JSON payload of the call.
+	 * @param writeKey		The write key used.
+	 * @param actor			The actor the call must be kept in order with (null for all).
+	 * @param byteSize		The UTF-8 size of the payload (in bytes).
+	 */
+	public QueuedApiCall(long id, String endpoint, String payload, String writeKey, String actor, int byteSize) {
+		super(actor, writeKey);
 		
 		this.id = id;
 		this.endpoint = endpoint;
 		this.payload = payload;
+		this.byteSize = byteSize;
+	}
+
+	/**
+	 * Gets the UTF-8 size of the stored payload (in bytes), without utc_now.
+	 */
+	public int getByteSize() {
+		if(byteSize < 0) {
+			byteSize = ApiDataStore.getUtf8Length(payload);
+		}
+		return byteSize;
 	}
 
 	/**
@@ -76,21 +103,81 @@ public class QueuedApiCall extends AbstractAnalyticsApiCall {
 	@Override
 	public String getPayload() {
         // This was stored and now is going to be sent. Need to get the time stamp for now
-        try {
-            JSONObject json = new JSONObject(payload);
-
-            // Get date formatted as UTC
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US);
-            df.setTimeZone(TimeZone.getTimeZone("UTC"));
-            String utcTime = df.format(new Date());
-
-            // Inject time into payload
-            json.put(ReservedApiProperties.UTC_NOW, utcTime);
-            return json.toString();
-        } catch(JSONException e) {
-            // This shouldn't be happening. Just fall back and pass on to API server as is
-            return payload;
-        }
+		return getPayload(getUtcNow());
+	}
+	
+	/**
+	 * Returns the stored payload with the given utc_now timestamp injected.
+	 * 
+	 * @param utcNow		The formatted UTC time the call is being sent at.
+	 */
+	public String getPayload(String utcNow) {
+		StringWriter writer = new StringWriter(payload.length() + utcNow.length() + 16);
+		try {
+			writePayload(writer, utcNow);
+		} catch (IOException e) {
+			// StringWriter doesn't throw
+			throw new IllegalStateException(e);
+		}
+		return writer.toString();
+	}
+	
+	/**
+	 * Writes the stored payload with the given utc_now timestamp injected to the given writer.
+	 * 
+	 * <p>Stored payloads are already serialized JSON objects, so rather than parse and
+	 * re-serialize them we splice the extra field in just before the closing brace.
+	 * 
+	 * @param writer		The writer to write the payload to.
+	 * @param utcNow		The formatted UTC time the call is being sent at.
+	 */
+	public void writePayload(Writer writer, String utcNow) throws IOException {
+		int close = findClosingBrace();
+		if(close < 0) {
+			// This shouldn't be happening. Just fall back and pass on to API server as is
+			writer.write(payload);
+			return;
+		}
+		writer.write(payload, 0, close);
+		if(!isEmptyObject(close)) {
+			writer.write(',');
+		}
+		writer.write("\"" + ReservedApiProperties.UTC_NOW + "\":\"");
+		writer.write(utcNow);
+		writer.write("\"}");
+	}
+	
+	/**
+	 * Finds the index of the closing brace of the stored JSON object, or -1 if the payload
+	 * doesn't look like an object.
+	 */
+	private int findClosingBrace() {
+		int end = payload.length() - 1;
+		while(end >= 0 && Character.isWhitespace(payload.charAt(end))) {
+			end--;
+		}
+		if(end < 1 || payload.charAt(end) != '}') {
+			return -1;
+		}
+		return end;
+	}
+	
+	/**
+	 * Whether the payload is an empty object (nothing but whitespace between the braces).
+	 */
+	private boolean isEmptyObject(int close) {
+		int n = close - 1;
+		while(n >= 0 && Character.isWhitespace(payload.charAt(n))) {
+			n--;
+		}
+		return n >= 0 && payload.charAt(n) == '{';
+	}
+	
+	/**
+	 * Gets the current time formatted for use as utc_now.
+	 */
+	public static String getUtcNow() {
+		return UtcTimestampFormatter.format(System.currentTimeMillis());
 	}
 	
 	/**
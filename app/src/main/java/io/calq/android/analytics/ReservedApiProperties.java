@@ -61,5 +61,15 @@ public class ReservedApiProperties {
      * The unique key to identify this project when writing.
      */
     public static final String WRITE_KEY = "write_key";
+
+    /**
+     * The endpoint of a call within a multiplexed batch.
+     */
+    public static final String BATCH_ENDPOINT = "endpoint";
+
+    /**
+     * The payload of a call within a multiplexed batch.
+     */
+    public static final String BATCH_PAYLOAD = "payload";
     
 }
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Decides when to retry sending to the API server after a flush fails.
+ * 
+ * <p>Retries back off exponentially from {@link #DEFAULT_BASE_DELAY_MS} up to a max, using
+ * "full jitter" (a random delay between 0 and the backoff). Without jitter every client would
+ * retry in lockstep after an outage, and hit the server together as it comes back.
+ * 
+ * <p>After a number of consecutive failures the circuit opens. No flushes are allowed until
+ * the backoff delay has passed. The circuit then half opens and a single probe batch is
+ * allowed through. If the probe succeeds the circuit closes and flushing carries on as normal.
+ * If it fails the circuit opens again (for longer). This saves battery while offline.
+ * 
+ * <p>The API server can also ask us to pause for a while (such as when rate limiting). This
+ * isn't counted as a failure, but no flushes are allowed until the pause is over.
+ * 
+ * <p>This class is thread safe.
+ */
+public class RetryScheduler {
+
+	/**
+	 * The states of the circuit breaker.
+	 */
+	public enum State {
+		/** Flushing normally (possibly backing off after recent failures). */
+		CLOSED,
+		/** Too many failures. Not flushing until the delay has passed. */
+		OPEN,
+		/** Delay has passed. A single probe batch can be sent. */
+		HALF_OPEN
+	}
+
+	/**
+	 * Source of the current time (in MS). Only differences between times are used.
+	 */
+	public interface Clock {
+		long now();
+	}
+
+	/**
+	 * Clock using time since boot, which isn't affected by changes to the wall clock.
+	 */
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long now() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	/**
+	 * Default backoff after the first failure (before jitter), in MS.
+	 */
+	public static final long DEFAULT_BASE_DELAY_MS = 5 * 1000;
+
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final int failureThreshold;
+	private final Clock clock;
+	private final Random random;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long nextAttemptAt;
+	private long pausedUntil;
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param baseDelayMs		Backoff after the first failure (before jitter), in MS.
+	 * @param maxDelayMs		Max backoff (before jitter), in MS.
+	 * @param failureThreshold	Consecutive failures after which the circuit opens.
+	 * @param clock				Source of the current time.
+	 * @param random			Source of jitter.
+	 */
+	public RetryScheduler(long baseDelayMs, long maxDelayMs, int failureThreshold, Clock clock, Random random) {
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.failureThreshold = failureThreshold;
+		this.clock = clock;
+		this.random = random;
+	}
+
+	/**
+	 * Creates a new scheduler using the system clock.
+	 * 
+	 * @param maxDelayMs		Max backoff (before jitter), in MS.
+	 * @param failureThreshold	Consecutive failures after which the circuit opens.
+	 */
+	public RetryScheduler(long maxDelayMs, int failureThreshold) {
+		this(DEFAULT_BASE_DELAY_MS, maxDelayMs, failureThreshold, SYSTEM_CLOCK, new Random());
+	}
+
+	/**
+	 * Gets the current state of the circuit. An open circuit becomes half open once its delay
+	 * has passed.
+	 */
+	public synchronized State getState() {
+		if(state == State.OPEN && clock.now() >= nextAttemptAt) {
+			state = State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Records a successful flush. Closes the circuit and resets the backoff.
+	 */
+	public synchronized void onSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		nextAttemptAt = 0;
+	}
+
+	/**
+	 * Records a failed flush, and picks when to try again. Opens the circuit if there have
+	 * been too many consecutive failures, or if this was the half open probe.
+	 */
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		nextAttemptAt = clock.now() + getJitteredBackoff();
+		if(state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * Records that the API server asked us to wait before sending again. The server answered,
+	 * so the circuit closes (it is up, just busy).
+	 * 
+	 * @param retryAfterMs		How long the server asked us to wait (in MS).
+	 */
+	public synchronized void onThrottled(long retryAfterMs) {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		pausedUntil = Math.max(pausedUntil, clock.now() + retryAfterMs);
+	}
+
+	/**
+	 * Whether the API server asked us to pause, and the pause isn't over yet.
+	 */
+	public synchronized boolean isPaused() {
+		return clock.now() < pausedUntil;
+	}
+
+	/**
+	 * Gets how long until we should next try to flush (in MS). This is 0 if we haven't failed
+	 * recently (in which case flushing carries on at the normal rate).
+	 */
+	public synchronized long getRetryDelayMs() {
+		return Math.max(0, Math.max(nextAttemptAt, pausedUntil) - clock.now());
+	}
+
+	/**
+	 * Gets the number of flushes that have failed in a row.
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * Picks a random delay between 0 and the exponential backoff for the current number of
+	 * failures (capped at the max).
+	 */
+	private long getJitteredBackoff() {
+		long backoff = baseDelayMs;
+		for(int n = 1; n < consecutiveFailures && backoff < maxDelayMs; n++) {
+			backoff *= 2;
+		}
+		return (long) (random.nextDouble() * Math.min(backoff, maxDelayMs));
+	}
+
+}
@@ -15,15 +15,7 @@
 
 package io.calq.android.analytics;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.util.Log;
-
-
 public class TransferApiCall extends AbstractAnalyticsApiCall {
-	
-	private static final String TAG = "TransferApiCall";
 
 	/**
 	 * The new actor name.
@@ -50,21 +42,30 @@ public class TransferApiCall extends AbstractAnalyticsApiCall {
 		return "Transfer";
 	}
 	
+	/**
+	 * Transfers touch two actors, so are kept in order with every other call.
+	 */
+	@Override
+	public String getOrderingActor() {
+		return null;
+	}
+	
+	/**
+	 * Transfers are kept over plain tracks when the queue is full.
+	 */
+	@Override
+	public int getPriority() {
+		return PRIORITY_HIGH;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected JSONObject buildJSONPayload() {
-		JSONObject jsonObject = super.buildJSONPayload();
-		try {
-			
-			jsonObject.put(ReservedApiProperties.OLD_ACTOR, actor);
-			jsonObject.put(ReservedApiProperties.NEW_ACTOR, newActor);
-		} catch (JSONException e) {
-			// This shouldn't be happening! Should be sanitized already
-			Log.e(TAG, "Error setting JSON values", e);
-		}
-		return jsonObject;
+	protected void writePayload(JsonPayloadWriter writer) {
+		super.writePayload(writer);
+		writer.name(ReservedApiProperties.OLD_ACTOR).value(actor);
+		writer.name(ReservedApiProperties.NEW_ACTOR).value(newActor);
 	}
 
 }
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+/**
+ * Running totals describing the requests sent to the Calq API server. Mostly useful for
+ * seeing how much bandwidth gzip compression is saving.
+ * 
+ * <p>This class is thread safe.
+ */
+public class UploadStats {
+
+	private long requests;
+	private long compressedRequests;
+	private long uncompressedBytes;
+	private long sentBytes;
+
+	/**
+	 * Records a request that was sent.
+	 * 
+	 * @param uncompressedBytes		The size of the request body before any compression.
+	 * @param sentBytes				The size of the request body actually sent.
+	 * @param compressed			If the body was compressed.
+	 */
+	public synchronized void recordRequest(long uncompressedBytes, long sentBytes, boolean compressed) {
+		this.requests++;
+		if(compressed) {
+			this.compressedRequests++;
+		}
+		this.uncompressedBytes += uncompressedBytes;
+		this.sentBytes += sentBytes;
+	}
+
+	/**
+	 * Gets the number of requests sent.
+	 */
+	public synchronized long getRequests() { return requests; }
+
+	/**
+	 * Gets the number of requests sent with a compressed body.
+	 */
+	public synchronized long getCompressedRequests() { return compressedRequests; }
+
+	/**
+	 * Gets the total size of request bodies before compression (in bytes).
+	 */
+	public synchronized long getUncompressedBytes() { return uncompressedBytes; }
+
+	/**
+	 * Gets the total size of request bodies actually sent (in bytes).
+	 */
+	public synchronized long getSentBytes() { return sentBytes; }
+
+	/**
+	 * Gets the ratio of bytes sent to bytes before compression. 1.0 means no saving, 0.25
+	 * means we sent a quarter of the data we would have without compression.
+	 */
+	public synchronized double getCompressionRatio() {
+		if(uncompressedBytes == 0) {
+			return 1.0;
+		}
+		return (double) sentBytes / (double) uncompressedBytes;
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2014 Calq.io
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is 
+ *  distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing permissions and limitations under the 
+ *  License.
+ *  
+ */
+
+package io.calq.android.analytics;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats epoch times as UTC timestamps in the form used by the Calq API
+ * (<tt>yyyy-MM-dd HH:mm:ss.SSSZ</tt>, such as <tt>2014-05-01 12:34:56.789+0000</tt>).
+ * 
+ * <p>Creating a SimpleDateFormat and looking up the UTC TimeZone is expensive on Android,
+ * and both used to happen for every event. This formatter writes digits straight into a
+ * caller supplied char buffer and caches the date part of the most recently formatted day,
+ * so formatting a timestamp normally allocates nothing.
+ * 
+ * <p>This class is thread safe.
+ */
+public final class UtcTimestampFormatter {
+
+	/**
+	 * Length of a formatted timestamp (in chars).
+	 */
+	public static final int LENGTH = 28;
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * First time we can't format ourselves (10000-01-01). SimpleDateFormat uses more than
+	 * 4 digits for the year from here on, so we leave it to do so.
+	 */
+	private static final long MAX_FAST_MILLIS = 253402300800000L;
+
+	/**
+	 * The most recently formatted day. Replaced (never modified) so it can be shared safely.
+	 */
+	private static volatile CachedDay cachedDay = new CachedDay(0);
+
+	/**
+	 * Per thread buffer used by {@link #format(long)}.
+	 */
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[LENGTH];
+		}
+	};
+
+	private UtcTimestampFormatter() {
+		// Static use only
+	}
+
+	/**
+	 * Formats the given time as a UTC timestamp string.
+	 * 
+	 * @param millis		The time to format (milliseconds since the epoch).
+	 * @return the formatted timestamp.
+	 */
+	public static String format(long millis) {
+		if(millis < 0 || millis >= MAX_FAST_MILLIS) {
+			return formatSlow(millis);
+		}
+		char[] buffer = buffers.get();
+		return new String(buffer, 0, format(millis, buffer, 0));
+	}
+
+	/**
+	 * Formats the given time as a UTC timestamp into the given buffer.
+	 * 
+	 * @param millis		The time to format (milliseconds since the epoch).
+	 * @param buffer		The buffer to write to. Must have {@link #LENGTH} chars free at offset
+	 * 		(times outside 1970 to 9999 can need more).
+	 * @param offset		The offset in the buffer to start writing at.
+	 * @return the number of chars written (always {@link #LENGTH} for times between 1970 and 9999).
+	 */
+	public static int format(long millis, char[] buffer, int offset) {
+		if(millis < 0 || millis >= MAX_FAST_MILLIS) {
+			// Outside the range we handle. Rare enough to not care about speed
+			String formatted = formatSlow(millis);
+			formatted.getChars(0, formatted.length(), buffer, offset);
+			return formatted.length();
+		}
+
+		long day = millis / MILLIS_PER_DAY;
+		CachedDay cached = cachedDay;
+		if(cached.day != day) {
+			cached = new CachedDay(day);
+			cachedDay = cached;
+		}
+		System.arraycopy(cached.date, 0, buffer, offset, cached.date.length);
+
+		int millisOfDay = (int) (millis - day * MILLIS_PER_DAY);
+		int pos = offset + cached.date.length;
+		buffer[pos++] = ' ';
+		pos = writeDigits(buffer, pos, millisOfDay / 3600000, 2);
+		buffer[pos++] = ':';
+		pos = writeDigits(buffer, pos, (millisOfDay / 60000) % 60, 2);
+		buffer[pos++] = ':';
+		pos = writeDigits(buffer, pos, (millisOfDay / 1000) % 60, 2);
+		buffer[pos++] = '.';
+		pos = writeDigits(buffer, pos, millisOfDay % 1000, 3);
+		buffer[pos++] = '+';
+		buffer[pos++] = '0';
+		buffer[pos++] = '0';
+		buffer[pos++] = '0';
+		buffer[pos++] = '0';
+		return pos - offset;
+	}
+
+	/**
+	 * Writes the given value as zero padded decimal digits.
+	 */
+	private static int writeDigits(char[] buffer, int pos, int value, int digits) {
+		for(int n = pos + digits - 1; n >= pos; n--) {
+			buffer[n] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+	/**
+	 * Formats using SimpleDateFormat. Used for times we don't handle directly.
+	 */
+	private static String formatSlow(long millis) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US);
+		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return df.format(new Date(millis));
+	}
+
+	/**
+	 * The formatted date part (<tt>yyyy-MM-dd</tt>) of a single day.
+	 */
+	private static final class CachedDay {
+
+		final long day;
+		final char[] date = new char[10];
+
+		/**
+		 * @param day		Days since the epoch (must not be negative).
+		 */
+		CachedDay(long day) {
+			this.day = day;
+
+			// Civil date from day number, see: http://howardhinnant.github.io/date_algorithms.html
+			long z = day + 719468;
+			long era = z / 146097;
+			long dayOfEra = z - era * 146097;
+			long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+			long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+			long monthIndex = (5 * dayOfYear + 2) / 153;
+			int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+			int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+			int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+			writeDigits(date, 0, year, 4);
+			date[4] = '-';
+			writeDigits(date, 5, month, 2);
+			date[7] = '-';
+			writeDigits(date, 8, dayOfMonth, 2);
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+package io.calq.android;
+
+/**
+ * JUnit category for benchmarks. These are slow and only report timings, so they are left
+ * out of the normal test run. Run them with <tt>./gradlew test -Pbenchmarks</tt>.
+ */
+public interface Benchmark {
+}
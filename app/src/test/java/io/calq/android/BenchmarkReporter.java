@@ -0,0 +1,27 @@
+package io.calq.android;
+
+import java.util.logging.Logger;
+
+/**
+ * Reports the timings measured by {@link Benchmark} tests. Results go to the
+ * <tt>io.calq.android.benchmark</tt> logger rather than stdout, so they can be collected
+ * (or silenced) with the rest of the test logs.
+ */
+public final class BenchmarkReporter {
+
+    private static final Logger LOG = Logger.getLogger("io.calq.android.benchmark");
+
+    private BenchmarkReporter() {
+    }
+
+    /**
+     * Reports a result for the named benchmark.
+     *
+     * @param benchmark     The name of what was measured.
+     * @param format        The result, as a format string for the given args.
+     * @param args          The args for the format string.
+     */
+    public static void report(String benchmark, String format, Object... args) {
+        LOG.info(benchmark + ": " + String.format(format, args));
+    }
+}
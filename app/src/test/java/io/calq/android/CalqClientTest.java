@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 
 import org.robolectric.Robolectric;
@@ -13,8 +14,18 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 
+import io.calq.android.analytics.AbstractAnalyticsApiCall;
+import io.calq.android.analytics.ApiDataStore;
+import io.calq.android.analytics.ReservedActionProperties;
+import io.calq.android.analytics.ReservedApiProperties;
+import io.calq.android.analytics.UtcTimestampFormatter;
+
+import org.json.JSONObject;
+
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Random;
 
 @Config(emulateSdk = 18, manifest = "app/src/main/AndroidManifest.xml")
@@ -129,6 +140,24 @@ public class CalqClientTest {
         assertTrue(calq.hasTracked);
     }
 
+    /**
+     * Tests that a client can still track after the background thread has been shut down,
+     * and the call is queued rather than dropped.
+     */
+    @Test
+    public void testTrackAfterShutdown() throws Exception {
+        String key = "dummykey_" + CalqClient.generateAnonymousId().substring(0, 23);
+        CalqClient calq = new CalqClient(context, CalqClient.generateAnonymousId(), key, config);
+        CalqClient.shutdown();
+
+        calq.track("Android Test Action (After Shutdown)", null);
+        CalqClient.shutdown();  // Writes it out
+
+        ApiDataStore store = new ApiDataStore(context);
+        assertEquals(1, store.getQueueCount(key));
+        store.close();
+    }
+
     /**
      * Tests that calling clear sets a new anonymous user.
      */
@@ -151,6 +180,245 @@ public class CalqClientTest {
         assertNotEquals(identity, calq.actor);
     }
 
+    /**
+     * Tests that changing a properties map after tracking it doesn't change the tracked action.
+     */
+    @Test
+    public void testTrackCapturesProperties() throws Exception {
+        RecordingClient calq = new RecordingClient();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Test Property", "Test Value");
+        calq.track("Android Test Action", properties);
+
+        properties.put("Test Property", "Changed Value");
+        properties.put("Another Property", "Another Value");
+
+        JSONObject sent = calq.getSentProperties(0);
+        assertEquals("Test Value", sent.getString("Test Property"));
+        assertFalse(sent.has("Another Property"));
+    }
+
+    /**
+     * Tests that tracking a sale doesn't write the sale into the caller's map.
+     */
+    @Test
+    public void testTrackSaleLeavesPropertiesUnchanged() throws Exception {
+        RecordingClient calq = new RecordingClient();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Test Property", "Test Value");
+        calq.trackSale("Android Test Sale", properties, "USD", new BigDecimal("9.99"));
+
+        assertEquals(1, properties.size());
+        JSONObject sent = calq.getSentProperties(0);
+        assertEquals("USD", sent.getString(ReservedActionProperties.SALE_CURRENCY));
+        assertEquals("Test Value", sent.getString("Test Property"));
+        assertEquals(AbstractAnalyticsApiCall.PRIORITY_HIGH, calq.sent.get(0).getPriority());
+    }
+
+    /**
+     * Measures the cost of track() on the calling thread, which is what a track costs the UI
+     * thread (serialization happens later, in the background).
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testTrackBenchmark() throws Exception {
+        RecordingClient calq = new RecordingClient();
+        for (int n = 0; n < 12; n++) {
+            calq.setGlobalProperty("Global Property " + n, "Global Value " + n);
+        }
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Test Property", "Test Value");
+        properties.put("Rating", 9.0);
+        properties.put("Level", 12);
+
+        int iterations = 20000;
+        for (int n = 0; n < iterations; n++) {  // Warm up
+            calq.track("Android Test Action", properties);
+        }
+        calq.sent.clear();
+
+        long start = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            calq.track("Android Test Action", properties);
+        }
+        long trackNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            calq.sent.get(n).getPayload();
+        }
+        long serializeNanos = System.nanoTime() - start;
+
+        BenchmarkReporter.report("track()", "%d ns/event on the calling thread, %d ns/event serializing in the background",
+                trackNanos / iterations, serializeNanos / iterations);
+
+        assertEquals(iterations, calq.sent.size());
+        assertEquals(12 + 3, calq.getSentProperties(0).length());
+    }
+
+    /**
+     * Tests that calls made before an async client has initialized are made once it has, in
+     * order, using the loaded state but keeping the time actions were tracked.
+     */
+    @Test
+    public void testAsyncBuffersCallsInOrder() throws Exception {
+        RecordingClient calq = new RecordingClient(writeKey);
+
+        long before = System.currentTimeMillis();
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Test Property", "Test Value");
+        calq.track("Android Test Action (Anon)", properties);
+        properties.put("Test Property", "Changed Value");
+        long tracked = System.currentTimeMillis();
+
+        String actor = generateTestActor();
+        calq.identify(actor);
+        calq.track("Android Test Action", null);
+        assertTrue(calq.sent.isEmpty());
+
+        Thread.sleep(20);
+        long initializing = System.currentTimeMillis();
+        calq.initialize(context, config);
+
+        assertEquals(3, calq.sent.size());
+        JSONObject first = new JSONObject(calq.sent.get(0).getPayload());
+        assertEquals("Android Test Action (Anon)", first.getString(ReservedApiProperties.ACTION_NAME));
+        JSONObject firstProperties = first.getJSONObject(ReservedApiProperties.USER_PROPERTIES);
+        assertEquals("Test Value", firstProperties.getString("Test Property"));
+        assertEquals("Android", firstProperties.getString(ReservedActionProperties.DEVICE_OS));
+
+        String timestamp = first.getString(ReservedApiProperties.TIMESTAMP);
+        assertTrue(timestamp.compareTo(UtcTimestampFormatter.format(before)) >= 0);
+        assertTrue(timestamp.compareTo(UtcTimestampFormatter.format(tracked)) <= 0);
+        assertTrue(timestamp.compareTo(UtcTimestampFormatter.format(initializing)) < 0);
+
+        JSONObject transfer = new JSONObject(calq.sent.get(1).getPayload());
+        assertEquals(first.getString(ReservedApiProperties.ACTOR), transfer.getString(ReservedApiProperties.OLD_ACTOR));
+        assertEquals(actor, transfer.getString(ReservedApiProperties.NEW_ACTOR));
+
+        JSONObject second = new JSONObject(calq.sent.get(2).getPayload());
+        assertEquals("Android Test Action", second.getString(ReservedApiProperties.ACTION_NAME));
+        assertEquals(actor, second.getString(ReservedApiProperties.ACTOR));
+
+        // Now initialized, calls are made straight away
+        calq.track("Android Test Action", null);
+        assertEquals(4, calq.sent.size());
+    }
+
+    /**
+     * Tests that if an async client fails to initialize, buffered calls are dropped and later
+     * calls fail with a clear exception (rather than a NullPointerException).
+     */
+    @Test
+    public void testAsyncInitializationFailure() throws Exception {
+        RecordingClient calq = new RecordingClient(CalqClient.generateAnonymousId());
+        calq.track("Android Test Action", null);
+
+        calq.initialize(context, new LocalConfig(context) {
+            @Override
+            public int getMaxQueueCount() {
+                throw new RuntimeException("Test failure");
+            }
+        });
+        assertTrue(calq.sent.isEmpty());
+
+        try {
+            calq.track("Android Test Action", null);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("Test failure", e.getCause().getMessage());
+        }
+        try {
+            calq.getUploadStats();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected (without waiting)
+        }
+    }
+
+    /**
+     * Tests that an async client is shared like any other, and initializes in the background.
+     */
+    @Test
+    public void testAsyncClientSharedInstance() throws Exception {
+        String asyncWriteKey = CalqClient.generateAnonymousId();
+        CalqClient calq = CalqClient.getOrCreateClientAsync(context, asyncWriteKey, config);
+        assertSame(calq, CalqClient.getOrCreateClient(context, asyncWriteKey, config));
+        assertSame(calq, CalqClient.getOrCreateClientAsync(context, asyncWriteKey, config));
+
+        calq.track("Android Test Action", null);
+        calq.awaitInitialization();
+
+        assertTrue(calq.hasTracked);
+        assertNotNull(calq.getUploadStats());
+    }
+
+    /**
+     * Measures the time from creating a client to the first track() returning, for clients
+     * created normally and asynchronously, to show how much is taken off an app's startup
+     * path. Each run uses a new write key so nothing is shared between runs.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testStartupBenchmark() throws Exception {
+        int runs = 5;
+        timeFirstTrack(false);  // Warm up both paths
+        timeFirstTrack(true);
+
+        long syncNanos = 0;
+        long asyncNanos = 0;
+        for (int n = 0; n < runs; n++) {
+            syncNanos += timeFirstTrack(false);
+            asyncNanos += timeFirstTrack(true);
+        }
+
+        BenchmarkReporter.report("Time to first track()", "getOrCreateClient %d us, getOrCreateClientAsync %d us",
+                syncNanos / runs / 1000, asyncNanos / runs / 1000);
+    }
+
+    /**
+     * Creates a client with a new write key and tracks an action, returning how long it took (in NS).
+     */
+    private long timeFirstTrack(boolean async) throws Exception {
+        String newWriteKey = CalqClient.generateAnonymousId();
+        long start = System.nanoTime();
+        CalqClient calq = async ? CalqClient.getOrCreateClientAsync(context, newWriteKey, config)
+                : CalqClient.getOrCreateClient(context, newWriteKey, config);
+        calq.track("Android Test Action", null);
+        long nanos = System.nanoTime() - start;
+
+        calq.awaitInitialization();
+        assertTrue(calq.hasTracked);
+        return nanos;
+    }
+
+    /**
+     * Client which records API calls rather than sending them.
+     */
+    private class RecordingClient extends CalqClient {
+        final List<AbstractAnalyticsApiCall> sent = new ArrayList<AbstractAnalyticsApiCall>();
+
+        RecordingClient() {
+            super(context, CalqClient.generateAnonymousId(), CalqClientTest.this.writeKey, config);
+        }
+
+        /**
+         * Creates a client which buffers calls until initialize(...) is called.
+         */
+        RecordingClient(String writeKey) {
+            super(context, writeKey);
+        }
+
+        @Override
+        protected void callAnalyticsApi(AbstractAnalyticsApiCall call) {
+            sent.add(call);
+        }
+
+        JSONObject getSentProperties(int index) throws Exception {
+            return new JSONObject(sent.get(index).getPayload()).getJSONObject(ReservedApiProperties.USER_PROPERTIES);
+        }
+    }
+
     /**
      * Does a full test from raising an event and sending it to Calq. This test requires you give it a valid
      * Calq writeKey or it will not be able to send data.
@@ -186,4 +454,4 @@ public class CalqClientTest {
     private String generateTestActor() {
         return String.format("TestActor%d", rnd.nextInt(100000));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,235 @@
+package io.calq.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@Config(emulateSdk = 18, manifest = "app/src/main/AndroidManifest.xml")
+@RunWith(RobolectricTestRunner.class)
+public class ClientStateStoreTest {
+
+    private String writeKey = "dummykey_00000000000000000000000";
+
+    private Context context;
+
+    private LocalConfig config;
+
+    /**
+     * Executor which holds tasks until we run them.
+     */
+    private ManualExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowApplication app = Robolectric.getShadowApplication();
+        context = app.getApplicationContext();
+        config = LocalConfig.getInstance(context);
+        app.grantPermissions("android.permission.INTERNET");
+
+        executor = new ManualExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Don't leave state pending for the next test
+        new ClientStateStore(context, executor).flush();
+    }
+
+    /**
+     * Tests that state isn't written on the calling thread, and that several changes before
+     * the write happens are merged into one write of the latest state.
+     */
+    @Test
+    public void testWritesCoalesced() throws Exception {
+        ClientStateStore store = new ClientStateStore(context, executor);
+        CalqClient client = createClient();
+
+        client.actor = "First";
+        store.persistState(client);
+        client.actor = "Second";
+        store.persistState(client);
+        client.globalProperties = client.globalProperties.with("Plan", "Pro");
+        store.persistState(client);
+
+        assertEquals(1, executor.tasks.size());
+        assertNull(getStatePreferences().getString("actor", null));
+
+        executor.runAll();
+        assertEquals("Second", getStatePreferences().getString("actor", null));
+        assertEquals("Pro", getGlobalPropertyPreferences().getString("Plan", null));
+
+        // The next change schedules another write
+        client.actor = "Third";
+        store.persistState(client);
+        assertEquals(1, executor.tasks.size());
+    }
+
+    /**
+     * Tests that flush writes pending state straight away, and a write already scheduled then
+     * doesn't write anything older.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        ClientStateStore store = new ClientStateStore(context, executor);
+        CalqClient client = createClient();
+
+        client.actor = "Flushed";
+        store.persistState(client);
+        store.flush();
+        assertEquals("Flushed", getStatePreferences().getString("actor", null));
+
+        getStatePreferences().edit().putString("actor", "Changed elsewhere").commit();
+        executor.runAll();
+        assertEquals("Changed elsewhere", getStatePreferences().getString("actor", null));
+    }
+
+    /**
+     * Tests that loading state sees state that was persisted but not yet written (even by
+     * another store).
+     */
+    @Test
+    public void testLoadSeesPendingState() throws Exception {
+        ClientStateStore first = new ClientStateStore(context, executor);
+        CalqClient client = createClient();
+        client.actor = "Pending";
+        client.isAnon = false;
+        first.persistState(client);
+
+        CalqClient loaded = createClient();
+        assertTrue(new ClientStateStore(context, executor).loadState(loaded));
+        assertEquals("Pending", loaded.actor);
+        assertFalse(loaded.isAnon);
+    }
+
+    /**
+     * Tests that the default store writes state in the background, and flush waits for it.
+     */
+    @Test
+    public void testBackgroundWrite() throws Exception {
+        ClientStateStore store = new ClientStateStore(context);
+        CalqClient client = createClient();
+        for (int n = 0; n < 50; n++) {
+            client.globalProperties = client.globalProperties.with("Property " + n, n);
+            store.persistState(client);
+        }
+
+        store.flush();
+        assertEquals(client.actor, getStatePreferences().getString("actor", null));
+        assertEquals(49, getGlobalPropertyPreferences().getInt("Property 49", 0));
+    }
+
+    /**
+     * Tests that global properties are read back as the types they were set as.
+     */
+    @Test
+    public void testTypesPreserved() throws Exception {
+        ClientStateStore store = new ClientStateStore(context, executor);
+        CalqClient client = createClient();
+        client.globalProperties = client.globalProperties
+                .with("String", "Text")
+                .with("Boolean", true)
+                .with("Integer", 12)
+                .with("Long", 9000000000L)
+                .with("Float", 0.5f)
+                .with("Double", 9.75)
+                .with("BigDecimal", new BigDecimal("19.990"));
+        store.persistState(client);
+
+        CalqClient loaded = createClient();
+        assertTrue(store.loadState(loaded));
+        assertEquals(client.globalProperties.asMap(), loaded.globalProperties.asMap());
+        assertEquals(new BigDecimal("19.990"), loaded.globalProperties.get("BigDecimal"));
+        assertEquals(Boolean.TRUE, loaded.globalProperties.get("Boolean"));
+
+        // A property changing type doesn't keep its old type
+        client.globalProperties = client.globalProperties.with("BigDecimal", "No longer a number");
+        store.persistState(client);
+        assertTrue(store.loadState(loaded));
+        assertEquals("No longer a number", loaded.globalProperties.get("BigDecimal"));
+    }
+
+    /**
+     * Tests that properties saved as strings by previous versions still load.
+     */
+    @Test
+    public void testLoadsUntypedProperties() throws Exception {
+        getStatePreferences().edit().putString("actor", "Previous").commit();
+        getGlobalPropertyPreferences().edit().putString("Rating", "9.5").putString("Plan", "Pro").commit();
+
+        CalqClient loaded = createClient();
+        assertTrue(new ClientStateStore(context, executor).loadState(loaded));
+        assertEquals("Previous", loaded.actor);
+        assertEquals("9.5", loaded.globalProperties.get("Rating"));
+        assertEquals("Pro", loaded.globalProperties.get("Plan"));
+    }
+
+    /**
+     * Tests that only global properties that changed are written, and removed ones are removed.
+     */
+    @Test
+    public void testOnlyChangesWritten() throws Exception {
+        ClientStateStore store = new ClientStateStore(context, executor);
+        CalqClient client = createClient();
+        client.globalProperties = client.globalProperties.with("First", 1).with("Second", 2).with("Third", 3);
+        store.persistState(client);
+        store.flush();
+
+        // Changed behind our back. Will only be overwritten if we rewrite it
+        getGlobalPropertyPreferences().edit().putInt("Second", 20).commit();
+
+        client.globalProperties = client.globalProperties.with("First", 10);
+        store.persistState(client);
+        store.flush();
+        assertEquals(10, getGlobalPropertyPreferences().getInt("First", 0));
+        assertEquals(20, getGlobalPropertyPreferences().getInt("Second", 0));
+
+        // Clearing removes them from storage too
+        client.clear();
+        client.stateStore.flush();
+        assertTrue(getGlobalPropertyPreferences().getAll().isEmpty());
+    }
+
+    private CalqClient createClient() {
+        return new CalqClient(context, CalqClient.generateAnonymousId(), writeKey, config);
+    }
+
+    private SharedPreferences getStatePreferences() {
+        return context.getSharedPreferences("calq_state", Context.MODE_PRIVATE);
+    }
+
+    private SharedPreferences getGlobalPropertyPreferences() {
+        return context.getSharedPreferences("calq_global_props", Context.MODE_PRIVATE);
+    }
+
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> running = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : running) {
+                task.run();
+            }
+        }
+    }
+}
\ No newline at end of file
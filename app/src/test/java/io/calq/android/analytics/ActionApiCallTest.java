@@ -4,7 +4,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.AbstractMap;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONObject;
 import org.junit.runner.RunWith;
@@ -90,4 +93,61 @@ public class ActionApiCallTest {
         assertEquals("Test Value", properties.getString("Test Property"));
     }
 
+    /**
+     * Tests that global properties are merged in when the payload is built, with the call's
+     * own properties taking precedence.
+     */
+    @Test
+    public void testGlobalPropertiesMerged() throws Exception {
+        GlobalProperties globals = GlobalProperties.EMPTY
+                .with("Global Property", "Global Value")
+                .with("Test Property", "Overridden Value");
+        ActionApiCall merged = new ActionApiCall(actor, action, globals, properties, writeKey);
+
+        // Later changes make new snapshots, so don't affect this call
+        globals.with("Global Property", "Changed Value");
+
+        JSONObject json = new JSONObject(merged.getPayload()).getJSONObject(ReservedApiProperties.USER_PROPERTIES);
+        assertEquals(2, json.length());
+        assertEquals("Global Value", json.getString("Global Property"));
+        assertEquals("Test Value", json.getString("Test Property"));
+    }
+
+    /**
+     * Tests that a sale set as a global property still gives the call high priority.
+     */
+    @Test
+    public void testPriorityFromGlobalProperties() throws Exception {
+        assertEquals(AbstractAnalyticsApiCall.PRIORITY_NORMAL, call.getPriority());
+
+        GlobalProperties globals = GlobalProperties.EMPTY.with(ReservedActionProperties.SALE_VALUE, 9.99);
+        ActionApiCall sale = new ActionApiCall(actor, action, globals, properties, writeKey);
+        assertEquals(AbstractAnalyticsApiCall.PRIORITY_HIGH, sale.getPriority());
+    }
+
+    /**
+     * Tests that properties are captured without empty slots when the map shrinks between
+     * its size() and reading its entries.
+     */
+    @Test
+    public void testPropertiesMapShrinking() throws Exception {
+        Map<String, Object> shrinking = new AbstractMap<String, Object>() {
+            @Override
+            public int size() {
+                return 3;   // Size before another thread removed two entries
+            }
+
+            @Override
+            public Set<Entry<String, Object>> entrySet() {
+                return properties.entrySet();
+            }
+        };
+        ActionApiCall captured = new ActionApiCall(actor, action, shrinking, writeKey);
+
+        assertEquals(1, captured.propertyNames.length);
+        assertEquals(1, captured.propertyValues.length);
+        JSONObject json = new JSONObject(captured.getPayload()).getJSONObject(ReservedApiProperties.USER_PROPERTIES);
+        assertEquals("Test Value", json.getString("Test Property"));
+    }
+
 }
\ No newline at end of file
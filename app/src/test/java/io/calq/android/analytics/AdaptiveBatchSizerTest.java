@@ -0,0 +1,104 @@
+package io.calq.android.analytics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveBatchSizerTest {
+
+    /**
+     * Tests that failures (timeouts and server errors) halve the target, down to the minimum.
+     */
+    @Test
+    public void testShrinksOnFailure() throws Exception {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        assertEquals(AdaptiveBatchSizer.INITIAL_TARGET_BYTES, sizer.getTargetBytes());
+
+        sizer.onFailure();
+        assertEquals(AdaptiveBatchSizer.INITIAL_TARGET_BYTES / 2, sizer.getTargetBytes());
+        assertTrue(sizer.getFailureRate() > 0);
+
+        for (int n = 0; n < 20; n++) {
+            sizer.onFailure();
+        }
+        assertEquals(AdaptiveBatchSizer.MIN_TARGET_BYTES, sizer.getTargetBytes());
+        assertEquals(21, sizer.getFailures());
+    }
+
+    /**
+     * Tests that after repeated failures the odd success doesn't grow the batch back, until
+     * the failure rate has dropped.
+     */
+    @Test
+    public void testFailureRateHoldsBackGrowth() throws Exception {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        for (int n = 0; n < 3; n++) {
+            sizer.onFailure();
+        }
+        int shrunk = sizer.getTargetBytes();
+        assertEquals(AdaptiveBatchSizer.INITIAL_TARGET_BYTES / 8, shrunk);
+        assertTrue(sizer.getFailureRate() > AdaptiveBatchSizer.HIGH_FAILURE_RATE);
+
+        // Flaky: alternating results keep shrinking it
+        sizer.onSuccess(100, shrunk);
+        assertEquals(shrunk, sizer.getTargetBytes());
+        sizer.onFailure();
+        assertEquals(shrunk / 2, sizer.getTargetBytes());
+
+        // Grows once successes bring the failure rate down
+        for (int n = 0; n < 10; n++) {
+            sizer.onSuccess(100, sizer.getTargetBytes());
+        }
+        assertTrue(sizer.getFailureRate() <= AdaptiveBatchSizer.HIGH_FAILURE_RATE);
+        assertTrue(sizer.getTargetBytes() > shrunk);
+    }
+
+    /**
+     * Tests that fast successes of full batches grow the target, up to the maximum.
+     */
+    @Test
+    public void testGrowsOnFastSuccess() throws Exception {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+
+        sizer.onSuccess(100, sizer.getTargetBytes());
+        assertTrue(sizer.getTargetBytes() > AdaptiveBatchSizer.INITIAL_TARGET_BYTES);
+
+        for (int n = 0; n < 20; n++) {
+            sizer.onSuccess(100, sizer.getTargetBytes());
+        }
+        assertEquals(AdaptiveBatchSizer.MAX_TARGET_BYTES, sizer.getTargetBytes());
+        assertEquals(100, sizer.getAverageRoundTripMs());
+        assertEquals(0.0, sizer.getFailureRate(), 0.0);
+    }
+
+    /**
+     * Tests that small batches (where the target wasn't the limit) don't grow the target.
+     */
+    @Test
+    public void testSmallBatchesDontGrow() throws Exception {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+
+        for (int n = 0; n < 10; n++) {
+            sizer.onSuccess(100, 500);
+        }
+        assertEquals(AdaptiveBatchSizer.INITIAL_TARGET_BYTES, sizer.getTargetBytes());
+    }
+
+    /**
+     * Tests that slow successes shrink the target, and the average round trip tracks them.
+     */
+    @Test
+    public void testShrinksOnSlowSuccess() throws Exception {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+
+        sizer.onSuccess(AdaptiveBatchSizer.SLOW_ROUND_TRIP_MS, sizer.getTargetBytes());
+        assertTrue(sizer.getTargetBytes() < AdaptiveBatchSizer.INITIAL_TARGET_BYTES);
+        assertEquals(AdaptiveBatchSizer.SLOW_ROUND_TRIP_MS, sizer.getAverageRoundTripMs());
+
+        // Recovers once things are fast again
+        int shrunk = sizer.getTargetBytes();
+        sizer.onSuccess(100, shrunk);
+        assertTrue(sizer.getTargetBytes() > shrunk);
+        assertEquals(2, sizer.getSuccesses());
+    }
+}
\ No newline at end of file
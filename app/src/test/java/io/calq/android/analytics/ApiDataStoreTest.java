@@ -1,19 +1,29 @@
 package io.calq.android.analytics;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Vector;
 
+import io.calq.android.Benchmark;
+import io.calq.android.BenchmarkReporter;
+
 import static org.junit.Assert.*;
 
 @Config(emulateSdk = 18, manifest = "app/src/main/AndroidManifest.xml")
@@ -111,10 +121,581 @@ public class ApiDataStoreTest {
         assertNull(saved);
     }
 
+    /**
+     * Tests that a bulk add keeps calls in order.
+     */
+    @Test
+    public void testAddAllToQueue() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+
+        List<AbstractAnalyticsApiCall> calls = new ArrayList<AbstractAnalyticsApiCall>();
+        for (int n = 0; n < 10; n++) {
+            Hashtable<String, Object> properties = new Hashtable<String, Object>();
+            properties.put("Index", n);
+            calls.add(new ActionApiCall("TestActor", "Test Action", properties, writeKey));
+        }
+
+        assertEquals(10, store.addAllToQueue(calls));
+        assertEquals(10, store.getQueueCount(writeKey));
+
+        Vector<QueuedApiCall> batch = store.getBatch(writeKey, ActionApiCall.ENDPOINT);
+        assertEquals(10, batch.size());
+        for (int n = 0; n < 10; n++) {
+            assertTrue(batch.get(n).getPayload().contains("\"Index\":" + n));
+        }
+    }
+
+    /**
+     * Tests that the next batch is a run of track calls, and other endpoints are sent alone.
+     */
+    @Test
+    public void testGetNextBatch() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+
+        assertEquals(0, store.getNextBatch(writeKey).size());
+
+        store.addToQueue(createDummyActionCall());
+        store.addToQueue(createDummyActionCall());
+        store.addToQueue(createDummyProfileCall());
+        store.addToQueue(createDummyProfileCall());
+        store.addToQueue(createDummyActionCall());
+
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey);
+        assertEquals(2, batch.size());
+        assertEquals(ActionApiCall.ENDPOINT, batch.get(0).getApiEndpoint());
+        assertEquals(ActionApiCall.ENDPOINT, batch.get(1).getApiEndpoint());
+        assertEquals(writeKey, batch.get(0).getWriteKey());
+        store.deleteBatchFromQueue(writeKey, batch);
+
+        batch = store.getNextBatch(writeKey);
+        assertEquals(1, batch.size());
+        assertEquals("Profile", batch.get(0).getApiEndpoint());
+        store.deleteBatchFromQueue(writeKey, batch);
+
+        batch = store.getNextBatch(writeKey);
+        assertEquals(1, batch.size());
+        assertEquals("Profile", batch.get(0).getApiEndpoint());
+        store.deleteBatchFromQueue(writeKey, batch);
+
+        batch = store.getNextBatch(writeKey);
+        assertEquals(1, batch.size());
+        assertEquals(ActionApiCall.ENDPOINT, batch.get(0).getApiEndpoint());
+        store.deleteBatchFromQueue(writeKey, batch);
+
+        assertEquals(0, store.getNextBatch(writeKey).size());
+    }
+
+    /**
+     * Tests that a multiplexed batch takes calls to all endpoints, in queue order.
+     */
+    @Test
+    public void testGetNextBatchMultiplexed() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+
+        store.addToQueue(createDummyProfileCall());
+        store.addToQueue(createDummyActionCall());
+        store.addToQueue(new TransferApiCall("TestActor", "NewActor", writeKey));
+        store.addToQueue(createDummyActionCall());
+
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey, true);
+        assertEquals(4, batch.size());
+        assertEquals("Profile", batch.get(0).getApiEndpoint());
+        assertEquals(ActionApiCall.ENDPOINT, batch.get(1).getApiEndpoint());
+        assertEquals("Transfer", batch.get(2).getApiEndpoint());
+        assertEquals(ActionApiCall.ENDPOINT, batch.get(3).getApiEndpoint());
+
+        store.deleteBatchFromQueue(writeKey, batch);
+        assertEquals(0, store.getQueueCount(writeKey));
+    }
+
+    /**
+     * Tests that batches are capped by payload size as well as count, and that a single call
+     * bigger than the cap is still returned on its own.
+     */
+    @Test
+    public void testGetNextBatchCappedByBytes() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+
+        for (int n = 0; n < 10; n++) {
+            store.addToQueue(createDummyActionCall());
+        }
+        int callBytes = store.getNextBatch(writeKey).get(0).getByteSize();
+        assertTrue(callBytes > 0);
+
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey, false, callBytes * 3 + callBytes / 2);
+        assertEquals(3, batch.size());
+        assertEquals(callBytes * 3, ApiDataStore.getBatchByteSize(batch));
+
+        batch = store.getNextBatch(writeKey, false, 1);
+        assertEquals(1, batch.size());
+
+        assertEquals(10, store.getNextBatch(writeKey, false, Integer.MAX_VALUE).size());
+    }
+
+    /**
+     * Tests that deleting a batch leaves later calls and other write keys alone.
+     */
+    @Test
+    public void testDeleteBatchLeavesOtherCalls() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        String otherKey = "dummykey_11111111111111111111111";
+
+        store.addToQueue(createDummyActionCall());
+        store.addToQueue(new ActionApiCall("TestActor", "Test Action", new Hashtable<String, Object>(), otherKey));
+        store.addToQueue(createDummyActionCall());
+
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey);
+        assertEquals(2, batch.size());
+
+        // Arrives while the batch is being sent
+        store.addToQueue(createDummyActionCall());
+
+        store.deleteBatchFromQueue(writeKey, batch);
+
+        assertEquals(1, store.getQueueCount(writeKey));
+        assertEquals(1, store.getQueueCount(otherKey));
+        assertTrue(store.getNextBatch(writeKey).get(0).getId() > batch.lastElement().getId());
+    }
+
+    /**
+     * Tests that each call's ordering actor is stored, and Transfers have none.
+     */
+    @Test
+    public void testOrderingActorStored() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+
+        store.addToQueue(createDummyActionCall());
+        store.addToQueue(new TransferApiCall("TestActor", "NewActor", writeKey));
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("$email", "test@notarealemail.com");
+        store.addToQueue(new ProfileApiCall("NewActor", properties, writeKey));
+
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey, true);
+        assertEquals(3, batch.size());
+        assertEquals("TestActor", batch.get(0).getOrderingActor());
+        assertNull(batch.get(1).getOrderingActor());
+        assertEquals("NewActor", batch.get(2).getOrderingActor());
+
+        // Later batches can be read while earlier ones are still queued
+        batch = store.getNextBatch(writeKey, true, Integer.MAX_VALUE, batch.get(1).getId());
+        assertEquals(1, batch.size());
+        assertEquals("NewActor", batch.get(0).getOrderingActor());
+    }
+
+    /**
+     * Tests that a rejected call is moved to the dead letter table with its error, and
+     * requeued calls keep their attempt count.
+     */
+    @Test
+    public void testDeadLetterMoveAndRequeue() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        long before = System.currentTimeMillis();
+
+        store.addToQueue(createDummyActionCall());
+        store.addToQueue(createDummyProfileCall());
+        QueuedApiCall rejected = store.peekQueue(writeKey);
+
+        assertTrue(store.moveToDeadLetter(rejected, "Test error"));
+        assertEquals(1, store.getQueueCount(writeKey));
+        assertEquals(1, store.getDeadLetterCount(writeKey));
+
+        List<DeadLetter> deadLetters = store.getDeadLetters(writeKey);
+        DeadLetter deadLetter = deadLetters.get(0);
+        assertEquals(ActionApiCall.ENDPOINT, deadLetter.getEndpoint());
+        assertEquals(writeKey, deadLetter.getWriteKey());
+        assertEquals("Test error", deadLetter.getError());
+        assertEquals(1, deadLetter.getAttempts());
+        assertTrue(deadLetter.getCreatedAt() >= before);
+        assertTrue(deadLetter.getFailedAt() >= deadLetter.getCreatedAt());
+        assertEquals(rejected.payload, deadLetter.getPayload());
+
+        // Requeued onto the end of the queue
+        assertEquals(1, store.requeueDeadLetters(writeKey));
+        assertEquals(0, store.getDeadLetterCount(writeKey));
+        assertEquals(2, store.getQueueCount(writeKey));
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey, true);
+        assertEquals("Profile", batch.get(0).getApiEndpoint());
+        assertEquals(ActionApiCall.ENDPOINT, batch.get(1).getApiEndpoint());
+
+        // Rejected again counts another attempt
+        assertTrue(store.moveToDeadLetter(batch.get(1), "Test error again"));
+        assertEquals(2, store.getDeadLetters(writeKey).get(0).getAttempts());
+    }
+
+    /**
+     * Tests that requeued dead letters keep their priority, and that requeueing evicts if it
+     * takes the queue over its limits.
+     */
+    @Test
+    public void testRequeueKeepsPriorityAndEvicts() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        store.setQueueLimits(2, Long.MAX_VALUE, EvictionPolicy.PRIORITY);
+
+        store.addToQueue(createIndexedActionCall(0, true));
+        assertTrue(store.moveToDeadLetter(store.peekQueue(writeKey), "Test error"));
+        store.addToQueue(createIndexedActionCall(1, false));
+        store.addToQueue(createIndexedActionCall(2, false));
+
+        assertEquals(1, store.requeueDeadLetters(writeKey));
+
+        // Plain track evicted ahead of the requeued sale
+        Vector<QueuedApiCall> queued = store.getNextBatch(writeKey);
+        assertEquals(2, queued.size());
+        assertTrue(queued.get(0).getPayload().contains("\"Index\":2"));
+        assertTrue(queued.get(1).getPayload().contains("\"Index\":0"));
+        assertEquals(1, store.getEvictionStats().getEvicted(EvictionStats.Reason.MAX_COUNT));
+
+        Cursor cursor = store.getWritableDatabase().rawQuery("SELECT priority FROM api_queue WHERE id = ?",
+                new String[]{ String.valueOf(queued.get(1).getId()) });
+        assertTrue(cursor.moveToFirst());
+        assertEquals(AbstractAnalyticsApiCall.PRIORITY_HIGH, cursor.getInt(0));
+        cursor.close();
+    }
+
+    /**
+     * Tests that dead letters are purged by age (for all keys) and by count (for the given key).
+     */
+    @Test
+    public void testPurgeDeadLetters() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        String otherKey = "dummykey_11111111111111111111111";
+
+        for (int n = 0; n < 5; n++) {
+            store.addToQueue(createDummyActionCall());
+            store.moveToDeadLetter(store.peekQueue(writeKey), "Test error " + n);
+        }
+        store.addToQueue(new ActionApiCall("TestActor", "Test Action", new Hashtable<String, Object>(), otherKey));
+        store.moveToDeadLetter(store.peekQueue(otherKey), "Test error");
+
+        // Nothing old enough, so only trimmed to count (keeping the newest)
+        assertEquals(2, store.purgeDeadLetters(writeKey, 3, 60 * 60 * 1000));
+        List<DeadLetter> deadLetters = store.getDeadLetters(writeKey);
+        assertEquals(3, deadLetters.size());
+        assertEquals("Test error 2", deadLetters.get(0).getError());
+        assertEquals(1, store.getDeadLetterCount(otherKey));
+
+        // Age out everything
+        store.getWritableDatabase().execSQL("UPDATE " + ApiDataStore.TABLE_DEAD_LETTER + " SET failed_at = failed_at - 7200000");
+        assertEquals(4, store.purgeDeadLetters(writeKey, 3, 60 * 60 * 1000));
+        assertEquals(0, store.getDeadLetterCount(writeKey));
+        assertEquals(0, store.getDeadLetterCount(otherKey));
+    }
+
+    /**
+     * Tests that the oldest calls are evicted when over the max count.
+     */
+    @Test
+    public void testEvictDropOldest() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        store.setQueueLimits(5, Long.MAX_VALUE, EvictionPolicy.DROP_OLDEST);
+
+        for (int n = 0; n < 8; n++) {
+            store.addToQueue(createIndexedActionCall(n, false));
+        }
+
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7), getQueuedIndexes(store));
+        assertEquals(3, store.getEvictionStats().getEvicted(EvictionStats.Reason.MAX_COUNT));
+        assertEquals(3, store.getEvictionStats().getTotalEvicted());
+    }
+
+    /**
+     * Tests that the newest calls are evicted when over the max count (including from a bulk add).
+     */
+    @Test
+    public void testEvictDropNewest() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        store.setQueueLimits(5, Long.MAX_VALUE, EvictionPolicy.DROP_NEWEST);
+
+        List<ActionApiCall> calls = new ArrayList<ActionApiCall>();
+        for (int n = 0; n < 8; n++) {
+            calls.add(createIndexedActionCall(n, false));
+        }
+        assertEquals(8, store.addAllToQueue(calls));
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), getQueuedIndexes(store));
+        assertEquals(3, store.getEvictionStats().getEvicted(EvictionStats.Reason.MAX_COUNT));
+    }
+
+    /**
+     * Tests that plain tracks are evicted (oldest first) before sales and profiles.
+     */
+    @Test
+    public void testEvictByPriority() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        store.setQueueLimits(4, Long.MAX_VALUE, EvictionPolicy.PRIORITY);
+
+        store.addToQueue(createIndexedActionCall(0, true));
+        store.addToQueue(createIndexedActionCall(1, false));
+        store.addToQueue(createDummyProfileCall());
+        store.addToQueue(createIndexedActionCall(2, false));
+        store.addToQueue(createIndexedActionCall(3, false));
+        store.addToQueue(createIndexedActionCall(4, true));
+        store.addToQueue(createIndexedActionCall(5, false));
+
+        Vector<QueuedApiCall> queued = store.getNextBatch(writeKey, true);
+        assertEquals(4, queued.size());
+        assertTrue(queued.get(0).getPayload().contains("\"Index\":0"));
+        assertEquals("Profile", queued.get(1).getApiEndpoint());
+        assertTrue(queued.get(2).getPayload().contains("\"Index\":4"));
+        assertTrue(queued.get(3).getPayload().contains("\"Index\":5"));
+        assertEquals(3, store.getEvictionStats().getTotalEvicted());
+    }
+
+    /**
+     * Tests that calls are evicted when over the max size, and counted as such.
+     */
+    @Test
+    public void testEvictByBytes() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        store.addToQueue(createIndexedActionCall(0, false));
+        int callBytes = store.peekQueue(writeKey).getByteSize();
+
+        store.setQueueLimits(Integer.MAX_VALUE, callBytes * 3, EvictionPolicy.DROP_OLDEST);
+        for (int n = 1; n < 6; n++) {
+            store.addToQueue(createIndexedActionCall(n, false));
+        }
+
+        assertEquals(Arrays.asList(3, 4, 5), getQueuedIndexes(store));
+        assertEquals(3, store.getEvictionStats().getEvicted(EvictionStats.Reason.MAX_BYTES));
+        assertEquals(0, store.getEvictionStats().getEvicted(EvictionStats.Reason.MAX_COUNT));
+    }
+
+    /**
+     * Tests that calls queued for longer than the TTL are purged, and counted as expired.
+     */
+    @Test
+    public void testPurgeExpired() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        for (int n = 0; n < 4; n++) {
+            store.addToQueue(createIndexedActionCall(n, false));
+        }
+        long hour = 60 * 60 * 1000;
+        store.getWritableDatabase().execSQL("UPDATE api_queue SET created_at = created_at - ? WHERE id IN " +
+                "(SELECT id FROM api_queue ORDER BY id ASC LIMIT 2)", new Object[]{ 2 * hour });
+
+        assertEquals(2, store.purgeExpired(hour));
+        assertEquals(Arrays.asList(2, 3), getQueuedIndexes(store));
+        assertEquals(2, store.getEvictionStats().getEvicted(EvictionStats.Reason.EXPIRED));
+
+        // Nothing else is old enough
+        assertEquals(0, store.purgeExpired(hour));
+        assertEquals(2, store.getQueueCount(writeKey));
+    }
+
+    /**
+     * Tests that ids removed from the end of the queue aren't reused, so acknowledging a batch
+     * read before they were removed can't remove a newer call.
+     */
+    @Test
+    public void testAckAfterTailRemovedLeavesNewCalls() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        for (int n = 0; n < 3; n++) {
+            store.addToQueue(createIndexedActionCall(n, false));
+        }
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey);
+        assertEquals(3, batch.size());
+
+        // Last call removed (such as evicted) while the batch is being sent, then a new call queued
+        assertTrue(store.deleteFromQueue(batch.lastElement()));
+        store.addToQueue(createIndexedActionCall(3, false));
+
+        store.deleteBatchFromQueue(writeKey, batch);
+        assertEquals(Arrays.asList(3), getQueuedIndexes(store));
+    }
+
+    /**
+     * Tests that calls in a batch being sent aren't evicted or purged, and can be once the
+     * batch is no longer in flight.
+     */
+    @Test
+    public void testInFlightNotEvictedOrPurged() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        for (int n = 0; n < 3; n++) {
+            store.addToQueue(createIndexedActionCall(n, false));
+        }
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey);
+        store.markInFlight(writeKey, batch);
+
+        // Only the new call can go
+        store.setQueueLimits(2, Long.MAX_VALUE, EvictionPolicy.DROP_NEWEST);
+        store.addToQueue(createIndexedActionCall(3, false));
+        assertEquals(Arrays.asList(0, 1, 2), getQueuedIndexes(store));
+        assertEquals(1, store.getEvictionStats().getEvicted(EvictionStats.Reason.MAX_COUNT));
+
+        store.getWritableDatabase().execSQL("UPDATE api_queue SET created_at = created_at - 7200000");
+        assertEquals(0, store.purgeExpired(60 * 60 * 1000));
+
+        store.clearInFlight(writeKey, batch);
+        assertEquals(3, store.purgeExpired(60 * 60 * 1000));
+        assertEquals(0, store.getQueueCount(writeKey));
+    }
+
+    /**
+     * Tests that a new database is created with the full schema (not created then altered).
+     */
+    @Test
+    public void testCreatedWithFullSchema() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        SQLiteDatabase db = store.getWritableDatabase();
+
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type = 'table' AND name = 'api_dead_letter'", null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).contains(",priority INTEGER NOT NULL DEFAULT 0)"));
+        cursor.close();
+    }
+
+    /**
+     * Tests that a populated v1 database is migrated to the current schema without losing calls.
+     */
+    @Test
+    public void testUpgradeFromVersion1() throws Exception {
+        // Build a v1 database as shipped by the previous version of the client
+        File path = context.getDatabasePath(ApiDataStore.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(path, null);
+        v1.execSQL("CREATE TABLE api_queue(id INTEGER PRIMARY KEY,write_key VARCHAR(32),endpoint VARCHAR(64),payload TEXT)");
+        for (int n = 0; n < 3; n++) {
+            v1.execSQL("INSERT INTO api_queue (write_key, endpoint, payload) VALUES (?, ?, ?)",
+                    new Object[]{ writeKey, ActionApiCall.ENDPOINT, "{\"Index\":" + n + "}" });
+        }
+        v1.execSQL("INSERT INTO api_queue (write_key, endpoint, payload) VALUES (?, ?, ?)",
+                new Object[]{ writeKey, "Profile", "{}" });
+        v1.setVersion(1);
+        v1.close();
+
+        long before = System.currentTimeMillis();
+        ApiDataStore store = new ApiDataStore(context);
+        SQLiteDatabase db = store.getWritableDatabase();
+        assertEquals(ApiDataStore.DATABASE_VERSION, db.getVersion());
+
+        // Existing calls are still there, in order, with size and time filled in. They have no
+        //  ordering actor, so are kept in order with everything
+        Vector<QueuedApiCall> batch = store.getNextBatch(writeKey);
+        assertEquals(3, batch.size());
+        for (int n = 0; n < 3; n++) {
+            assertTrue(batch.get(n).getPayload().startsWith("{\"Index\":" + n + ","));
+            assertNull(batch.get(n).getOrderingActor());
+        }
+        Cursor cursor = db.rawQuery("SELECT byte_size, created_at FROM api_queue ORDER BY id ASC", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(11, cursor.getLong(0));
+        assertTrue(cursor.getLong(1) >= before);
+        cursor.close();
+
+        // Profile kept over plain tracks
+        cursor = db.rawQuery("SELECT priority FROM api_queue ORDER BY id ASC", null);
+        assertTrue(cursor.moveToPosition(2));
+        assertEquals(AbstractAnalyticsApiCall.PRIORITY_NORMAL, cursor.getInt(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals(AbstractAnalyticsApiCall.PRIORITY_HIGH, cursor.getInt(0));
+        cursor.close();
+
+        // Ids are never reused
+        cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type = 'table' AND name = 'api_queue'", null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).contains("AUTOINCREMENT"));
+        cursor.close();
+
+        // Indexes were created
+        for (String index : new String[]{ ApiDataStore.INDEX_QUEUE_WRITE_KEY, "api_queue_priority_id", "api_queue_created_at" }) {
+            cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                    new String[]{ index });
+            assertEquals(index, 1, cursor.getCount());
+            cursor.close();
+        }
+
+        // New calls can be added alongside the migrated ones
+        store.addToQueue(createDummyActionCall());
+        assertEquals(5, store.getQueueCount(writeKey));
+
+        // Dead letter table was created, and migrated calls can be moved to it
+        assertTrue(store.moveToDeadLetter(batch.get(0), "Test error"));
+        assertEquals(1, store.getDeadLetters(writeKey).get(0).getAttempts());
+    }
+
+    /**
+     * Tests that calls are stored with their UTF-8 size.
+     */
+    @Test
+    public void testByteSizeStored() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+        ActionApiCall call = createDummyActionCall();
+        store.addToQueue(call);
+
+        Cursor cursor = store.getWritableDatabase().rawQuery("SELECT payload, byte_size FROM api_queue", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(cursor.getString(0).getBytes("UTF-8").length, cursor.getLong(1));
+        cursor.close();
+
+        assertEquals(10, ApiDataStore.getUtf8Length("a\u00e9\u20ac\ud83d\ude00"));
+    }
+
+    /**
+     * Compares adding calls one at a time against adding them in a single transaction.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testAddAllToQueueBenchmark() throws Exception {
+        ApiDataStore store = new ApiDataStore(context);
+
+        int count = 500;
+        List<AbstractAnalyticsApiCall> calls = new ArrayList<AbstractAnalyticsApiCall>();
+        for (int n = 0; n < count; n++) {
+            calls.add(createDummyActionCall());
+        }
+
+        long start = System.nanoTime();
+        for (AbstractAnalyticsApiCall call : calls) {
+            store.addToQueue(call);
+        }
+        long singleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        store.addAllToQueue(calls);
+        long bulkNanos = System.nanoTime() - start;
+
+        BenchmarkReporter.report("Queue insert", "single %.0f events/sec, bulk %.0f events/sec",
+                count * 1e9 / singleNanos, count * 1e9 / bulkNanos);
+
+        assertEquals(count * 2, store.getQueueCount(writeKey));
+    }
+
     /**
      * Creates a dummy action call for use in our tests.
      */
     private ActionApiCall createDummyActionCall() {
         return new ActionApiCall("TestActor", "Test Action", new Hashtable<String, Object>(), writeKey);
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates an action call tagged with an index (and optionally a sale) for use in our tests.
+     */
+    private ActionApiCall createIndexedActionCall(int index, boolean sale) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Index", index);
+        if (sale) {
+            properties.put(ReservedActionProperties.SALE_VALUE, 9.99);
+        }
+        return new ActionApiCall("TestActor", "Test Action", properties, writeKey);
+    }
+
+    /**
+     * Gets the indexes of the indexed action calls queued, in queue order.
+     */
+    private List<Integer> getQueuedIndexes(ApiDataStore store) throws Exception {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (QueuedApiCall call : store.getNextBatch(writeKey)) {
+            indexes.add(new JSONObject(call.getPayload()).getJSONObject("properties").getInt("Index"));
+        }
+        return indexes;
+    }
+
+    /**
+     * Creates a dummy profile call for use in our tests.
+     */
+    private ProfileApiCall createDummyProfileCall() {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("$email", "test@notarealemail.com");
+        return new ProfileApiCall("TestActor", properties, writeKey);
+    }
+}
@@ -2,6 +2,7 @@ package io.calq.android.analytics;
 
 import android.content.Context;
 
+import org.json.JSONArray;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,13 +10,15 @@ import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
-import org.robolectric.shadows.RoboLayoutInflater;
-import org.robolectric.tester.org.apache.http.TestHttpResponse;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
 import io.calq.android.ApiException;
+import io.calq.android.ApiRateLimitedException;
 import io.calq.android.LocalConfig;
 
 import static org.junit.Assert.*;
@@ -25,7 +28,12 @@ import static org.junit.Assert.*;
 public class ApiDispatcherTest {
 
     /**
-     * LocalConfig used to pass to ApiDispatcher instances (which has setup like API server URL)
+     * Local server standing in for the Calq API.
+     */
+    private StubApiServer server;
+
+    /**
+     * LocalConfig used to pass to ApiDispatcher instances (pointing at our stub server)
      */
     private LocalConfig config;
 
@@ -35,23 +43,25 @@ public class ApiDispatcherTest {
     private  Vector<QueuedApiCall> testBatch;
 
 
+    /**
+     * Context used to create configs.
+     */
+    private Context context;
+
     @Before
     public void setUp() throws Exception {
-        Context context = Robolectric.getShadowApplication().getApplicationContext();
-        config = LocalConfig.getInstance(context);
+        context = Robolectric.getShadowApplication().getApplicationContext();
+        server = new StubApiServer();
+        config = server.createConfig(context);
 
         // Payload doesn't matter, we are testing response handling each time
         testBatch = new Vector<QueuedApiCall>();
-        testBatch.add(new QueuedApiCall(0, "/Track", "{}", "dummykey_00000000000000000000000"));
-
-        // Always want to intercept requests for our mocked response
-        Robolectric.getFakeHttpLayer().interceptHttpRequests(true);
-        Robolectric.getFakeHttpLayer().clearHttpResponseRules();
+        testBatch.add(new QueuedApiCall(0, "Track", "{}", "dummykey_00000000000000000000000"));
     }
 
     @After
     public void tearDown() throws Exception {
-
+        server.stop();
     }
 
     /**
@@ -61,9 +71,33 @@ public class ApiDispatcherTest {
     public void testValidApiCall() throws Exception {
         ApiDispatcher dispatcher = new ApiDispatcher(config);
 
-        Robolectric.getFakeHttpLayer().addHttpResponseRule(
-                dispatcher.getEndpointUrl(testBatch.get(0)),
-                new TestHttpResponse(200, "{\"status\":\"accepted\"}"));
+        server.respondWith(200, "{\"status\":\"accepted\"}");
+
+        assertTrue(dispatcher.dispatch(testBatch));
+        assertEquals(1, server.getRequests().size());
+        assertEquals("/Track", server.getRequests().get(0).path);
+    }
+
+    /**
+     * Tests that a 204 (with no body) counts as success.
+     */
+    @Test
+    public void testNoContent() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+
+        server.respondWith(204, "");
+
+        assertTrue(dispatcher.dispatch(testBatch));
+    }
+
+    /**
+     * Tests that other 2xx responses with an empty body count as success.
+     */
+    @Test
+    public void testAcceptedWithEmptyBody() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+
+        server.respondWith(202, "");
 
         assertTrue(dispatcher.dispatch(testBatch));
     }
@@ -75,9 +109,7 @@ public class ApiDispatcherTest {
     public void testApiException() throws Exception {
         ApiDispatcher dispatcher = new ApiDispatcher(config);
 
-        Robolectric.getFakeHttpLayer().addHttpResponseRule(
-                dispatcher.getEndpointUrl(testBatch.get(0)),
-                new TestHttpResponse(400, "{\"status\":\"rejected\", \"error\":\"Test error\"}"));
+        server.respondWith(400, "{\"status\":\"rejected\", \"error\":\"Test error\"}");
 
         dispatcher.dispatch(testBatch); // Should throw
     }
@@ -89,10 +121,295 @@ public class ApiDispatcherTest {
     public void testInternalServerError() throws Exception {
         ApiDispatcher dispatcher = new ApiDispatcher(config);
 
-        Robolectric.getFakeHttpLayer().addHttpResponseRule(
-                dispatcher.getEndpointUrl(testBatch.get(0)),
-                new TestHttpResponse(500, "{\"status\":\"error\", \"error\":\"Test error\"}"));
+        server.respondWith(500, "{\"status\":\"error\", \"error\":\"Test error\"}");
+
+        assertFalse(dispatcher.dispatch(testBatch));
+    }
+
+    /**
+     * Tests that a 429 is reported as rate limiting (not a rejection), with the server's delay.
+     */
+    @Test
+    public void testRateLimited() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+
+        server.throttleAfter(0, "30");
+
+        try {
+            dispatcher.dispatch(testBatch);
+            fail("Expected ApiRateLimitedException");
+        } catch (ApiRateLimitedException e) {
+            assertEquals(30 * 1000, e.getRetryAfterMs());
+        }
+    }
+
+    /**
+     * Tests that a 503 with a Retry-After is treated as backpressure, and without one as a
+     * normal server error.
+     */
+    @Test
+    public void testServiceUnavailable() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
 
+        server.respondWith(new StubApiServer.Responder() {
+            @Override
+            public StubApiServer.Response respond(StubApiServer.Request request) {
+                return new StubApiServer.Response(503, "{\"status\":\"error\"}", "5");
+            }
+        });
+        try {
+            dispatcher.dispatch(testBatch);
+            fail("Expected ApiRateLimitedException");
+        } catch (ApiRateLimitedException e) {
+            assertEquals(5 * 1000, e.getRetryAfterMs());
+        }
+
+        server.respondWith(503, "{\"status\":\"error\"}");
         assertFalse(dispatcher.dispatch(testBatch));
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests parsing Retry-After as seconds or as a date, and falling back for bad values.
+     */
+    @Test
+    public void testParseRetryAfter() throws Exception {
+        long now = 1398947696000L;  // Thu, 01 May 2014 12:34:56 GMT
+
+        assertEquals(120 * 1000, ApiDispatcher.parseRetryAfterMs("120", now));
+        assertEquals(90 * 1000, ApiDispatcher.parseRetryAfterMs("Thu, 01 May 2014 12:36:26 GMT", now));
+        assertEquals(ApiDispatcher.DEFAULT_RETRY_AFTER_MS, ApiDispatcher.parseRetryAfterMs(null, now));
+        assertEquals(ApiDispatcher.DEFAULT_RETRY_AFTER_MS, ApiDispatcher.parseRetryAfterMs("soon", now));
+        assertEquals(ApiDispatcher.MAX_RETRY_AFTER_MS, ApiDispatcher.parseRetryAfterMs("999999", now));
+        assertEquals(1000, ApiDispatcher.parseRetryAfterMs("Thu, 01 May 2014 12:00:00 GMT", now));
+    }
+
+    /**
+     * Tests that a server we can't connect to is treated as a retryable failure.
+     */
+    @Test
+    public void testUnreachableServer() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+        server.stop();
+
+        assertFalse(dispatcher.dispatch(testBatch));
+    }
+
+    /**
+     * Tests that connections are kept alive and reused between batches, including batches
+     * from different dispatchers and write keys (and after an error response).
+     */
+    @Test
+    public void testConnectionReusedBetweenBatches() throws Exception {
+        ApiDispatcher first = new ApiDispatcher(config);
+        ApiDispatcher second = new ApiDispatcher(config);
+
+        Vector<QueuedApiCall> otherKeyBatch = new Vector<QueuedApiCall>();
+        otherKeyBatch.add(new QueuedApiCall(1, "Profile", "{}", "dummykey_11111111111111111111111"));
+
+        for (int n = 0; n < 5; n++) {
+            assertTrue(first.dispatch(testBatch));
+            assertTrue(second.dispatch(otherKeyBatch));
+        }
+
+        server.respondWith(400, "{\"status\":\"rejected\", \"error\":\"Test error\"}");
+        try {
+            first.dispatch(testBatch);
+            fail("Expected ApiException");
+        } catch (ApiException e) {
+            // Expected
+        }
+
+        server.respondWith(200, "{\"status\":\"accepted\"}");
+        assertTrue(first.dispatch(testBatch));
+
+        assertEquals(12, server.getRequests().size());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    /**
+     * Tests that a batch is streamed to the server as a single JSON array in queue order.
+     */
+    @Test
+    public void testBatchSentAsArray() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+        Vector<QueuedApiCall> batch = createLargeBatch();
+
+        assertTrue(dispatcher.dispatch(batch));
+
+        StubApiServer.Request request = server.getRequests().get(0);
+        assertNull(request.contentEncoding);
+
+        JSONArray json = new JSONArray(request.getBodyString());
+        assertEquals(batch.size(), json.length());
+        for (int n = 0; n < batch.size(); n++) {
+            assertEquals(n, json.getJSONObject(n).getJSONObject("properties").getInt("Index"));
+        }
+        assertEquals(request.body.length, dispatcher.getUploadStats().getSentBytes());
+    }
+
+    /**
+     * Tests that a batch mixing endpoints is sent once to the Batch endpoint, as envelopes in
+     * queue order.
+     */
+    @Test
+    public void testMultiplexedBatch() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+
+        Vector<QueuedApiCall> batch = new Vector<QueuedApiCall>();
+        batch.add(new QueuedApiCall(1, "Track", "{\"actor\":\"a\"}", "dummykey_00000000000000000000000"));
+        batch.add(new QueuedApiCall(2, "Transfer", "{\"old_actor\":\"a\",\"new_actor\":\"b\"}", "dummykey_00000000000000000000000"));
+        batch.add(new QueuedApiCall(3, "Profile", "{\"actor\":\"b\"}", "dummykey_00000000000000000000000"));
+        batch.add(new QueuedApiCall(4, "Track", "{\"actor\":\"b\"}", "dummykey_00000000000000000000000"));
+
+        assertTrue(dispatcher.dispatch(batch));
+
+        assertEquals(1, server.getRequests().size());
+        StubApiServer.Request request = server.getRequests().get(0);
+        assertEquals("/" + ApiDispatcher.MULTIPLEX_ENDPOINT, request.path);
+
+        JSONArray json = new JSONArray(request.getBodyString());
+        assertEquals(batch.size(), json.length());
+        for (int n = 0; n < batch.size(); n++) {
+            assertEquals(batch.get(n).getApiEndpoint(), json.getJSONObject(n).getString(ReservedApiProperties.BATCH_ENDPOINT));
+            assertNotNull(json.getJSONObject(n).getJSONObject(ReservedApiProperties.BATCH_PAYLOAD)
+                    .getString(ReservedApiProperties.UTC_NOW));
+        }
+        assertEquals("b", json.getJSONObject(1).getJSONObject(ReservedApiProperties.BATCH_PAYLOAD)
+                .getString(ReservedApiProperties.NEW_ACTOR));
+    }
+
+    /**
+     * Tests that a multiplexed run of Profile calls is sent to the Batch endpoint (Profile
+     * only accepts a single call, not an array).
+     */
+    @Test
+    public void testMultiplexedProfileRun() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(config);
+        ApiDataStore store = new ApiDataStore(context);
+        for (int n = 0; n < 2; n++) {
+            Hashtable<String, Object> properties = new Hashtable<String, Object>();
+            properties.put("Index", n);
+            store.addToQueue(new ProfileApiCall("Actor" + n, properties, "dummykey_00000000000000000000000"));
+        }
+
+        Vector<QueuedApiCall> batch = store.getNextBatch("dummykey_00000000000000000000000", true);
+        assertEquals(2, batch.size());
+        assertTrue(dispatcher.dispatch(batch));
+
+        assertEquals(1, server.getRequests().size());
+        StubApiServer.Request request = server.getRequests().get(0);
+        assertEquals("/" + ApiDispatcher.MULTIPLEX_ENDPOINT, request.path);
+
+        JSONArray json = new JSONArray(request.getBodyString());
+        assertEquals(2, json.length());
+        for (int n = 0; n < 2; n++) {
+            assertEquals("Profile", json.getJSONObject(n).getString(ReservedApiProperties.BATCH_ENDPOINT));
+            assertEquals("Actor" + n, json.getJSONObject(n).getJSONObject(ReservedApiProperties.BATCH_PAYLOAD)
+                    .getString(ReservedApiProperties.ACTOR));
+        }
+    }
+
+    /**
+     * Tests that large batches are gzip compressed when enabled, and the server gets the same JSON.
+     */
+    @Test
+    public void testGzipUpload() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(createGzipConfig(256));
+        Vector<QueuedApiCall> batch = createLargeBatch();
+
+        assertTrue(dispatcher.dispatch(batch));
+
+        StubApiServer.Request request = server.getRequests().get(0);
+        assertEquals("gzip", request.contentEncoding);
+
+        String json = gunzip(request.body);
+        assertTrue(json.startsWith("["));
+        assertTrue(json.contains("\"$device_agent\":\"Android Test Agent\""));
+
+        UploadStats stats = dispatcher.getUploadStats();
+        assertEquals(1, stats.getRequests());
+        assertEquals(1, stats.getCompressedRequests());
+        assertEquals(json.getBytes("UTF-8").length, stats.getUncompressedBytes());
+        assertEquals(request.body.length, stats.getSentBytes());
+        assertTrue(stats.getCompressionRatio() < 0.5);
+    }
+
+    /**
+     * Tests that small bodies are sent uncompressed even when gzip is enabled.
+     */
+    @Test
+    public void testGzipSkippedBelowThreshold() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(createGzipConfig(1024 * 1024));
+
+        assertTrue(dispatcher.dispatch(createLargeBatch()));
+
+        assertNull(server.getRequests().get(0).contentEncoding);
+        assertEquals(0, dispatcher.getUploadStats().getCompressedRequests());
+        assertEquals(1.0, dispatcher.getUploadStats().getCompressionRatio(), 0.0);
+    }
+
+    /**
+     * Tests that small bodies above the threshold are sent uncompressed when gzip would make
+     * them bigger.
+     */
+    @Test
+    public void testGzipSkippedWhenNotSmaller() throws Exception {
+        ApiDispatcher dispatcher = new ApiDispatcher(createGzipConfig(1));
+        Vector<QueuedApiCall> batch = new Vector<QueuedApiCall>();
+        batch.add(new QueuedApiCall(1, "Track", "{\"actor\":\"a\"}", "dummykey_00000000000000000000000"));
+
+        assertTrue(dispatcher.dispatch(batch));
+
+        StubApiServer.Request request = server.getRequests().get(0);
+        assertNull(request.contentEncoding);
+        assertEquals("a", new JSONArray(request.getBodyString()).getJSONObject(0).getString("actor"));
+
+        UploadStats stats = dispatcher.getUploadStats();
+        assertEquals(0, stats.getCompressedRequests());
+        assertEquals(request.body.length, stats.getUncompressedBytes());
+        assertEquals(request.body.length, stats.getSentBytes());
+    }
+
+    /**
+     * Creates a config pointing at the stub with gzip enabled at the given threshold.
+     */
+    private LocalConfig createGzipConfig(final int thresholdBytes) {
+        final String url = server.getUrl();
+        return new LocalConfig(context) {
+            {
+                remoteApiServerUrl = url;
+                gzipUploads = true;
+                gzipThresholdBytes = thresholdBytes;
+            }
+        };
+    }
+
+    /**
+     * Creates a batch of similar track calls (which should compress well).
+     */
+    private Vector<QueuedApiCall> createLargeBatch() {
+        Vector<QueuedApiCall> batch = new Vector<QueuedApiCall>();
+        for (int n = 0; n < 50; n++) {
+            String payload = "{\"actor\":\"TestActor\",\"write_key\":\"dummykey_00000000000000000000000\"," +
+                    "\"action_name\":\"Test Action\",\"properties\":{\"$device_agent\":\"Android Test Agent\"," +
+                    "\"$device_resolution\":\"1080x1920\",\"Index\":" + n + "}}";
+            batch.add(new QueuedApiCall(n, "Track", payload, "dummykey_00000000000000000000000"));
+        }
+        return batch;
+    }
+
+    /**
+     * Decompresses a gzip request body.
+     */
+    private static String gunzip(byte[] body) throws Exception {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
\ No newline at end of file
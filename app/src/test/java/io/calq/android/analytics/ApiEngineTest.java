@@ -0,0 +1,264 @@
+package io.calq.android.analytics;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.calq.android.LocalConfig;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18, manifest = "app/src/main/AndroidManifest.xml")
+@RunWith(RobolectricTestRunner.class)
+public class ApiEngineTest {
+
+    /**
+     * Dummy write keys we use for queuing API calls.
+     */
+    private static final String WRITE_KEY_A = "dummykey_a0000000000000000000000";
+    private static final String WRITE_KEY_B = "dummykey_b0000000000000000000000";
+    private static final String WRITE_KEY_C = "dummykey_c0000000000000000000000";
+
+    /**
+     * Local server standing in for the Calq API.
+     */
+    private StubApiServer server;
+
+    /**
+     * Config pointing at the stub (one batch in flight at a time, so requests arrive in the
+     * order they are sent).
+     */
+    private LocalConfig config;
+
+    private Context context;
+
+    /**
+     * Engine under test (not the shared one).
+     */
+    private ApiEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        context = Robolectric.application.getApplicationContext();
+        server = new StubApiServer();
+        final String url = server.getUrl();
+        config = new LocalConfig(context) {
+            {
+                remoteApiServerUrl = url;
+                maxInFlightBatches = 1;
+            }
+        };
+        engine = new ApiEngine(context);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown();
+        server.stop();
+    }
+
+    /**
+     * Tests that every write key shares the engine's storage, with one handler per key.
+     */
+    @Test
+    public void testHandlersShareStorage() throws Exception {
+        ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        ApiHandler b = engine.getHandler(WRITE_KEY_B, config);
+
+        assertNotSame(a, b);
+        assertSame(a, engine.getHandler(WRITE_KEY_A, config));
+        assertSame(engine.dataStore, a.dataStore);
+        assertSame(engine.dataStore, b.dataStore);
+    }
+
+    /**
+     * Tests that calls received for every write key are written to storage in one go.
+     */
+    @Test
+    public void testFlushesAllKeysToStorage() throws Exception {
+        ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        ApiHandler b = engine.getHandler(WRITE_KEY_B, config);
+        a.apiCall(createProfileCall(WRITE_KEY_A, 0));
+        b.apiCall(createProfileCall(WRITE_KEY_B, 0));
+        b.apiCall(createProfileCall(WRITE_KEY_B, 1));
+
+        engine.onFlushToStorage();
+
+        assertEquals(1, engine.dataStore.getQueueCount(WRITE_KEY_A));
+        assertEquals(2, engine.dataStore.getQueueCount(WRITE_KEY_B));
+    }
+
+    /**
+     * Tests that write keys flushed together take turns sending batches, rather than one
+     * sending its whole queue before the other starts.
+     */
+    @Test
+    public void testKeysTakeTurns() throws Exception {
+        ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        ApiHandler b = engine.getHandler(WRITE_KEY_B, config);
+        for (int n = 0; n < 3; n++) {   // Profiles aren't grouped, so a request each
+            engine.dataStore.addToQueue(createProfileCall(WRITE_KEY_A, n));
+            engine.dataStore.addToQueue(createProfileCall(WRITE_KEY_B, n));
+        }
+
+        engine.flushToRemote(Arrays.asList(a, b));
+
+        assertEquals(Arrays.asList(WRITE_KEY_A, WRITE_KEY_B, WRITE_KEY_A, WRITE_KEY_B, WRITE_KEY_A, WRITE_KEY_B),
+                getRequestKeys());
+        assertEquals(0, engine.dataStore.getQueueCount(WRITE_KEY_A));
+        assertEquals(0, engine.dataStore.getQueueCount(WRITE_KEY_B));
+    }
+
+    /**
+     * Tests that when one key's flush to the API server is due, keys due soon after are
+     * flushed with it (but not keys due much later).
+     */
+    @Test
+    public void testCoalescesFlushesToRemote() throws Exception {
+        ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        ApiHandler b = engine.getHandler(WRITE_KEY_B, config);
+        ApiHandler c = engine.getHandler(WRITE_KEY_C, config);
+        engine.dataStore.addToQueue(createProfileCall(WRITE_KEY_A, 0));
+        engine.dataStore.addToQueue(createProfileCall(WRITE_KEY_B, 0));
+        engine.dataStore.addToQueue(createProfileCall(WRITE_KEY_C, 0));
+
+        a.scheduleFlushToRemote(0);
+        b.scheduleFlushToRemote(ApiEngine.COALESCE_WINDOW_MS / 2);
+        c.scheduleFlushToRemote(ApiEngine.COALESCE_WINDOW_MS * 10);
+        engine.onFlushToRemoteServer();
+
+        assertEquals(0, engine.dataStore.getQueueCount(WRITE_KEY_A));
+        assertEquals(0, engine.dataStore.getQueueCount(WRITE_KEY_B));
+        assertEquals(1, engine.dataStore.getQueueCount(WRITE_KEY_C));
+        assertEquals(2, server.getRequests().size());
+
+        // Each is scheduled again
+        assertTrue(a.remoteFlushAt != ApiEngine.NOT_SCHEDULED);
+        assertTrue(b.remoteFlushAt != ApiEngine.NOT_SCHEDULED);
+    }
+
+    /**
+     * Tests that calls can be written to storage (for any key) while a flush to the API
+     * server is waiting on a response.
+     */
+    @Test
+    public void testStorageFlushNotBlockedBySend() throws Exception {
+        final ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        ApiHandler b = engine.getHandler(WRITE_KEY_B, config);
+        engine.dataStore.addToQueue(createProfileCall(WRITE_KEY_A, 0));
+
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        server.respondWith(new StubApiServer.Responder() {
+            @Override
+            public StubApiServer.Response respond(StubApiServer.Request request) {
+                received.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new StubApiServer.Response(200, "{\"status\":\"accepted\"}");
+            }
+        });
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                a.forceFlush();
+            }
+        });
+        sender.start();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        b.apiCall(createProfileCall(WRITE_KEY_B, 0));
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                engine.onFlushToStorage();
+            }
+        });
+        flusher.start();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+        assertEquals(1, engine.dataStore.getQueueCount(WRITE_KEY_B));
+
+        release.countDown();
+        sender.join(5000);
+        assertEquals(0, engine.dataStore.getQueueCount(WRITE_KEY_A));
+    }
+
+    /**
+     * Tests that shutting down stops the thread and writes out calls only held in memory, and
+     * that calls made on a handler afterwards aren't lost.
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        a.apiCall(createProfileCall(WRITE_KEY_A, 0));
+
+        engine.shutdown();
+        assertTrue(engine.isShutDown());
+        assertFalse(engine.getLooper().getThread().isAlive());
+
+        // Passed on to a new engine once shut down
+        a.apiCall(createProfileCall(WRITE_KEY_A, 1));
+        assertNotSame(a, a.getActiveHandler());
+        ApiEngine.shutdownShared();
+
+        ApiDataStore store = new ApiDataStore(context);
+        assertEquals(2, store.getQueueCount(WRITE_KEY_A));
+        store.close();
+    }
+
+    /**
+     * Tests that force flushing a handler after its engine is shut down flushes the key's
+     * handler on a new engine (rather than the closed one).
+     */
+    @Test
+    public void testForceFlushAfterShutdown() throws Exception {
+        ApiHandler a = engine.getHandler(WRITE_KEY_A, config);
+        a.apiCall(createProfileCall(WRITE_KEY_A, 0));
+
+        engine.shutdown();
+        a.apiCall(createProfileCall(WRITE_KEY_A, 1));
+
+        assertTrue(a.forceFlush());
+        assertEquals(1, server.getRequests().size());
+        ApiEngine.shutdownShared();
+
+        ApiDataStore store = new ApiDataStore(context);
+        assertEquals(0, store.getQueueCount(WRITE_KEY_A));
+        store.close();
+    }
+
+    /**
+     * Gets the write key each request to the stub was for, in the order they arrived.
+     */
+    private List<String> getRequestKeys() {
+        List<String> keys = new ArrayList<String>();
+        for (StubApiServer.Request request : server.getRequests()) {
+            String body = request.getBodyString();
+            keys.add(body.contains(WRITE_KEY_A) ? WRITE_KEY_A : WRITE_KEY_B);
+        }
+        return keys;
+    }
+
+    private ProfileApiCall createProfileCall(String writeKey, int seq) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Seq", seq);
+        return new ProfileApiCall("Actor", properties, writeKey);
+    }
+}
@@ -0,0 +1,440 @@
+package io.calq.android.analytics;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.calq.android.LocalConfig;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18, manifest = "app/src/main/AndroidManifest.xml")
+@RunWith(RobolectricTestRunner.class)
+public class BatchPipelineTest {
+
+    /**
+     * Dummy write key we use for queuing API calls.
+     */
+    private static final String WRITE_KEY = "dummykey_00000000000000000000000";
+
+    /**
+     * Local server standing in for the Calq API.
+     */
+    private StubApiServer server;
+
+    /**
+     * Store holding the queue being sent.
+     */
+    private ApiDataStore store;
+
+    /**
+     * Executor the pipeline sends batches on.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Records requests as they start and finish at the stub.
+     */
+    private RecordingResponder responder;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = Robolectric.application.getApplicationContext();
+        server = new StubApiServer();
+        store = new ApiDataStore(context);
+        executor = Executors.newFixedThreadPool(4);
+        responder = new RecordingResponder(server.createConfig(context));
+        server.respondWith(responder);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    /**
+     * Tests that up to the max number of batches are in flight at once, and all are acknowledged.
+     */
+    @Test
+    public void testSendsBatchesInParallel() throws Exception {
+        responder.maxDelayMs = 100;
+        responder.fixedDelay = true;
+        for (int n = 0; n < 8; n++) {
+            store.addToQueue(createProfileCall("Actor" + n, 0));
+        }
+
+        assertTrue(createPipeline(4).flush());
+
+        assertEquals(8, server.getRequests().size());
+        assertEquals(0, store.getQueueCount(WRITE_KEY));
+        assertEquals(4, responder.maxConcurrent);
+        assertTrue(responder.overlapErrors.isEmpty());
+    }
+
+    /**
+     * Tests that a single batch in flight sends on the calling thread, one at a time.
+     */
+    @Test
+    public void testSingleInFlight() throws Exception {
+        for (int n = 0; n < 5; n++) {
+            store.addToQueue(createProfileCall("Actor" + n, 0));
+        }
+
+        BatchPipeline pipeline = new BatchPipeline(WRITE_KEY, store, new ApiDispatcher(responder.config),
+                new AdaptiveBatchSizer(), BatchPipeline.DIRECT_EXECUTOR, 1, false);
+        assertTrue(pipeline.flush());
+
+        assertEquals(5, server.getRequests().size());
+        assertEquals(1, responder.maxConcurrent);
+        assertEquals(0, store.getQueueCount(WRITE_KEY));
+    }
+
+    /**
+     * Tests that with responses coming back out of order, calls for the same actor are never
+     * in flight together and arrive in the order they were made.
+     */
+    @Test
+    public void testSameActorKeptInOrder() throws Exception {
+        responder.maxDelayMs = 30;
+        String[] actors = { "ActorA", "ActorB", "ActorC" };
+        for (int seq = 0; seq < 5; seq++) {
+            for (String actor : actors) {
+                store.addToQueue(createProfileCall(actor, seq));
+            }
+        }
+
+        assertTrue(createPipeline(4).flush());
+
+        assertEquals(0, store.getQueueCount(WRITE_KEY));
+        assertTrue(responder.overlapErrors.toString(), responder.overlapErrors.isEmpty());
+        for (String actor : actors) {
+            List<Integer> received = responder.getReceivedSeqs(actor);
+            assertEquals(5, received.size());
+            for (int seq = 0; seq < 5; seq++) {
+                assertEquals(seq, (int) received.get(seq));
+            }
+        }
+        assertTrue(responder.maxConcurrent > 1);
+    }
+
+    /**
+     * Tests that a Transfer waits for earlier calls to complete, and later calls wait for it.
+     */
+    @Test
+    public void testTransferIsBarrier() throws Exception {
+        responder.maxDelayMs = 30;
+        store.addToQueue(createProfileCall("ActorA", 0));
+        store.addToQueue(createProfileCall("ActorB", 0));
+        store.addToQueue(new TransferApiCall("ActorA", "ActorC", WRITE_KEY));
+        store.addToQueue(createProfileCall("ActorC", 0));
+        store.addToQueue(createProfileCall("ActorB", 1));
+
+        assertTrue(createPipeline(4).flush());
+
+        List<String> events = responder.events;
+        int transferStart = events.indexOf("start:Transfer");
+        int transferEnd = events.indexOf("end:Transfer");
+        assertTrue(transferStart > events.indexOf("end:ActorA:0"));
+        assertTrue(transferStart > events.indexOf("end:ActorB:0"));
+        assertTrue(events.indexOf("start:ActorC:0") > transferEnd);
+        assertTrue(events.indexOf("start:ActorB:1") > transferEnd);
+    }
+
+    /**
+     * Tests that a failed batch stays queued, while batches for other actors that succeeded
+     * are still acknowledged.
+     */
+    @Test
+    public void testFailedBatchStaysQueued() throws Exception {
+        responder.maxDelayMs = 30;
+        responder.failActor = "BadActor";
+        store.addToQueue(createProfileCall("GoodActor", 0));
+        store.addToQueue(createProfileCall("BadActor", 0));
+        store.addToQueue(createProfileCall("BadActor", 1));
+
+        assertFalse(createPipeline(4).flush());
+
+        // The later call for the failed actor was never sent
+        assertEquals(2, store.getQueueCount(WRITE_KEY));
+        assertEquals(1, responder.getReceivedSeqs("BadActor").size());
+        assertTrue(store.peekQueue(WRITE_KEY).getPayload().contains("BadActor"));
+    }
+
+    /**
+     * Tests that repeated failed flushes shrink the batches we send.
+     */
+    @Test
+    public void testRepeatedFailuresShrinkBatches() throws Exception {
+        responder.failActor = "BadActor";
+        store.addToQueue(createProfileCall("BadActor", 0));
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+        BatchPipeline pipeline = new BatchPipeline(WRITE_KEY, store, new ApiDispatcher(responder.config),
+                sizer, executor, 4, false);
+
+        for (int n = 0; n < 3; n++) {
+            assertFalse(pipeline.flush());
+        }
+        assertEquals(AdaptiveBatchSizer.INITIAL_TARGET_BYTES / 8, sizer.getTargetBytes());
+        assertTrue(sizer.getFailureRate() > AdaptiveBatchSizer.HIGH_FAILURE_RATE);
+    }
+
+    /**
+     * Tests that a call rejected by the API server is dropped, and the rest still sent.
+     */
+    @Test
+    public void testRejectedCallDropped() throws Exception {
+        responder.rejectActor = "BadActor";
+        store.addToQueue(createProfileCall("GoodActor", 0));
+        store.addToQueue(createProfileCall("BadActor", 0));
+        store.addToQueue(createProfileCall("GoodActor", 1));
+
+        assertTrue(createPipeline(4).flush());
+
+        assertEquals(3, server.getRequests().size());
+        assertEquals(0, store.getQueueCount(WRITE_KEY));
+    }
+
+    /**
+     * Tests that a single bad call in a batch is isolated by bisection, everything else is
+     * delivered, and the number of requests stays logarithmic in the batch size.
+     */
+    @Test
+    public void testPoisonCallIsolated() throws Exception {
+        PoisonResponder poison = new PoisonResponder();
+        server.respondWith(poison);
+        for (int n = 0; n < 64; n++) {
+            store.addToQueue(createActionCall(n, n == 37));
+        }
+
+        assertTrue(createPipeline(4).flush());
+
+        assertEquals(0, store.getQueueCount(WRITE_KEY));
+        assertEquals(63, poison.delivered.size());
+        assertFalse(poison.delivered.contains(37));
+        assertEquals(1, store.getDeadLetterCount(WRITE_KEY));
+        assertEquals("Bad event", store.getDeadLetters(WRITE_KEY).get(0).getError());
+        assertTrue(store.getDeadLetters(WRITE_KEY).get(0).getPayload().contains("\"Index\":37"));
+        // 1 for the batch, then 2 per level: log2(64) = 6
+        assertTrue("Requests: " + server.getRequests().size(), server.getRequests().size() <= 1 + 2 * 6);
+    }
+
+    /**
+     * Tests that several bad calls are all isolated, with far fewer requests than one per call.
+     */
+    @Test
+    public void testSeveralPoisonCallsIsolated() throws Exception {
+        PoisonResponder poison = new PoisonResponder();
+        server.respondWith(poison);
+        for (int n = 0; n < 100; n++) {
+            store.addToQueue(createActionCall(n, n == 3 || n == 50 || n == 99));
+        }
+
+        assertTrue(createPipeline(4).flush());
+
+        assertEquals(0, store.getQueueCount(WRITE_KEY));
+        assertEquals(97, poison.delivered.size());
+        assertEquals(3, store.getDeadLetterCount(WRITE_KEY));
+        // 1 for the batch, then at most 2 per level (log2(100) < 7) for each bad call
+        assertTrue("Requests: " + server.getRequests().size(), server.getRequests().size() <= 1 + 3 * 2 * 7);
+    }
+
+    /**
+     * Tests that once throttled no more batches are sent, the throttled calls stay queued,
+     * and the server's delay is reported.
+     */
+    @Test
+    public void testThrottledBatchesStayQueued() throws Exception {
+        server.throttleAfter(2, "120");
+        for (int n = 0; n < 5; n++) {
+            store.addToQueue(createProfileCall("Actor" + n, 0));
+        }
+
+        BatchPipeline pipeline = createPipeline(1);
+        assertFalse(pipeline.flush());
+
+        assertEquals(3, server.getRequests().size());
+        assertEquals(3, store.getQueueCount(WRITE_KEY));
+        assertEquals(120 * 1000, pipeline.getRetryAfterMs());
+
+        // Throttled probe still means the server is up
+        assertTrue(pipeline.probe());
+        assertEquals(3, store.getQueueCount(WRITE_KEY));
+    }
+
+    /**
+     * Tests that a probe sends only the batch at the head of the queue.
+     */
+    @Test
+    public void testProbeSendsSingleBatch() throws Exception {
+        for (int n = 0; n < 5; n++) {
+            store.addToQueue(createProfileCall("Actor" + n, 0));
+        }
+
+        assertTrue(createPipeline(4).probe());
+
+        assertEquals(1, server.getRequests().size());
+        assertEquals(4, store.getQueueCount(WRITE_KEY));
+        assertEquals("Actor0:0", responder.events.get(0).substring("start:".length()));
+
+        // Failed probe leaves it queued
+        responder.failActor = "Actor1";
+        assertFalse(createPipeline(4).probe());
+        assertEquals(4, store.getQueueCount(WRITE_KEY));
+    }
+
+    /**
+     * Creates a pipeline sending to the stub with the given number of batches in flight.
+     */
+    private BatchPipeline createPipeline(int maxInFlight) {
+        return new BatchPipeline(WRITE_KEY, store, new ApiDispatcher(responder.config),
+                new AdaptiveBatchSizer(), executor, maxInFlight, false);
+    }
+
+    /**
+     * Creates a track call tagged with an index, which the server will reject if poisoned.
+     */
+    private ActionApiCall createActionCall(int index, boolean poisoned) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Index", index);
+        properties.put("Poisoned", poisoned);
+        return new ActionApiCall("TestActor", "Test Action", properties, WRITE_KEY);
+    }
+
+    /**
+     * Creates a profile call for the given actor, tagged with a sequence number.
+     */
+    private ProfileApiCall createProfileCall(String actor, int seq) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Seq", seq);
+        return new ProfileApiCall(actor, properties, WRITE_KEY);
+    }
+
+    /**
+     * Rejects any request containing a poisoned call, like the API server rejecting a batch
+     * because of one bad event. Records the index of every call delivered.
+     */
+    private static class PoisonResponder implements StubApiServer.Responder {
+        final Set<Integer> delivered = Collections.synchronizedSet(new HashSet<Integer>());
+
+        @Override
+        public StubApiServer.Response respond(StubApiServer.Request request) {
+            try {
+                String body = request.getBodyString();
+                JSONArray calls = body.startsWith("[") ? new JSONArray(body) : new JSONArray().put(new JSONObject(body));
+                List<Integer> indexes = new ArrayList<Integer>();
+                for (int n = 0; n < calls.length(); n++) {
+                    JSONObject properties = calls.getJSONObject(n).getJSONObject("properties");
+                    if (properties.getBoolean("Poisoned")) {
+                        return new StubApiServer.Response(400, "{\"status\":\"rejected\",\"error\":\"Bad event\"}");
+                    }
+                    indexes.add(properties.getInt("Index"));
+                }
+                delivered.addAll(indexes);
+                return new StubApiServer.Response(200, "{\"status\":\"accepted\"}");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Responds after a random delay, recording when each call starts and finishes and which
+     * actors are in flight.
+     */
+    private static class RecordingResponder implements StubApiServer.Responder {
+        final LocalConfig config;
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> overlapErrors = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+        final Set<String> inFlightActors = new HashSet<String>();
+        final Random random = new Random(1234);
+        volatile int maxDelayMs;
+        volatile boolean fixedDelay;
+        volatile String failActor;
+        volatile String rejectActor;
+        int concurrent;
+        int maxConcurrent;
+
+        RecordingResponder(LocalConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public StubApiServer.Response respond(StubApiServer.Request request) {
+            try {
+                JSONObject json = new JSONObject(request.getBodyString());
+                String label;
+                String actor;
+                if (request.path.endsWith("Transfer")) {
+                    label = "Transfer";
+                    actor = json.getString(ReservedApiProperties.OLD_ACTOR);
+                } else {
+                    actor = json.getString(ReservedApiProperties.ACTOR);
+                    int seq = json.getJSONObject("properties").getInt("Seq");
+                    label = actor + ":" + seq;
+                    synchronized (received) {
+                        if (!received.containsKey(actor)) {
+                            received.put(actor, new ArrayList<Integer>());
+                        }
+                        received.get(actor).add(seq);
+                    }
+                }
+
+                int delay;
+                synchronized (this) {
+                    concurrent++;
+                    maxConcurrent = Math.max(maxConcurrent, concurrent);
+                    if (!inFlightActors.add(actor)) {
+                        overlapErrors.add(label);
+                    }
+                    delay = fixedDelay || maxDelayMs == 0 ? maxDelayMs : random.nextInt(maxDelayMs) + 1;
+                }
+                events.add("start:" + label);
+                Thread.sleep(delay);
+                events.add("end:" + label);
+                synchronized (this) {
+                    concurrent--;
+                    inFlightActors.remove(actor);
+                }
+
+                if (actor.equals(failActor)) {
+                    return new StubApiServer.Response(500, "{\"status\":\"error\",\"error\":\"Test error\"}");
+                }
+                if (actor.equals(rejectActor)) {
+                    return new StubApiServer.Response(400, "{\"status\":\"rejected\",\"error\":\"Test error\"}");
+                }
+                return new StubApiServer.Response(200, "{\"status\":\"accepted\"}");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        List<Integer> getReceivedSeqs(String actor) {
+            synchronized (received) {
+                List<Integer> seqs = received.get(actor);
+                return seqs == null ? new ArrayList<Integer>() : new ArrayList<Integer>(seqs);
+            }
+        }
+    }
+}
\ No newline at end of file
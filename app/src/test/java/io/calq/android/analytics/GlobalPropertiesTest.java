@@ -0,0 +1,71 @@
+package io.calq.android.analytics;
+
+import org.junit.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GlobalPropertiesTest {
+
+    /**
+     * Tests that setting a property gives a new snapshot and leaves the old one untouched.
+     */
+    @Test
+    public void testCopyOnWrite() throws Exception {
+        GlobalProperties first = GlobalProperties.EMPTY.with("Plan", "Free");
+        GlobalProperties second = first.with("Plan", "Pro").with("Region", "EU");
+
+        assertEquals("Free", first.get("Plan"));
+        assertEquals(1, first.size());
+        assertFalse(first.containsKey("Region"));
+
+        assertEquals("Pro", second.get("Plan"));
+        assertEquals("EU", second.get("Region"));
+        assertEquals(0, GlobalProperties.EMPTY.size());
+    }
+
+    /**
+     * Tests that each change gives a snapshot with a higher version.
+     */
+    @Test
+    public void testVersions() throws Exception {
+        GlobalProperties first = GlobalProperties.EMPTY.with("Plan", "Free");
+        Map<String, Object> values = new Hashtable<String, Object>();
+        values.put("Region", "EU");
+        GlobalProperties second = first.withAll(values);
+
+        assertEquals(0, GlobalProperties.EMPTY.getVersion());
+        assertTrue(first.getVersion() > GlobalProperties.EMPTY.getVersion());
+        assertTrue(second.getVersion() > first.getVersion());
+    }
+
+    /**
+     * Tests that snapshots can't be changed through their map, or by changing the map they
+     * were made from.
+     */
+    @Test
+    public void testImmutable() throws Exception {
+        Map<String, Object> values = new Hashtable<String, Object>();
+        values.put("Plan", "Free");
+        GlobalProperties snapshot = GlobalProperties.EMPTY.withAll(values);
+        values.put("Plan", "Pro");
+        assertEquals("Free", snapshot.get("Plan"));
+
+        try {
+            snapshot.asMap().put("Plan", "Pro");
+            fail("Snapshot map should be read only");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that null values are refused.
+     */
+    @Test(expected = NullPointerException.class)
+    public void testNullValue() throws Exception {
+        GlobalProperties.EMPTY.with("Plan", null);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,230 @@
+package io.calq.android.analytics;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.calq.android.Benchmark;
+import io.calq.android.BenchmarkReporter;
+
+import org.json.JSONObject;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class JsonPayloadWriterTest {
+
+    /**
+     * Tests the output for each type of value we send.
+     */
+    @Test
+    public void testValueTypes() throws Exception {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("String", "Text");
+        properties.put("Int", 12);
+        properties.put("Long", -9000000000L);
+        properties.put("Double", 9.75);
+        properties.put("WholeDouble", 9.0);
+        properties.put("Float", 0.5f);
+        properties.put("BigDecimal", new BigDecimal("19.99"));
+        properties.put("WholeBigDecimal", new BigDecimal("100.00"));
+        properties.put("True", true);
+        properties.put("False", Boolean.FALSE);
+        properties.put("Null", null);
+        properties.put("NaN", Double.NaN);
+        properties.put("Other", new StringBuilder("As string"));
+
+        assertEquals("{\"String\":\"Text\",\"Int\":12,\"Long\":-9000000000,\"Double\":9.75,\"WholeDouble\":9," +
+                "\"Float\":0.5,\"BigDecimal\":19.99,\"WholeBigDecimal\":100,\"True\":true,\"False\":false," +
+                "\"Null\":null,\"NaN\":null,\"Other\":\"As string\"}",
+                new JsonPayloadWriter().value(properties).toString());
+    }
+
+    /**
+     * Tests that BigDecimal and BigInteger are written exactly, and that doubles beyond the
+     * range of a long aren't written as a saturated long.
+     */
+    @Test
+    public void testExactNumbers() throws Exception {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("RoundsToWhole", new BigDecimal("9007199254740992.5"));
+        properties.put("Exponent", new BigDecimal("1E+20"));
+        properties.put("BeyondLong", new BigDecimal("-12345678901234567890.10"));
+        properties.put("Zero", new BigDecimal("0.000"));
+        properties.put("BigInteger", new BigInteger("123456789012345678901234567890"));
+        properties.put("TwoTo63", 9223372036854775808.0);
+        properties.put("MinusTwoTo63", -9223372036854775808.0);
+        properties.put("Huge", 1e19);
+
+        assertEquals("{\"RoundsToWhole\":9007199254740992.5,\"Exponent\":100000000000000000000," +
+                "\"BeyondLong\":-12345678901234567890.1,\"Zero\":0,\"BigInteger\":123456789012345678901234567890," +
+                "\"TwoTo63\":9.223372036854776E18,\"MinusTwoTo63\":-9223372036854775808,\"Huge\":1.0E19}",
+                new JsonPayloadWriter().value(properties).toString());
+    }
+
+    /**
+     * Tests nested maps, collections and arrays (including empty ones).
+     */
+    @Test
+    public void testNested() throws Exception {
+        Map<String, Object> inner = new LinkedHashMap<String, Object>();
+        inner.put("List", Arrays.asList(1, "Two", Arrays.asList(3)));
+        inner.put("Array", new Object[]{ true, null });
+        inner.put("Empty", new LinkedHashMap<String, Object>());
+        Map<String, Object> outer = new LinkedHashMap<String, Object>();
+        outer.put("Inner", inner);
+        outer.put("EmptyList", Arrays.asList());
+        outer.put("After", 1);
+
+        assertEquals("{\"Inner\":{\"List\":[1,\"Two\",[3]],\"Array\":[true,null],\"Empty\":{}},\"EmptyList\":[],\"After\":1}",
+                new JsonPayloadWriter().value(outer).toString());
+    }
+
+    /**
+     * Tests that strings (and names) are escaped correctly.
+     */
+    @Test
+    public void testEscaping() throws Exception {
+        JsonPayloadWriter writer = new JsonPayloadWriter();
+        writer.beginObject()
+                .name("Quote\"Name").value("Back\\slash")
+                .name("Whitespace").value("Line\nReturn\rTab\tBack\bFeed\f")
+                .name("Control").value("\u0000\u001f")
+                .name("Separators").value("\u2028\u2029")
+                .name("Unicode").value("caf\u00e9 \u2603 \ud83d\ude00 </script>")
+                .endObject();
+
+        assertEquals("{\"Quote\\\"Name\":\"Back\\\\slash\"," +
+                "\"Whitespace\":\"Line\\nReturn\\rTab\\tBack\\bFeed\\f\"," +
+                "\"Control\":\"\\u0000\\u001f\"," +
+                "\"Separators\":\"\\u2028\\u2029\"," +
+                "\"Unicode\":\"caf\u00e9 \u2603 \ud83d\ude00 </script>\"}", writer.toString());
+
+        // And parses back to the same values
+        JSONObject json = new JSONObject(writer.toString());
+        assertEquals("Back\\slash", json.getString("Quote\"Name"));
+        assertEquals("Line\nReturn\rTab\tBack\bFeed\f", json.getString("Whitespace"));
+        assertEquals("\u0000\u001f", json.getString("Control"));
+        assertEquals("caf\u00e9 \u2603 \ud83d\ude00 </script>", json.getString("Unicode"));
+    }
+
+    /**
+     * Tests that a writer can be reset and reused.
+     */
+    @Test
+    public void testReuse() throws Exception {
+        JsonPayloadWriter writer = new JsonPayloadWriter();
+        writer.beginObject().name("First").value(1).endObject();
+        assertEquals("{\"First\":1}", writer.toString());
+
+        writer.reset().beginObject().name("Second").value(2).endObject();
+        assertEquals("{\"Second\":2}", writer.toString());
+
+        // Even after a very big payload
+        char[] big = new char[100 * 1024];
+        Arrays.fill(big, 'x');
+        writer.reset().value(new String(big));
+        writer.reset().beginArray().value(3).endArray();
+        assertEquals("[3]", writer.toString());
+    }
+
+    /**
+     * Tests the exact payloads built by each type of API call.
+     */
+    @Test
+    public void testGoldenPayloads() throws Exception {
+        String writeKey = "dummykey_00000000000000000000000";
+
+        TransferApiCall transfer = new TransferApiCall("OldActor", "NewActor", writeKey);
+        assertEquals("{\"actor\":\"OldActor\",\"write_key\":\"" + writeKey + "\"," +
+                "\"old_actor\":\"OldActor\",\"new_actor\":\"NewActor\"}", transfer.getPayload());
+
+        Map<String, Object> profile = new Hashtable<String, Object>();
+        profile.put("$email", "test@notarealemail.com");
+        assertEquals("{\"actor\":\"TestActor\",\"write_key\":\"" + writeKey + "\"," +
+                "\"properties\":{\"$email\":\"test@notarealemail.com\"}}",
+                new ProfileApiCall("TestActor", profile, writeKey).getPayload());
+
+        // Own properties win over globals of the same name
+        GlobalProperties globals = GlobalProperties.EMPTY.with("Plan", "Free");
+        Map<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("Plan", "Pro");
+        ActionApiCall action = new ActionApiCall("TestActor", "Test Action", globals, properties, writeKey);
+        String timestamp = UtcTimestampFormatter.format(action.createdAt);
+        assertEquals("{\"actor\":\"TestActor\",\"write_key\":\"" + writeKey + "\"," +
+                "\"timestamp\":\"" + timestamp + "\",\"action_name\":\"Test Action\"," +
+                "\"properties\":{\"Plan\":\"Pro\"}}", action.getPayload());
+    }
+
+    /**
+     * Compares building an action payload with this writer against building a JSONObject tree
+     * (as we did before).
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testPayloadBenchmark() throws Exception {
+        Map<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("$device_agent", "Linux 3.4.0 armv7l");
+        properties.put("$device_resolution", "1080x1920");
+        properties.put("$device_mobile", true);
+        properties.put("$sale_value", new BigDecimal("19.99"));
+        properties.put("Rating", 9.5);
+        properties.put("Level", 12);
+        properties.put("Description", "Quoted \"text\" with\nnewlines");
+        ActionApiCall call = new ActionApiCall("TestActor", "Test Action", properties,
+                "dummykey_00000000000000000000000");
+
+        int iterations = 20000;
+        int checksum = 0;
+        for (int n = 0; n < iterations; n++) {  // Warm up both paths
+            checksum += buildWithJSONObject(call).length() + call.getPayload().length();
+        }
+
+        long start = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            checksum += buildWithJSONObject(call).length();
+        }
+        long treeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < iterations; n++) {
+            checksum += call.getPayload().length();
+        }
+        long streamNanos = System.nanoTime() - start;
+
+        BenchmarkReporter.report("Action payload", "JSONObject %d ns/event, streaming %d ns/event (checksum %d)",
+                treeNanos / iterations, streamNanos / iterations, checksum);
+
+        // Both should describe the same event
+        JSONObject tree = new JSONObject(buildWithJSONObject(call));
+        JSONObject streamed = new JSONObject(call.getPayload());
+        assertEquals(tree.length(), streamed.length());
+        assertEquals(tree.getJSONObject("properties").length(), streamed.getJSONObject("properties").length());
+        assertEquals("Quoted \"text\" with\nnewlines", streamed.getJSONObject("properties").getString("Description"));
+    }
+
+    /**
+     * The previous way an action payload was built (a JSONObject tree, then toString()).
+     */
+    private static String buildWithJSONObject(ActionApiCall call) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put(ReservedApiProperties.ACTOR, call.actor);
+        json.put(ReservedApiProperties.WRITE_KEY, call.writeKey);
+        JSONObject properties = new JSONObject();
+        for (int n = 0; n < call.propertyNames.length; n++) {
+            properties.put(call.propertyNames[n], call.propertyValues[n]);
+        }
+        json.put(ReservedApiProperties.TIMESTAMP, UtcTimestampFormatter.format(call.createdAt));
+        json.put(ReservedApiProperties.ACTION_NAME, call.action);
+        json.put(ReservedApiProperties.USER_PROPERTIES, properties);
+        return json.toString();
+    }
+}
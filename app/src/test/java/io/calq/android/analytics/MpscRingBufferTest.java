@@ -0,0 +1,253 @@
+package io.calq.android.analytics;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.calq.android.Benchmark;
+import io.calq.android.BenchmarkReporter;
+
+import static org.junit.Assert.*;
+
+public class MpscRingBufferTest {
+
+    /**
+     * Tests that items are drained in the order they were added.
+     */
+    @Test
+    public void testFifo() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(8);
+        assertTrue(buffer.isEmpty());
+        for (int n = 0; n < 5; n++) {
+            assertTrue(buffer.offer(n));
+        }
+        assertEquals(5, buffer.size());
+
+        List<Integer> out = new ArrayList<Integer>();
+        assertEquals(5, buffer.drainTo(out));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), out);
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.drainTo(out));
+    }
+
+    /**
+     * Tests that the capacity is rounded up to a power of 2 and offers fail once full.
+     */
+    @Test
+    public void testFull() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(5);
+        assertEquals(8, buffer.getCapacity());
+        for (int n = 0; n < 8; n++) {
+            assertTrue(buffer.offer(n));
+        }
+        assertFalse(buffer.offer(8));
+        assertEquals(8, buffer.size());
+
+        // Draining makes room again
+        List<Integer> out = new ArrayList<Integer>();
+        buffer.drainTo(out);
+        assertTrue(buffer.offer(8));
+    }
+
+    /**
+     * Tests that slots are reused correctly as the indexes wrap around the buffer.
+     */
+    @Test
+    public void testWrapAround() throws Exception {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(4);
+        List<Integer> out = new ArrayList<Integer>();
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int n = 0; n < 3; n++) {
+                assertTrue(buffer.offer(next++));
+            }
+            buffer.drainTo(out);
+        }
+        assertEquals(30, out.size());
+        for (int n = 0; n < 30; n++) {
+            assertEquals(n, out.get(n).intValue());
+        }
+    }
+
+    /**
+     * Tests that nothing is lost or reordered (per producer) with several producers adding
+     * while a consumer drains.
+     */
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final MpscRingBuffer<long[]> buffer = new MpscRingBuffer<long[]>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < perProducer; n++) {
+                            long[] item = new long[]{ producer, n };
+                            while (!buffer.offer(item)) {
+                                Thread.yield();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long[] expected = new long[producers];
+        List<long[]> out = new ArrayList<long[]>();
+        start.countDown();
+        while (done.getCount() > 0 || !buffer.isEmpty()) {
+            out.clear();
+            buffer.drainTo(out);
+            for (long[] item : out) {
+                assertEquals(expected[(int) item[0]]++, item[1]);
+            }
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, expected[p]);
+        }
+    }
+
+    /**
+     * Compares producer latency against the previous receive queue (a LinkedList locked per
+     * call) with several threads tracking at once while a consumer drains, showing the
+     * contention the lock added under load.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testProducerLatencyBenchmark() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50000;
+
+        // Warm up both paths
+        runLockedProducers(producers, perProducer);
+        runRingProducers(producers, perProducer);
+
+        long[] locked = runLockedProducers(producers, perProducer);
+        long[] ring = runRingProducers(producers, perProducer);
+
+        BenchmarkReporter.report("apiCall producer latency", "%d threads, " +
+                "locked p50 %d ns, p99 %d ns, p99.9 %d ns; ring p50 %d ns, p99 %d ns, p99.9 %d ns",
+                producers, percentile(locked, 50), percentile(locked, 99), percentile(locked, 99.9),
+                percentile(ring, 50), percentile(ring, 99), percentile(ring, 99.9));
+
+        assertEquals(producers * perProducer, ring.length);
+    }
+
+    /**
+     * Times each add under the previous scheme (lock the list, add). The Handler calls that
+     * were also made under the lock are left out, so this flatters the previous scheme.
+     */
+    private static long[] runLockedProducers(int producers, final int perProducer) throws Exception {
+        final LinkedList<Object> queue = new LinkedList<Object>();
+        return runProducers(producers, perProducer, new Producer() {
+            @Override
+            public void add(Object item) {
+                synchronized (queue) {
+                    queue.add(item);
+                }
+            }
+
+            @Override
+            public void drain() {
+                synchronized (queue) {
+                    queue.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Times each add to the ring buffer (offer, check if the consumer needs signalling).
+     */
+    private static long[] runRingProducers(int producers, final int perProducer) throws Exception {
+        final MpscRingBuffer<Object> buffer = new MpscRingBuffer<Object>(ApiHandler.RECEIVE_QUEUE_CAPACITY);
+        final AtomicBoolean signalled = new AtomicBoolean();
+        final List<Object> sink = new ArrayList<Object>();
+        return runProducers(producers, perProducer, new Producer() {
+            @Override
+            public void add(Object item) {
+                while (!buffer.offer(item)) {
+                    Thread.yield();
+                }
+                if (!signalled.get()) {
+                    signalled.compareAndSet(false, true);
+                }
+            }
+
+            @Override
+            public void drain() {
+                signalled.set(false);
+                sink.clear();
+                buffer.drainTo(sink);
+            }
+        });
+    }
+
+    private interface Producer {
+        void add(Object item);
+        void drain();
+    }
+
+    /**
+     * Runs producer threads adding to the given queue while this thread drains it, and
+     * returns the time taken by every add (in NS).
+     */
+    private static long[] runProducers(int producers, final int perProducer, final Producer queue) throws Exception {
+        final long[] latencies = new long[producers * perProducer];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final Object item = new Object();
+
+        for (int p = 0; p < producers; p++) {
+            final int offset = p * perProducer;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < perProducer; n++) {
+                            long begin = System.nanoTime();
+                            queue.add(item);
+                            latencies[offset + n] = System.nanoTime() - begin;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        while (done.getCount() > 0) {
+            queue.drain();
+        }
+        queue.drain();
+
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
\ No newline at end of file
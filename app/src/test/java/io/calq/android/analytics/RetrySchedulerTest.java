@@ -0,0 +1,157 @@
+package io.calq.android.analytics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RetrySchedulerTest {
+
+    private static final long BASE_MS = 1000;
+    private static final long MAX_MS = 60 * 1000;
+
+    /**
+     * Tests that delays double after each failure (before jitter), up to the max.
+     */
+    @Test
+    public void testExponentialBackoffCapped() throws Exception {
+        FakeClock clock = new FakeClock();
+        RetryScheduler scheduler = new RetryScheduler(BASE_MS, MAX_MS, 100, clock, new FixedRandom(0.999999));
+
+        assertEquals(0, scheduler.getRetryDelayMs());
+
+        long expected = BASE_MS;
+        for (int n = 1; n <= 10; n++) {
+            scheduler.onFailure();
+            assertEquals(n, scheduler.getConsecutiveFailures());
+            assertEquals(Math.min(expected, MAX_MS) - 1, scheduler.getRetryDelayMs(), 1);
+            expected *= 2;
+        }
+        assertEquals(RetryScheduler.State.CLOSED, scheduler.getState());
+
+        // Delay counts down with the clock
+        clock.now = 10000;
+        assertEquals(MAX_MS - 10000, scheduler.getRetryDelayMs(), 1);
+
+        scheduler.onSuccess();
+        assertEquals(0, scheduler.getConsecutiveFailures());
+        assertEquals(0, scheduler.getRetryDelayMs());
+    }
+
+    /**
+     * Tests that delays are spread randomly between 0 and the backoff (full jitter).
+     */
+    @Test
+    public void testFullJitter() throws Exception {
+        FakeClock clock = new FakeClock();
+        RetryScheduler scheduler = new RetryScheduler(BASE_MS, MAX_MS, 1000, clock, new Random(42));
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int n = 0; n < 200; n++) {
+            // Third failure in a row, so backoff is 4x base
+            scheduler.onSuccess();
+            for (int f = 0; f < 3; f++) {
+                scheduler.onFailure();
+            }
+            long delay = scheduler.getRetryDelayMs();
+            assertTrue(delay >= 0 && delay < BASE_MS * 4);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min < BASE_MS);
+        assertTrue(max > BASE_MS * 3);
+    }
+
+    /**
+     * Tests that the circuit opens after the threshold, half opens once the delay has passed,
+     * and reopens if the probe fails.
+     */
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        FakeClock clock = new FakeClock();
+        RetryScheduler scheduler = new RetryScheduler(BASE_MS, MAX_MS, 3, clock, new FixedRandom(0.5));
+
+        scheduler.onFailure();
+        scheduler.onFailure();
+        assertEquals(RetryScheduler.State.CLOSED, scheduler.getState());
+        scheduler.onFailure();
+        assertEquals(RetryScheduler.State.OPEN, scheduler.getState());
+
+        // Open until the delay passes
+        long delay = scheduler.getRetryDelayMs();
+        assertEquals(BASE_MS * 4 / 2, delay);
+        clock.now += delay - 1;
+        assertEquals(RetryScheduler.State.OPEN, scheduler.getState());
+        clock.now += 1;
+        assertEquals(RetryScheduler.State.HALF_OPEN, scheduler.getState());
+
+        // Probe fails. Open again, for longer
+        scheduler.onFailure();
+        assertEquals(RetryScheduler.State.OPEN, scheduler.getState());
+        assertEquals(BASE_MS * 8 / 2, scheduler.getRetryDelayMs());
+
+        // Probe succeeds. Closed
+        clock.now += scheduler.getRetryDelayMs();
+        assertEquals(RetryScheduler.State.HALF_OPEN, scheduler.getState());
+        scheduler.onSuccess();
+        assertEquals(RetryScheduler.State.CLOSED, scheduler.getState());
+        assertEquals(0, scheduler.getConsecutiveFailures());
+    }
+
+    /**
+     * Tests that being throttled pauses flushing for the server's delay, without counting as
+     * a failure (or opening the circuit).
+     */
+    @Test
+    public void testThrottlePauses() throws Exception {
+        FakeClock clock = new FakeClock();
+        RetryScheduler scheduler = new RetryScheduler(BASE_MS, MAX_MS, 1, clock, new FixedRandom(0.5));
+
+        scheduler.onThrottled(30 * 1000);
+        assertTrue(scheduler.isPaused());
+        assertEquals(RetryScheduler.State.CLOSED, scheduler.getState());
+        assertEquals(0, scheduler.getConsecutiveFailures());
+        assertEquals(30 * 1000, scheduler.getRetryDelayMs());
+
+        clock.now += 30 * 1000;
+        assertFalse(scheduler.isPaused());
+        assertEquals(0, scheduler.getRetryDelayMs());
+
+        // Throttled probe closes an open circuit
+        scheduler.onFailure();
+        assertEquals(RetryScheduler.State.OPEN, scheduler.getState());
+        scheduler.onThrottled(1000);
+        assertEquals(RetryScheduler.State.CLOSED, scheduler.getState());
+        assertTrue(scheduler.isPaused());
+    }
+
+    /**
+     * Clock that only moves when told to.
+     */
+    private static class FakeClock implements RetryScheduler.Clock {
+        long now;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    /**
+     * Random that always gives the same double.
+     */
+    private static class FixedRandom extends Random {
+        private final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+}
\ No newline at end of file
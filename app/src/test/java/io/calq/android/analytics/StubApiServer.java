@@ -0,0 +1,204 @@
+package io.calq.android.analytics;
+
+import android.content.Context;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.calq.android.LocalConfig;
+
+/**
+ * Local stand-in for the Calq API server. Records every request it receives, and which client
+ * connection it arrived on, and answers with whatever the current {@link Responder} returns.
+ */
+public class StubApiServer {
+
+    /**
+     * Builds a response for a request received by the stub.
+     */
+    public interface Responder {
+        Response respond(Request request);
+    }
+
+    /**
+     * A request as received by the stub.
+     */
+    public static class Request {
+        public final String path;
+        public final String contentEncoding;
+        public final byte[] body;
+
+        Request(String path, String contentEncoding, byte[] body) {
+            this.path = path;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+
+        public String getBodyString() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A response to send back from the stub.
+     */
+    public static class Response {
+        public final int status;
+        public final String body;
+        public final String retryAfter;
+
+        public Response(int status, String body) {
+            this(status, body, null);
+        }
+
+        public Response(int status, String body, String retryAfter) {
+            this.status = status;
+            this.body = body;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = new Vector<Request>();
+    private final Set<Integer> clientPorts = new HashSet<Integer>();
+    private volatile Responder responder;
+
+    public StubApiServer() throws IOException {
+        respondWith(200, "{\"status\":\"accepted\"}");
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (clientPorts) {
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+
+                Request request = new Request(exchange.getRequestURI().getPath(),
+                        exchange.getRequestHeaders().getFirst("Content-Encoding"),
+                        readFully(exchange.getRequestBody()));
+                requests.add(request);
+
+                Response response = responder.respond(request);
+                byte[] body = response.body.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                if (response.retryAfter != null) {
+                    exchange.getResponseHeaders().set("Retry-After", response.retryAfter);
+                }
+                exchange.sendResponseHeaders(response.status, body.length > 0 ? body.length : -1);   // -1 for no body
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(executor);   // Handle concurrent requests concurrently
+        server.start();
+    }
+
+    /**
+     * Makes the stub answer every request with the given status and body.
+     */
+    public void respondWith(final int status, final String body) {
+        responder = new Responder() {
+            @Override
+            public Response respond(Request request) {
+                return new Response(status, body);
+            }
+        };
+    }
+
+    /**
+     * Makes the stub accept the given number of requests, then throttle every request after
+     * that with a 429 and the given Retry-After.
+     */
+    public void throttleAfter(final int accepted, final String retryAfter) {
+        final int[] count = { 0 };
+        responder = new Responder() {
+            @Override
+            public Response respond(Request request) {
+                synchronized (count) {
+                    if (count[0]++ < accepted) {
+                        return new Response(200, "{\"status\":\"accepted\"}");
+                    }
+                }
+                return new Response(429, "{\"status\":\"throttled\",\"error\":\"Too many requests\"}", retryAfter);
+            }
+        };
+    }
+
+    /**
+     * Makes the stub answer requests using the given responder.
+     */
+    public void respondWith(Responder responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Gets the base URL of the stub (with a trailing slash).
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Creates a LocalConfig pointing at this stub.
+     */
+    public LocalConfig createConfig(Context context) {
+        final String url = getUrl();
+        return new LocalConfig(context) {
+            {
+                remoteApiServerUrl = url;
+            }
+        };
+    }
+
+    /**
+     * Gets every request received so far.
+     */
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    /**
+     * Gets the number of distinct client connections requests have arrived on.
+     */
+    public int getConnectionCount() {
+        synchronized (clientPorts) {
+            return clientPorts.size();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,127 @@
+package io.calq.android.analytics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class UtcTimestampFormatterTest {
+
+    /**
+     * Tests a known timestamp.
+     */
+    @Test
+    public void testKnownTimestamp() throws Exception {
+        assertEquals("2014-05-01 12:34:56.789+0000", UtcTimestampFormatter.format(1398947696789L));
+        assertEquals("1970-01-01 00:00:00.000+0000", UtcTimestampFormatter.format(0L));
+    }
+
+    /**
+     * Tests that output matches SimpleDateFormat across random times.
+     */
+    @Test
+    public void testMatchesSimpleDateFormat() throws Exception {
+        SimpleDateFormat df = createSimpleDateFormat();
+        Random rnd = new Random(42);
+        for (int n = 0; n < 100000; n++) {
+            long millis = (long) (rnd.nextDouble() * 253402300800000L);
+            assertEquals(df.format(new Date(millis)), UtcTimestampFormatter.format(millis));
+        }
+    }
+
+    /**
+     * Tests that output matches SimpleDateFormat either side of day, month, year and leap day
+     * boundaries (where the cached date part changes).
+     */
+    @Test
+    public void testMatchesSimpleDateFormatAtBoundaries() throws Exception {
+        SimpleDateFormat df = createSimpleDateFormat();
+        String[] dates = { "1970-01-01", "1999-12-31", "2000-02-28", "2000-02-29", "2000-03-01", "2012-02-29",
+                "2014-12-31", "2100-02-28", "2100-03-01", "2400-02-29", "9999-12-31" };
+        SimpleDateFormat parser = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        parser.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (String date : dates) {
+            long midnight = parser.parse(date).getTime();
+            long[] offsets = { -1, 0, 1, 999, 1000, 59999, 60000, 3599999, 3600000, 86399999, 86400000 };
+            for (long offset : offsets) {
+                long millis = midnight + offset;
+                if (millis >= 0 && millis < 253402300800000L) {
+                    assertEquals(df.format(new Date(millis)), UtcTimestampFormatter.format(millis));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that times outside the fast range still match SimpleDateFormat.
+     */
+    @Test
+    public void testOutOfRangeFallsBack() throws Exception {
+        SimpleDateFormat df = createSimpleDateFormat();
+        long[] times = { -1L, -86400000L, 253402300800000L };
+        for (long millis : times) {
+            assertEquals(df.format(new Date(millis)), UtcTimestampFormatter.format(millis));
+        }
+    }
+
+    /**
+     * Tests formatting into a caller supplied buffer at an offset.
+     */
+    @Test
+    public void testFormatIntoBuffer() throws Exception {
+        char[] buffer = new char[UtcTimestampFormatter.LENGTH + 2];
+        buffer[0] = '"';
+        int written = UtcTimestampFormatter.format(1398947696789L, buffer, 1);
+        buffer[written + 1] = '"';
+
+        assertEquals(UtcTimestampFormatter.LENGTH, written);
+        assertEquals("\"2014-05-01 12:34:56.789+0000\"", new String(buffer));
+    }
+
+    /**
+     * Tests that threads formatting different days at once don't corrupt each other.
+     */
+    @Test
+    public void testThreadSafety() throws Exception {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SimpleDateFormat df = createSimpleDateFormat();
+                    Random rnd = new Random(seed);
+                    for (int n = 0; n < 20000; n++) {
+                        long millis = (long) (rnd.nextDouble() * 4102444800000L);
+                        String expected = df.format(new Date(millis));
+                        String actual = UtcTimestampFormatter.format(millis);
+                        if (!expected.equals(actual)) {
+                            failure.set(expected + " != " + actual);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static SimpleDateFormat createSimpleDateFormat() {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df;
+    }
+}
\ No newline at end of file